@@ -0,0 +1,100 @@
+package org.p79068.assembler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Realistic assembly source code for the benchmarks. The code is a chain of small functions in the style of demo/count.s, each with a loop, a conditional branch, register, immediate and memory operands (including SIB addressing and label displacements), and a call to the next function.
+ */
+public final class SampleSource {
+	
+	/** The number of lines in each function. */
+	public static final int LINES_PER_FUNCTION = 20;
+	
+	/** The lines of each function. The character '@' stands for the function number, and '^' for the number of the next function. */
+	private static final String[] TEMPLATE = {
+		"func_@:",
+		"\tpushl  %ebp",
+		"\tmovl   %ebp, %esp",
+		"\tmovl   %eax, 8(%ebp)  # Argument",
+		"\tmovl   %ecx, $0",
+		"\tmovl   %esi, $table_@",
+		"loop_@:",
+		"\tmovl   %edx, (%esi,%ecx,4)",
+		"\taddl   %edx, $48",
+		"\tmovb   -1(%ebp), %dl",
+		"\taddl   %eax, %edx",
+		"\tincl   %ecx",
+		"\tcmpl   %ecx, $100",
+		"\tjne    $loop_@",
+		"\tshll   %eax, $2",
+		"\tmovl   table_@(,%ecx,4), %eax",
+		"\tpopl   %ebp",
+		"\tcall   $func_^",
+		"\tret",
+		"table_@: dword $0x12345678",
+	};
+	
+	
+	
+	/**
+	 * Returns source code consisting of the specified number of functions. The last function calls the first one.
+	 * @param numFunctions the number of functions, which must be positive
+	 * @return the source code, which has {@code numFunctions * LINES_PER_FUNCTION} lines
+	 */
+	public static String generate(int numFunctions) {
+		if (numFunctions <= 0)
+			throw new IllegalArgumentException();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < numFunctions; i++) {
+			String number = Integer.toString(i);
+			String next = Integer.toString((i + 1) % numFunctions);
+			for (String line : TEMPLATE)
+				sb.append(line.replace("@", number).replace("^", next)).append('\n');
+		}
+		return sb.toString();
+	}
+	
+	
+	/**
+	 * Writes the specified source code to a new temporary file, which is deleted when the virtual machine exits.
+	 * @param source the source code
+	 * @return the temporary file
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static File writeTempFile(String source) throws IOException {
+		File file = File.createTempFile("bench", ".s");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(toBytes(source));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+	
+	
+	/**
+	 * Returns the specified ASCII source code as bytes.
+	 * @param source the source code
+	 * @return the source code as bytes
+	 */
+	public static byte[] toBytes(String source) {
+		byte[] result = new byte[source.length()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = (byte)source.charAt(i);
+		return result;
+	}
+	
+	
+	
+	/**
+	 * Not instantiable.
+	 */
+	private SampleSource() {}
+	
+}
@@ -0,0 +1,95 @@
+package org.p79068.assembler.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.p79068.assembler.CompactProgram;
+import org.p79068.assembler.Program;
+import org.p79068.assembler.SampleSource;
+import org.p79068.assembler.parser.Parser;
+
+
+/**
+ * Measures the end-to-end throughput of the assembler, in lines per second, from an already parsed program and from the source file. The compact program is assembled in two passes with branch relaxation, sequentially and on the common fork-join pool, and in a single pass with backpatching.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AssemblerBenchmark {
+	
+	private static final int NUM_FUNCTIONS = 5000;
+	
+	private static final int NUM_LINES = NUM_FUNCTIONS * SampleSource.LINES_PER_FUNCTION;
+	
+	private File sourceFile;
+	
+	private File outputFile;
+	
+	private Program program;
+	
+	private CompactProgram compactProgram;
+	
+	
+	
+	@Setup
+	public void setup() throws IOException {
+		sourceFile = SampleSource.writeTempFile(SampleSource.generate(NUM_FUNCTIONS));
+		outputFile = File.createTempFile("bench", ".out");
+		program = Parser.parseFile(sourceFile);
+		compactProgram = Parser.parseFileCompact(sourceFile);
+	}
+	
+	
+	@TearDown
+	public void tearDown() {
+		sourceFile.delete();
+		outputFile.delete();
+	}
+	
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public void assembleToFile() throws IOException {
+		Assembler.assembleToFile(program, outputFile);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public void assembleCompactToFile() throws IOException {
+		Assembler.assembleToFile(compactProgram, outputFile);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public void assembleCompactToFileParallel() throws IOException {
+		Assembler.assembleToFileParallel(compactProgram, outputFile);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public void assembleCompactToFileSinglePass() throws IOException {
+		Assembler.assembleToFileSinglePass(compactProgram, outputFile);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public void parseAndAssembleToFile() throws IOException {
+		Assembler.assembleToFile(Parser.parseFile(sourceFile), outputFile);
+	}
+	
+}
@@ -0,0 +1,83 @@
+package org.p79068.assembler.generator;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.p79068.assembler.CompactProgram;
+import org.p79068.assembler.SampleSource;
+import org.p79068.assembler.parser.Parser;
+
+
+/**
+ * Measures the throughput of in-memory assembly of small snippets on all processors at once, in lines per second across all threads. Each thread either reuses its own {@link AssemblerContext}, or calls the static methods of {@link Assembler}, which allocate fresh scratch state every time. The snippets are assembled from source text, or from one parsed program that all threads share.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(Threads.MAX)
+public class ContextBenchmark {
+	
+	private static final int NUM_FUNCTIONS = 10;
+	
+	private static final int NUM_LINES = NUM_FUNCTIONS * SampleSource.LINES_PER_FUNCTION;
+	
+	private static final int BASE_ADDRESS = 0x08048000;
+	
+	private final String source = SampleSource.generate(NUM_FUNCTIONS);
+	
+	private final CompactProgram program = Parser.parseCompact(source);
+	
+	
+	
+	@State(Scope.Thread)
+	public static class ThreadState {
+		
+		public final AssemblerContext context = new AssemblerContext();
+		
+		public final ByteBuffer out = ByteBuffer.allocate(1 << 16);
+		
+	}
+	
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public int assembleProgramWithContext(ThreadState state) {
+		state.out.clear();
+		return state.context.assemble(program, BASE_ADDRESS, state.out);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public Map<String,Integer> assembleProgramStatic(ThreadState state) {
+		state.out.clear();
+		return Assembler.assemble(program, BASE_ADDRESS, state.out);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public int assembleSourceWithContext(ThreadState state) {
+		state.out.clear();
+		return state.context.assemble(source, BASE_ADDRESS, state.out);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public Map<String,Integer> assembleSourceStatic(ThreadState state) {
+		state.out.clear();
+		return Assembler.assemble(Parser.parseCompact(source), BASE_ADDRESS, state.out);
+	}
+	
+}
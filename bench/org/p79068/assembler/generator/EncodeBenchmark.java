@@ -0,0 +1,92 @@
+package org.p79068.assembler.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.p79068.assembler.CompactProgram;
+import org.p79068.assembler.SampleSource;
+import org.p79068.assembler.parser.Parser;
+import org.p79068.util.ByteBuffer;
+
+
+/**
+ * Measures the throughput of the code generator, in instructions per second, encoding a parsed program whose patterns and label offsets were computed in advance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodeBenchmark {
+	
+	private static final int NUM_FUNCTIONS = 500;
+	
+	/** The number of instruction statements in each function of the sample source, which excludes the 3 labels. */
+	private static final int NUM_INSTRUCTIONS = NUM_FUNCTIONS * (SampleSource.LINES_PER_FUNCTION - 2);
+	
+	private static final int START_OFFSET = 0x00100054;
+	
+	private CompactProgram program;
+	
+	/** The operand index of the first operand of each instruction in the program. */
+	private int[] operandStarts;
+	
+	private InstructionPattern[] patterns;
+	
+	private int[] lengths;
+	
+	private int[] labelOffsets;
+	
+	private final ByteBuffer out = new ByteBuffer();
+	
+	
+	
+	@Setup
+	public void setup() throws IOException {
+		File file = SampleSource.writeTempFile(SampleSource.generate(NUM_FUNCTIONS));
+		program = Parser.parseFileCompact(file);
+		file.delete();
+		
+		operandStarts = new int[NUM_INSTRUCTIONS];
+		patterns = new InstructionPattern[NUM_INSTRUCTIONS];
+		lengths = new int[NUM_INSTRUCTIONS];
+		labelOffsets = new int[program.getSymbolTable().size()];
+		int count = 0;
+		int offset = START_OFFSET;
+		for (int i = 0; i < program.getStatementCount(); i++) {
+			if (!program.isLabel(i)) {
+				operandStarts[count] = program.getOperandStart(i);
+				patterns[count] = InstructionPatternTable.MODE32_TABLE.match(program, i);
+				lengths[count] = CodeGenerator.getMachineCodeLength(patterns[count], program, operandStarts[count]);
+				offset += lengths[count];
+				count++;
+			} else
+				labelOffsets[program.getLabelId(i)] = offset;
+		}
+		if (count != NUM_INSTRUCTIONS)
+			throw new AssertionError();
+	}
+	
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_INSTRUCTIONS)
+	public void makeMachineCode(Blackhole bh) {
+		out.clear();
+		int offset = START_OFFSET;
+		for (int i = 0; i < NUM_INSTRUCTIONS; i++) {
+			CodeGenerator.makeMachineCode(patterns[i], lengths[i], program, operandStarts[i], labelOffsets, offset, out);
+			offset += lengths[i];
+		}
+		bh.consume(out.length());
+	}
+	
+}
@@ -0,0 +1,82 @@
+package org.p79068.assembler.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.p79068.assembler.operand.ImmediateValue;
+import org.p79068.assembler.operand.Label;
+import org.p79068.assembler.operand.Memory;
+import org.p79068.assembler.operand.Operand;
+import org.p79068.assembler.operand.Register32;
+import org.p79068.assembler.operand.Register8;
+
+
+/**
+ * Compares the compiled dispatch index of {@link InstructionPatternTable#match} against the linear scan over all patterns for a mnemonic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MatchBenchmark {
+	
+	private static final int NUM_INSTRUCTIONS = 12;
+	
+	private final InstructionPatternTable table = InstructionPatternTable.MODE32_TABLE;
+	
+	private final String[] mnemonics = new String[NUM_INSTRUCTIONS];
+	
+	private final List<List<Operand>> operands = new ArrayList<List<Operand>>();
+	
+	
+	
+	public MatchBenchmark() {
+		Memory stackSlot = new Memory(Register32.ESP, null, 1, new ImmediateValue(8));
+		Memory arrayElem = new Memory(Register32.EBX, Register32.ECX, 4, new Label("table"));
+		add(0 , "movl" , Register32.EAX, new ImmediateValue(0));
+		add(1 , "movl" , Register32.EDX, stackSlot);
+		add(2 , "movl" , arrayElem, Register32.ESI);
+		add(3 , "addl" , Register32.ECX, new ImmediateValue(100000));
+		add(4 , "cmpl" , Register32.EAX, new ImmediateValue(100));
+		add(5 , "jne"  , new Label("loop"));
+		add(6 , "call" , new Label("function"));
+		add(7 , "pushl", Register32.EBP);
+		add(8 , "incl" , Register32.EDI);
+		add(9 , "movb" , stackSlot, Register8.DL);
+		add(10, "shll" , Register32.EAX, new ImmediateValue(1));
+		add(11, "ret"  );
+	}
+	
+	
+	private void add(int index, String mnemonic, Operand... ops) {
+		mnemonics[index] = mnemonic;
+		operands.add(Arrays.asList(ops));
+	}
+	
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_INSTRUCTIONS)
+	public void compiledIndex(Blackhole bh) {
+		for (int i = 0; i < NUM_INSTRUCTIONS; i++)
+			bh.consume(table.match(mnemonics[i], operands.get(i)));
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_INSTRUCTIONS)
+	public void linearScan(Blackhole bh) {
+		for (int i = 0; i < NUM_INSTRUCTIONS; i++)
+			bh.consume(table.matchLinear(mnemonics[i], operands.get(i)));
+	}
+	
+}
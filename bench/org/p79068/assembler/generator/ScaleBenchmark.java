@@ -0,0 +1,97 @@
+package org.p79068.assembler.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.p79068.assembler.Program;
+import org.p79068.assembler.parser.Parser;
+
+
+/**
+ * Measures how the parser and assembler scale with the size of the input, on programs from {@link ProgramGenerator}. The secondary result {@code lines} is the throughput in lines per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ScaleBenchmark {
+	
+	@Param({"10000", "100000", "1000000"})
+	public int numLines;
+	
+	private File sourceFile;
+	
+	private File outputFile;
+	
+	private Program program;
+	
+	
+	
+	@Setup
+	public void setup() throws IOException {
+		sourceFile = File.createTempFile("bench", ".s");
+		ProgramGenerator.writeFile(0, numLines, sourceFile);
+		outputFile = File.createTempFile("bench", ".out");
+		program = Parser.parseFile(sourceFile);
+	}
+	
+	
+	@TearDown
+	public void tearDown() {
+		sourceFile.delete();
+		outputFile.delete();
+	}
+	
+	
+	
+	@Benchmark
+	public Program parseFile(LineCounter counter) throws IOException {
+		counter.lines += numLines;
+		return Parser.parseFile(sourceFile);
+	}
+	
+	
+	@Benchmark
+	public Program parseFileParallel(LineCounter counter) throws IOException {
+		counter.lines += numLines;
+		return Parser.parseFileParallel(sourceFile);
+	}
+	
+	
+	@Benchmark
+	public void assembleToFile(LineCounter counter) throws IOException {
+		counter.lines += numLines;
+		Assembler.assembleToFile(program, outputFile);
+	}
+	
+	
+	
+	/**
+	 * Counts the lines processed, which JMH reports as a rate.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class LineCounter {
+		
+		public long lines;
+		
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			lines = 0;
+		}
+		
+	}
+	
+}
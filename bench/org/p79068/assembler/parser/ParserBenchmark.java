@@ -0,0 +1,83 @@
+package org.p79068.assembler.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.p79068.assembler.Program;
+import org.p79068.assembler.SampleSource;
+
+
+/**
+ * Measures the throughput of the parser, in lines per second, reading from a file and from memory with each tokenizer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParserBenchmark {
+	
+	private static final int NUM_FUNCTIONS = 5000;
+	
+	private static final int NUM_LINES = NUM_FUNCTIONS * SampleSource.LINES_PER_FUNCTION;
+	
+	private String source;
+	
+	private byte[] sourceBytes;
+	
+	private File sourceFile;
+	
+	
+	
+	@Setup
+	public void setup() throws IOException {
+		source = SampleSource.generate(NUM_FUNCTIONS);
+		sourceBytes = SampleSource.toBytes(source);
+		sourceFile = SampleSource.writeTempFile(source);
+	}
+	
+	
+	@TearDown
+	public void tearDown() {
+		sourceFile.delete();
+	}
+	
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public Program parseFile() throws IOException {
+		return Parser.parseFile(sourceFile);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public Program parseFileParallel() throws IOException {
+		return Parser.parseFileParallel(sourceFile);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public Program parseMapped() {
+		return new Parser(new MappedTokenizer(ByteBuffer.wrap(sourceBytes))).parseFile();
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public Program parseFastString() {
+		return new Parser(new BufferedTokenizer(new FastStringTokenizer(source))).parseFile();
+	}
+	
+}
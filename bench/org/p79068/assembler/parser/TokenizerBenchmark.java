@@ -0,0 +1,70 @@
+package org.p79068.assembler.parser;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.p79068.assembler.SampleSource;
+
+
+/**
+ * Compares the throughput of the tokenizers, in lines per second, on the same source code held in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TokenizerBenchmark {
+	
+	private static final int NUM_FUNCTIONS = 500;
+	
+	private static final int NUM_LINES = NUM_FUNCTIONS * SampleSource.LINES_PER_FUNCTION;
+	
+	private final String source = SampleSource.generate(NUM_FUNCTIONS);
+	
+	private final byte[] sourceBytes = SampleSource.toBytes(source);
+	
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public void stringTokenizer(Blackhole bh) {
+		consumeAll(new StringTokenizer(source), bh);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public void fastStringTokenizer(Blackhole bh) {
+		consumeAll(new FastStringTokenizer(source), bh);
+	}
+	
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_LINES)
+	public void mappedTokenizer(Blackhole bh) {
+		MappedTokenizer t = new MappedTokenizer(ByteBuffer.wrap(sourceBytes));
+		while (t.peekType() != TokenType.END_OF_FILE) {
+			bh.consume(t.peekType());
+			t.skip();
+		}
+	}
+	
+	
+	
+	private static void consumeAll(Tokenizer t, Blackhole bh) {
+		while (true) {
+			Token tok = t.next();
+			if (tok.type == TokenType.END_OF_FILE)
+				break;
+			bh.consume(tok);
+		}
+	}
+	
+}
@@ -0,0 +1,85 @@
+package org.p79068.libelf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Measures the throughput of serializing an executable file with one loadable segment, for a few code sizes, both to a byte array and streamed to a file channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ElfFileBenchmark {
+	
+	@Param({"4096", "1048576", "16777216"})
+	public int codeSize;
+	
+	private ElfFile elf;
+	
+	private File outputFile;
+	
+	
+	
+	@Setup
+	public void setup() throws IOException {
+		outputFile = File.createTempFile("bench", ".out");
+		elf = new ElfFile();
+		
+		ElfHeader eh = new ElfHeader();
+		eh.type = ObjectType.ET_EXEC;
+		eh.entry = 0x00100054;
+		eh.shstrndx = 0;
+		elf.elfHeader = eh;
+		
+		ProgramHeader ph = new ProgramHeader();
+		ph.type = SegmentType.PT_LOAD;
+		ph.vaddr = 0x00100054;
+		ph.filesz = codeSize;
+		ph.memsz = codeSize;
+		ph.flags = 0x7;
+		ph.align = 0x1000;
+		elf.programHeaders.add(ph);
+		ph.offset = elf.getDataOffset();
+		
+		elf.data = new byte[codeSize];
+	}
+	
+	
+	@TearDown
+	public void tearDown() {
+		outputFile.delete();
+	}
+	
+	
+	
+	@Benchmark
+	public byte[] toBytes() {
+		return elf.toBytes();
+	}
+	
+	
+	@Benchmark
+	public void writeTo() throws IOException {
+		FileChannel out = new FileOutputStream(outputFile).getChannel();
+		try {
+			elf.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+	
+}
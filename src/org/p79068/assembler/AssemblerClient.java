@@ -0,0 +1,126 @@
+package org.p79068.assembler;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A client connection to an {@link AssemblerServer}. Requests on one connection are sent one at a time, and several clients can be served concurrently. Not thread-safe.
+ */
+public final class AssemblerClient {
+	
+	/**
+	 * The main method. Argument 0 is the socket file name of the server. It is followed by an input file name and an output file name, which can be preceded by the option {@code --no-relax} or {@code --single-pass} as in {@link Main}. Instead of the files, the option {@code --stats} prints the counters of the server, and {@code --stop} stops the server.
+	 * @param args the list of command line arguments
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static void main(String[] args) throws IOException {
+		String option = null;
+		if (args.length == 4 && (args[1].equals("--no-relax") || args[1].equals("--single-pass")))
+			option = args[1];
+		else if (!(args.length == 3 || args.length == 2 && (args[1].equals("--stats") || args[1].equals("--stop")))) {
+			System.err.println("Usage: java org.p79068.assembler.AssemblerClient SOCKETFILE [--no-relax | --single-pass] INPUTFILE OUTPUTFILE");
+			System.err.println("       java org.p79068.assembler.AssemblerClient SOCKETFILE (--stats | --stop)");
+			System.exit(1);
+		}
+		
+		AssemblerClient client = new AssemblerClient(new File(args[0]));
+		try {
+			if (args[1].equals("--stats"))
+				System.out.print(client.getStatistics());
+			else if (args[1].equals("--stop"))
+				client.stopServer();
+			else {
+				try {
+					client.assemble(new File(args[args.length - 2]), new File(args[args.length - 1]), option);
+				} catch (IllegalArgumentException e) {
+					System.err.println(args[args.length - 2] + ": " + e.getMessage());
+					System.exit(1);
+				}
+			}
+		} finally {
+			client.close();
+		}
+	}
+	
+	
+	
+	private SocketChannel channel;
+	
+	
+	
+	/**
+	 * Connects to the server listening on the specified socket file.
+	 * @param socketFile the socket file of the server
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public AssemblerClient(File socketFile) throws IOException {
+		if (socketFile == null)
+			throw new NullPointerException();
+		channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.getPath()));
+	}
+	
+	
+	
+	/**
+	 * Asks the server to assemble the specified input file to the specified output file. Relative file names are resolved against the working directory of this process.
+	 * @param inputfile the file to assemble
+	 * @param outputfile the file to write
+	 * @param option the assembly option, which is {@code null}, {@code "--no-relax"}, or {@code "--single-pass"}
+	 * @return the time the server spent on the request, in nanoseconds
+	 * @throws IOException if an I/O exception occurred in the connection
+	 * @throws IllegalArgumentException if the server could not assemble the file
+	 */
+	public long assemble(File inputfile, File outputfile, String option) throws IOException {
+		if (inputfile == null || outputfile == null)
+			throw new NullPointerException();
+		AssemblerServer.Message response = request(AssemblerServer.ASSEMBLE, option != null ? option : "", inputfile.getAbsolutePath(), outputfile.getAbsolutePath());
+		if (response.code != AssemblerServer.OK)
+			throw new IllegalArgumentException(response.strings[0]);
+		return response.nanos;
+	}
+	
+	
+	/**
+	 * Returns the request counters of the server as text.
+	 * @return the request counters of the server
+	 * @throws IOException if an I/O exception occurred
+	 * @see AssemblerServer#getStatistics()
+	 */
+	public String getStatistics() throws IOException {
+		return request(AssemblerServer.STATISTICS).strings[0];
+	}
+	
+	
+	/**
+	 * Stops the server after the requests in progress are completed.
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public void stopServer() throws IOException {
+		request(AssemblerServer.STOP);
+	}
+	
+	
+	/**
+	 * Closes the connection to the server.
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	
+	private AssemblerServer.Message request(int code, String... strings) throws IOException {
+		AssemblerServer.writeMessage(channel, code, 0, strings);
+		AssemblerServer.Message response = AssemblerServer.readMessage(channel);
+		if (response == null)
+			throw new EOFException();
+		if (response.strings.length != 1)
+			throw new IOException("Malformed response");
+		return response;
+	}
+	
+}
@@ -0,0 +1,405 @@
+package org.p79068.assembler;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.p79068.assembler.generator.InstructionPatternTable;
+
+
+/**
+ * A long-running assembler that serves requests over a Unix domain socket, so that the pattern table, the JIT-compiled code, and other warmed state stay resident between builds. Each connection is served on its own thread, which is a virtual thread when the runtime supports them, and can send any number of requests in turn. The server reads and writes the files itself, so a client only sends file names.
+ * <p>Every message is a request code or response status byte, the time the server spent on the request as a 64-bit integer (0 in requests), and a count of strings followed by the length-prefixed UTF-8 strings, all big-endian. Every response has one string, which is the error message or the requested text, or empty. The requests are:</p>
+ * <ul>
+ *   <li>{@link #ASSEMBLE} with the option ({@code ""}, {@code "--no-relax"}, or {@code "--single-pass"}), the input file name, and the output file name</li>
+ *   <li>{@link #STATISTICS}, which responds with the request counters</li>
+ *   <li>{@link #STOP}, which stops the server after responding</li>
+ * </ul>
+ * @see AssemblerClient
+ */
+public final class AssemblerServer {
+	
+	/**
+	 * The main method. Argument 0 is the socket file name. The server runs until a client sends {@link #STOP}.
+	 * @param args the list of command line arguments
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: java org.p79068.assembler.AssemblerServer SOCKETFILE");
+			System.exit(1);
+		}
+		new AssemblerServer(new File(args[0])).serve();
+	}
+	
+	
+	
+	/* Request codes */
+	static final int ASSEMBLE = 'A';
+	static final int STATISTICS = 'S';
+	static final int STOP = 'Q';
+	
+	/* Response status codes */
+	static final int OK = 0;
+	static final int ERROR = 1;
+	
+	/** The maximum length of a string in a message, in bytes. */
+	private static final int MAX_STRING_LENGTH = 1 << 20;
+	
+	
+	
+	private final File socketFile;
+	
+	private ServerSocketChannel serverChannel;
+	
+	/** Released once the socket file is in place and accepts connections. */
+	private final CountDownLatch listening = new CountDownLatch(1);
+	
+	private final long startTime;
+	
+	/* Counters for completed assemble requests, with the total and maximum time spent on them */
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	
+	/** The number of connections that ended with an I/O error. */
+	private final AtomicLong connectionErrors = new AtomicLong();
+	
+	
+	
+	/**
+	 * Constructs a server that will listen on the specified socket file.
+	 * @param socketFile the socket file
+	 */
+	public AssemblerServer(File socketFile) {
+		if (socketFile == null)
+			throw new NullPointerException();
+		this.socketFile = socketFile;
+		startTime = System.nanoTime();
+	}
+	
+	
+	
+	/**
+	 * Listens on the socket file and serves connections until the server is {@link #stop() stopped}. The pattern table is loaded before the first connection is accepted. A stale socket file is replaced, but not the socket of a live server. The socket is created in a new directory that only its owner can enter, made accessible to its owner only, and then moved to the socket file, so that no other user can connect at any time. The socket file is deleted when the server stops.
+	 * @throws IOException if an I/O exception occurred, or another server is listening on the socket file
+	 */
+	public void serve() throws IOException {
+		InstructionPatternTable.MODE32_TABLE.getClass();  // Load and initialize the table before any request
+		
+		UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socketFile.getPath());
+		if (socketFile.exists()) {
+			boolean live;
+			try {
+				SocketChannel.open(address).close();
+				live = true;
+			} catch (IOException e) {
+				live = false;
+			}
+			if (live)
+				throw new IOException("Server already listening: " + socketFile);
+			if (!socketFile.delete())
+				throw new IOException("Cannot replace socket file: " + socketFile);
+		}
+		
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			bind(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		synchronized (this) {
+			serverChannel = channel;
+		}
+		listening.countDown();
+		
+		ExecutorService executor = newExecutor();
+		try {
+			while (true) {
+				final SocketChannel client;
+				try {
+					client = channel.accept();
+				} catch (AsynchronousCloseException e) {
+					break;
+				}
+				executor.execute(new Runnable() {
+					public void run() {
+						serveConnection(client);
+					}
+				});
+			}
+		} finally {
+			channel.close();
+			socketFile.delete();
+			executor.shutdown();
+			try {
+				executor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Waits until the server listens on the socket file, with its permissions applied, or until the timeout elapses.
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return {@code true} if the server is listening, {@code false} if the timeout elapsed first
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public boolean awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+		return listening.await(timeout, unit);
+	}
+	
+	
+	/**
+	 * Stops accepting connections, causing {@link #serve()} to return. Requests in progress are completed.
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public synchronized void stop() throws IOException {
+		if (serverChannel != null)
+			serverChannel.close();
+	}
+	
+	
+	/**
+	 * Returns the request counters of this server as text: the number of assemble requests and failures, the mean and maximum latency, the throughput since the server was constructed, and the number of connections that ended with an I/O error.
+	 * @return the request counters
+	 */
+	public String getStatistics() {
+		long count = requests.get();
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return String.format("requests %d%nfailures %d%nmean_latency_us %.1f%nmax_latency_us %.1f%nthroughput_per_s %.2f%nconnection_errors %d%n",
+			count, failures.get(),
+			count > 0 ? totalNanos.get() / 1e3 / count : 0.0,
+			maxNanos.get() / 1e3,
+			count / seconds,
+			connectionErrors.get());
+	}
+	
+	
+	// A client can make the server read and write any file that the server can, so only the owner may ever connect.
+	// The socket is bound and restricted inside a new owner-only directory, where no other user can reach it, and then moved into place. Without POSIX permissions, the socket is bound in place with the platform's permissions
+	private void bind(ServerSocketChannel channel) throws IOException {
+		Path dir;
+		try {
+			dir = Files.createTempDirectory(socketFile.getAbsoluteFile().getParentFile().toPath(), "assembler", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (UnsupportedOperationException e) {
+			channel.bind(UnixDomainSocketAddress.of(socketFile.getPath()));
+			return;
+		}
+		Path temp = dir.resolve("socket");
+		try {
+			channel.bind(UnixDomainSocketAddress.of(temp));
+			Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+			Files.move(temp, socketFile.toPath());  // Fails if another server took the socket file in the meantime
+		} finally {
+			Files.deleteIfExists(temp);
+			Files.delete(dir);
+		}
+	}
+	
+	
+	// Serves requests on the connection until the client closes it
+	private void serveConnection(SocketChannel client) {
+		try {
+			while (true) {
+				Message msg = readMessage(client);
+				if (msg == null)
+					break;
+				int request = msg.code;
+				String[] args = msg.strings;
+				long start = System.nanoTime();
+				
+				if (request == ASSEMBLE && args.length == 3 && (args[0].equals("") || args[0].equals("--no-relax") || args[0].equals("--single-pass"))) {
+					String message = "";
+					int status = OK;
+					try {
+						Main.assemble(new File(args[1]), new File(args[2]), args[0].length() > 0 ? args[0] : null);
+					} catch (Throwable e) {  // Including errors such as a stack overflow, which must not take down the connection
+						status = ERROR;
+						message = e.getMessage() != null ? e.getMessage() : e.toString();
+					}
+					long elapsed = System.nanoTime() - start;
+					record(status == OK, elapsed);
+					writeMessage(client, status, elapsed, message);
+				} else if (request == STATISTICS && args.length == 0) {
+					writeMessage(client, OK, System.nanoTime() - start, getStatistics());
+				} else if (request == STOP && args.length == 0) {
+					writeMessage(client, OK, System.nanoTime() - start, "");
+					stop();
+					break;
+				} else {
+					writeMessage(client, ERROR, System.nanoTime() - start, "Invalid request");
+					break;
+				}
+			}
+		} catch (IOException e) {
+			connectionError(e);
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				connectionError(e);
+			}
+		}
+	}
+	
+	
+	// A client that closes its connection between requests ends the loop normally, so this is a malformed message or a connection that broke mid-message
+	private void connectionError(IOException e) {
+		connectionErrors.incrementAndGet();
+		System.err.println("Connection error: " + e);
+	}
+	
+	
+	private void record(boolean success, long nanos) {
+		requests.incrementAndGet();
+		if (!success)
+			failures.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		while (true) {
+			long max = maxNanos.get();
+			if (nanos <= max || maxNanos.compareAndSet(max, nanos))
+				break;
+		}
+	}
+	
+	
+	
+	/**
+	 * Writes a message with the specified code, time, and strings to the specified channel.
+	 * @param channel the channel to write to
+	 * @param code the request code or response status
+	 * @param nanos the time spent on the request in nanoseconds, or 0 for a request
+	 * @param strings the strings of the message
+	 * @throws IOException if an I/O exception occurred
+	 */
+	static void writeMessage(SocketChannel channel, int code, long nanos, String... strings) throws IOException {
+		byte[][] encoded = new byte[strings.length][];
+		int length = 1 + 8 + 4;
+		for (int i = 0; i < strings.length; i++) {
+			encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+			if (encoded[i].length > MAX_STRING_LENGTH)
+				throw new IllegalArgumentException("String too long");
+			length += 4 + encoded[i].length;
+		}
+		
+		ByteBuffer b = ByteBuffer.allocate(length);
+		b.put((byte)code);
+		b.putLong(nanos);
+		b.putInt(strings.length);
+		for (byte[] s : encoded) {
+			b.putInt(s.length);
+			b.put(s);
+		}
+		b.flip();
+		while (b.hasRemaining())
+			channel.write(b);
+	}
+	
+	
+	/**
+	 * Reads a message from the specified channel.
+	 * @param channel the channel to read from
+	 * @return the message, or {@code null} if the end of stream was reached before the message
+	 * @throws IOException if an I/O exception occurred, or the message is malformed
+	 */
+	static Message readMessage(SocketChannel channel) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(1 + 8 + 4);
+		if (!readFully(channel, b, true))
+			return null;
+		int count = b.getInt(9);
+		if (count < 0 || count > 16)
+			throw new IOException("Malformed message");
+		
+		String[] strings = new String[count];
+		for (int i = 0; i < count; i++) {
+			ByteBuffer len = ByteBuffer.allocate(4);
+			readFully(channel, len, false);
+			int n = len.getInt(0);
+			if (n < 0 || n > MAX_STRING_LENGTH)
+				throw new IOException("Malformed message");
+			ByteBuffer str = ByteBuffer.allocate(n);
+			readFully(channel, str, false);
+			strings[i] = new String(str.array(), StandardCharsets.UTF_8);
+		}
+		return new Message(b.get(0), b.getLong(1), strings);
+	}
+	
+	
+	/**
+	 * Fills the specified buffer from the specified channel.
+	 * @param channel the channel to read from
+	 * @param b the buffer to fill
+	 * @param eofAllowed whether the end of stream is allowed before the first byte
+	 * @return {@code true} if the buffer was filled, or {@code false} if the end of stream was reached before the first byte
+	 * @throws IOException if an I/O exception occurred, or the end of stream was reached otherwise
+	 */
+	static boolean readFully(SocketChannel channel, ByteBuffer b, boolean eofAllowed) throws IOException {
+		while (b.hasRemaining()) {
+			if (channel.read(b) == -1) {
+				if (eofAllowed && b.position() == 0)
+					return false;
+				throw new EOFException();
+			}
+		}
+		return true;
+	}
+	
+	
+	// Returns a virtual thread per task executor if the runtime has them, otherwise a cached thread pool
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+		} catch (IllegalAccessException e) {
+		} catch (InvocationTargetException e) {}
+		return Executors.newCachedThreadPool();
+	}
+	
+	
+	
+	/**
+	 * A request or response read from a channel.
+	 */
+	static final class Message {
+		
+		/** The request code or response status. */
+		public final int code;
+		
+		/** The time the server spent on the request in nanoseconds, or 0 for a request. */
+		public final long nanos;
+		
+		/** The strings of the message. */
+		public final String[] strings;
+		
+		
+		public Message(int code, long nanos, String[] strings) {
+			this.code = code;
+			this.nanos = nanos;
+			this.strings = strings;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,230 @@
+package org.p79068.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.p79068.assembler.generator.Assembler;
+import org.p79068.assembler.parser.Parser;
+
+
+/**
+ * A content-addressed cache of assembled files in a directory, which can be shared by concurrent builds in any number of processes. An entry is keyed by the SHA-256 digest of the input bytes, the assembly option, the source name and compilation directory that are recorded in the debugging information, and the {@linkplain Assembler#getConfiguration() configuration} of the assembler. Without debugging information, the name and location of the input file are not part of the key, so the same source hits from any directory. A hit copies the entry to the output file without parsing the input.
+ * <p>Outputs are copies, never links, so that a build that later writes over an output cannot change the entry that other builds read. An output is written to a temporary file next to it and renamed over it, so that it is never seen partially written. An entry is likewise written to a temporary file in the cache directory and published by an atomic rename, so that no build ever sees a partial entry, and builds that miss on the same key at once each publish a complete and identical file. When the total size of the entries exceeds the maximum, the least recently used entries are deleted, where every hit updates the modification time of its entry. Each instance rescans the directory after it has added a tenth of the maximum size, so the bound is approximate when several processes share the directory. An entry that is deleted just before it is copied is treated as a miss.</p>
+ * <p>This class is thread-safe.</p>
+ */
+public final class BuildCache {
+	
+	/** The suffix of temporary files, which are not entries. */
+	private static final String TEMP_SUFFIX = ".tmp";
+	
+	/** The age after which a temporary file is assumed to be left over from a build that crashed, in milliseconds. */
+	private static final long STALE_TEMP_AGE = 60 * 60 * 1000;
+	
+	/** The length of an entry name, which is a SHA-256 digest in hexadecimal. */
+	private static final int ENTRY_NAME_LENGTH = 64;
+	
+	
+	
+	private final File directory;
+	
+	private final long maxSize;
+	
+	/* The total size of the entries at the last scan plus the sizes of the entries published since, and the bytes published since. The size is -1 before the first scan. */
+	private long size;
+	private long addedSinceScan;
+	
+	
+	
+	/**
+	 * Constructs a cache in the specified directory, which is created if it does not exist.
+	 * @param directory the cache directory
+	 * @param maxSize the maximum total size of the entries, in bytes
+	 * @throws IOException if the directory could not be created
+	 * @throws IllegalArgumentException if the maximum size is negative
+	 */
+	public BuildCache(File directory, long maxSize) throws IOException {
+		if (directory == null)
+			throw new NullPointerException();
+		if (maxSize < 0)
+			throw new IllegalArgumentException("Negative maximum size");
+		if (!directory.mkdirs() && !directory.isDirectory())
+			throw new IOException("Cannot create cache directory: " + directory);
+		this.directory = directory;
+		this.maxSize = maxSize;
+		size = -1;
+		addedSinceScan = 0;
+	}
+	
+	
+	
+	/**
+	 * Assembles the specified input file to the specified output file as {@link Main} does, using the cache. On a hit, the output file is replaced by a copy of the cached entry. On a miss, the input is assembled from the same bytes that the key was computed from and the output is published as a new entry.
+	 * @param inputfile the file to assemble
+	 * @param outputfile the file to write
+	 * @param option the assembly option, which is {@code null}, {@code "--no-relax"}, or {@code "--single-pass"}
+	 * @param compDir the compilation directory for debugging information, or {@code null} for none
+	 * @return {@code true} if the output came from the cache, {@code false} if it was assembled
+	 * @throws IOException if an I/O exception occurred
+	 * @throws IllegalArgumentException if the program has an invalid instruction, or an undefined or duplicate label
+	 * @throws RuntimeException if the source code has a syntax error
+	 */
+	public boolean assemble(File inputfile, File outputfile, String option, String compDir) throws IOException {
+		if (inputfile == null || outputfile == null)
+			throw new NullPointerException();
+		byte[] source = Files.readAllBytes(inputfile.toPath());
+		String sourceName = Main.getDebugName(inputfile, compDir);
+		File entry = new File(directory, getKey(option, sourceName, compDir, source));
+		
+		// Touching the entry marks it as recently used, and fails if it does not exist
+		if (entry.setLastModified(System.currentTimeMillis()) && copy(entry, outputfile))
+			return true;
+		
+		CompactProgram program = Parser.parseCompact(ByteBuffer.wrap(source));
+		program.setSourceName(sourceName);
+		program.setCompilationDirectory(compDir);
+		File temp = File.createTempFile("entry", TEMP_SUFFIX, directory);
+		try {
+			Main.assemble(program, temp, option);
+			// Copy the output before publishing, so that the entry cannot be evicted in between
+			if (!copy(temp, outputfile))
+				throw new NoSuchFileException(temp.getPath());
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+		published(entry.length());
+		return false;
+	}
+	
+	
+	// Returns the entry name for the input, which covers everything that can change the output file
+	private static String getKey(String option, String sourceName, String compDir, byte[] source) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);  // Every Java platform supports SHA-256
+		}
+		update(digest, Assembler.getConfiguration());
+		update(digest, option != null ? option : "");
+		update(digest, sourceName != null ? sourceName : "");
+		update(digest, compDir != null ? compDir : "");
+		digest.update(source);
+		
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest())
+			sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+	
+	
+	// Length-prefixed, so that adjacent strings cannot run together
+	private static void update(MessageDigest digest, String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		digest.update(ByteBuffer.allocate(4).putInt(b.length).array());
+		digest.update(b);
+	}
+	
+	
+	// Replaces the target with a copy of the source, by copying to a temporary file in the target's directory and renaming it over the target. Returns false if the source does not exist.
+	private static boolean copy(File source, File target) throws IOException {
+		Path temp = File.createTempFile("output", TEMP_SUFFIX, target.getAbsoluteFile().getParentFile()).toPath();
+		try {
+			try {
+				Files.copy(source.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+			} catch (NoSuchFileException e) {
+				if (source.exists())
+					throw e;
+				return false;
+			}
+			Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	
+	// Accounts for a newly published entry, and scans and evicts when the cache may be too large
+	private synchronized void published(long length) {
+		if (size != -1) {
+			size += length;
+			addedSinceScan += length;
+		}
+		if (size == -1 || size > maxSize || addedSinceScan > maxSize / 10) {
+			size = evict();
+			addedSinceScan = 0;
+		}
+	}
+	
+	
+	// Deletes the least recently used entries until the total size is at most 90% of the maximum, if it exceeds the maximum, and deletes stale temporary files. Returns the total size of the remaining entries.
+	private long evict() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return 0;
+		
+		long now = System.currentTimeMillis();
+		List<Entry> entries = new ArrayList<Entry>();
+		long total = 0;
+		for (File f : files) {
+			String name = f.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				if (now - f.lastModified() > STALE_TEMP_AGE)
+					f.delete();
+			} else if (name.length() == ENTRY_NAME_LENGTH && f.isFile()) {
+				// Snapshot the times, which other builds can change while sorting
+				Entry entry = new Entry(f, f.lastModified(), f.length());
+				entries.add(entry);
+				total += entry.length;
+			}
+		}
+		if (total <= maxSize)
+			return total;
+		
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry x, Entry y) {
+				return Long.compare(x.lastModified, y.lastModified);
+			}
+		});
+		long target = maxSize - maxSize / 10;
+		for (int i = 0; i < entries.size() && total > target; i++) {
+			Entry entry = entries.get(i);
+			if (entry.file.delete() || !entry.file.exists())
+				total -= entry.length;
+		}
+		return total;
+	}
+	
+	
+	
+	private static final class Entry {
+		
+		public final File file;
+		
+		public final long lastModified;
+		
+		public final long length;
+		
+		
+		public Entry(File file, long lastModified, long length) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,624 @@
+package org.p79068.assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.p79068.assembler.operand.ImmediateValue;
+import org.p79068.assembler.operand.Label;
+import org.p79068.assembler.operand.Memory;
+import org.p79068.assembler.operand.Operand;
+import org.p79068.assembler.operand.OperandKind;
+import org.p79068.assembler.operand.Register;
+import org.p79068.assembler.operand.Register16;
+import org.p79068.assembler.operand.Register32;
+import org.p79068.assembler.operand.Register8;
+import org.p79068.assembler.operand.SegmentRegister;
+
+
+/**
+ * An assembly language program stored in a compact struct-of-arrays form. It holds the same information as a {@link Program}, but each statement is a few entries in primitive arrays instead of a graph of objects, so that it takes an order of magnitude less memory. Mnemonics and label names are stored once each and referred to by ID. Compact programs are mutable, but statements can only be appended.
+ * <p>The operands of a statement can be read in place by operand index, starting at {@link #getOperandStart(int)}, which creates no objects. They can also be decoded into operand objects by {@link #getOperands(int, List)}, where registers and labels are shared objects, and immediate values and memory operands are created anew.</p>
+ * <p>Section directives are not statements of their own. Instead, each statement records the section that was current when it was appended. Line numbers are recorded the same way.</p>
+ */
+public final class CompactProgram {
+	
+	/* Operand types */
+	private static final byte REGISTER = 0;
+	private static final byte IMMEDIATE = 1;
+	private static final byte LABEL = 2;
+	private static final byte MEMORY = 3;
+	
+	/** The flag in the value of a memory operand that indicates that the displacement is a label ID. */
+	private static final int LABEL_DISPLACEMENT = 1 << 10;
+	
+	private static final Section[] SECTIONS = Section.values();
+	
+	/** All the registers, indexed by the position of their kind flag. */
+	private static final Register[] REGISTERS = {
+		Register8.AL, Register8.CL, Register8.DL, Register8.BL, Register8.AH, Register8.CH, Register8.DH, Register8.BH,
+		Register16.AX, Register16.CX, Register16.DX, Register16.BX, Register16.SP, Register16.BP, Register16.SI, Register16.DI,
+		Register32.EAX, Register32.ECX, Register32.EDX, Register32.EBX, Register32.ESP, Register32.EBP, Register32.ESI, Register32.EDI,
+		SegmentRegister.ES, SegmentRegister.CS, SegmentRegister.SS, SegmentRegister.DS, SegmentRegister.FS, SegmentRegister.GS,
+	};
+	
+	
+	/**
+	 * Returns a compact program with the same statements as the specified program.
+	 * @param program the program to convert
+	 * @return a compact program with the same statements
+	 */
+	public static CompactProgram fromProgram(Program program) {
+		List<Statement> statements = program.getStatements();
+		CompactProgram result = new CompactProgram();
+		result.setSourceName(program.getSourceName());
+		for (int i = 0; i < statements.size(); i++) {
+			Statement st = statements.get(i);
+			result.setLineNumber(st.getLineNumber());
+			if (st instanceof InstructionStatement) {
+				InstructionStatement ist = (InstructionStatement)st;
+				result.addInstruction(ist.getMnemonic(), ist.getOperands());
+			} else if (st instanceof LabelStatement)
+				result.addLabel(((LabelStatement)st).getName());
+			else if (st instanceof SectionStatement)
+				result.setSection(((SectionStatement)st).getSection());
+			else
+				throw new IllegalArgumentException("Unknown statement type");
+		}
+		result.trimToSize();
+		return result;
+	}
+	
+	
+	
+	/** The number of statements. */
+	private int numStatements;
+	
+	/** For each statement, the mnemonic ID for an instruction, or -1 minus the label ID for a label. */
+	private int[] heads;
+	
+	/** For each statement, the ordinal of its section. */
+	private byte[] sections;
+	
+	/** The section of the statements that are appended next. */
+	private Section currentSection;
+	
+	/** For each statement, its line number in the source file, or 0 if unknown. */
+	private int[] lineNumbers;
+	
+	/** The line number of the statements that are appended next. */
+	private int currentLineNumber;
+	
+	/** The name of the source file, or {@code null} if unknown. */
+	private String sourceName;
+	
+	/** The directory that the source name is relative to, or {@code null} if none. */
+	private String compilationDirectory;
+	
+	/** For each statement, the index of its first operand. The entry after the last statement is the total number of operands. */
+	private int[] operandStarts;
+	
+	/** For each operand, its type. */
+	private byte[] operandTypes;
+	
+	/** For each operand, the register index, the immediate value, the label ID, or for memory operands the base register number plus 1 (bits 0 to 3), the index register number plus 1 (bits 4 to 7), the base-2 logarithm of the scale (bits 8 to 9), and the label displacement flag. */
+	private int[] operandValues;
+	
+	/** For each operand, the displacement value or label ID for memory operands, otherwise 0. */
+	private int[] operandDisplacements;
+	
+	/** The distinct mnemonics, indexed by mnemonic ID. */
+	private List<String> mnemonics;
+	
+	private Map<String,Integer> mnemonicIds;
+	
+	/** The distinct labels, which assigns the label IDs. */
+	private SymbolTable symbols;
+	
+	
+	
+	/**
+	 * Constructs a compact program with no statements.
+	 */
+	public CompactProgram() {
+		numStatements = 0;
+		heads = new int[64];
+		sections = new byte[64];
+		currentSection = Section.TEXT;
+		lineNumbers = new int[64];
+		currentLineNumber = 0;
+		sourceName = null;
+		compilationDirectory = null;
+		operandStarts = new int[65];
+		operandTypes = new byte[128];
+		operandValues = new int[128];
+		operandDisplacements = new int[128];
+		mnemonics = new ArrayList<String>();
+		mnemonicIds = new HashMap<String,Integer>();
+		symbols = new SymbolTable();
+	}
+	
+	
+	
+	/**
+	 * Returns the symbol table of this program, which holds every label that is declared or referenced. The label operands returned by {@link #getOperands(int, List)} are the shared label objects of this table.
+	 * @return the symbol table of this program
+	 */
+	public SymbolTable getSymbolTable() {
+		return symbols;
+	}
+	
+	
+	/**
+	 * Returns the number of statements in this program.
+	 * @return the number of statements
+	 */
+	public int getStatementCount() {
+		return numStatements;
+	}
+	
+	
+	/**
+	 * Tests whether the statement at the specified index is a label.
+	 * @param index the statement index
+	 * @return {@code true} if the statement is a label, {@code false} if it is an instruction
+	 */
+	public boolean isLabel(int index) {
+		return getHead(index) < 0;
+	}
+	
+	
+	/**
+	 * Returns the name of the label statement at the specified index.
+	 * @param index the statement index
+	 * @return the name of the label
+	 * @throws IllegalArgumentException if the statement is not a label
+	 */
+	public String getLabelName(int index) {
+		return symbols.getName(getLabelId(index));
+	}
+	
+	
+	/**
+	 * Returns the symbol table ID of the label statement at the specified index.
+	 * @param index the statement index
+	 * @return the ID of the label
+	 * @throws IllegalArgumentException if the statement is not a label
+	 */
+	public int getLabelId(int index) {
+		int head = getHead(index);
+		if (head >= 0)
+			throw new IllegalArgumentException("Not a label statement");
+		return -1 - head;
+	}
+	
+	
+	/**
+	 * Returns the mnemonic of the instruction statement at the specified index.
+	 * @param index the statement index
+	 * @return the mnemonic of the instruction
+	 * @throws IllegalArgumentException if the statement is not an instruction
+	 */
+	public String getMnemonic(int index) {
+		int head = getHead(index);
+		if (head < 0)
+			throw new IllegalArgumentException("Not an instruction statement");
+		return mnemonics.get(head);
+	}
+	
+	
+	/**
+	 * Returns the section of the statement at the specified index.
+	 * @param index the statement index
+	 * @return the section of the statement
+	 */
+	public Section getSection(int index) {
+		getHead(index);  // Check index
+		return SECTIONS[sections[index]];
+	}
+	
+	
+	/**
+	 * Returns the line number of the statement at the specified index in the source file, or 0 if unknown.
+	 * @param index the statement index
+	 * @return the line number of the statement, or 0
+	 */
+	public int getLineNumber(int index) {
+		getHead(index);  // Check index
+		return lineNumbers[index];
+	}
+	
+	
+	/**
+	 * Returns the name of the source file that this program was parsed from, or {@code null} if unknown.
+	 * @return the name of the source file, or {@code null}
+	 */
+	public String getSourceName() {
+		return sourceName;
+	}
+	
+	
+	/**
+	 * Returns the compilation directory that the source name is relative to, as it is recorded in the debugging information, or {@code null} if none is recorded.
+	 * @return the compilation directory, or {@code null}
+	 */
+	public String getCompilationDirectory() {
+		return compilationDirectory;
+	}
+	
+	
+	/**
+	 * Replaces the contents of the specified list with the operands of the instruction statement at the specified index. A label statement has no operands.
+	 * @param index the statement index
+	 * @param result the list to store the operands in
+	 */
+	public void getOperands(int index, List<Operand> result) {
+		getHead(index);  // Check index
+		result.clear();
+		for (int i = operandStarts[index], end = operandStarts[index + 1]; i < end; i++)
+			result.add(getOperand(i));
+	}
+	
+	
+	/**
+	 * Returns the operand index of the first operand of the statement at the specified index. The operands of all the statements are numbered in statement order, so the operands of a statement have consecutive operand indexes. The operand accessors below read an operand in place by its operand index, without creating operand objects.
+	 * @param index the statement index
+	 * @return the operand index of the first operand of the statement
+	 */
+	public int getOperandStart(int index) {
+		getHead(index);  // Check index
+		return operandStarts[index];
+	}
+	
+	
+	/**
+	 * Returns the number of operands of the statement at the specified index. A label statement has no operands.
+	 * @param index the statement index
+	 * @return the number of operands of the statement
+	 */
+	public int getOperandCount(int index) {
+		getHead(index);  // Check index
+		return operandStarts[index + 1] - operandStarts[index];
+	}
+	
+	
+	/**
+	 * Returns the kind flags of the operand at the specified operand index, which are the same as those of the decoded operand.
+	 * @param operand the operand index
+	 * @return the kind flags of the operand, as defined in {@link OperandKind}
+	 */
+	public long getOperandKinds(int operand) {
+		switch (getOperandType(operand)) {
+			case REGISTER:   return REGISTERS[operandValues[operand]].getKinds();
+			case IMMEDIATE:  return OperandKind.ofImmediate(operandValues[operand]);
+			case LABEL:      return OperandKind.LABEL;
+			case MEMORY:     return OperandKind.MEMORY;
+			default:  throw new AssertionError();
+		}
+	}
+	
+	
+	/**
+	 * Returns the register operand at the specified operand index.
+	 * @param operand the operand index
+	 * @return the register
+	 * @throws IllegalArgumentException if the operand is not a register
+	 */
+	public Register getOperandRegister(int operand) {
+		if (getOperandType(operand) != REGISTER)
+			throw new IllegalArgumentException("Not a register operand");
+		return REGISTERS[operandValues[operand]];
+	}
+	
+	
+	/**
+	 * Returns the value of the immediate value operand at the specified operand index, or the displacement of the memory operand at the specified operand index.
+	 * @param operand the operand index
+	 * @return the immediate value or the displacement
+	 * @throws IllegalArgumentException if the operand is not an immediate value or a memory operand with a literal displacement
+	 */
+	public int getOperandValue(int operand) {
+		byte type = getOperandType(operand);
+		if (type == IMMEDIATE)
+			return operandValues[operand];
+		else if (type == MEMORY && (operandValues[operand] & LABEL_DISPLACEMENT) == 0)
+			return operandDisplacements[operand];
+		else
+			throw new IllegalArgumentException("Not a literal value");
+	}
+	
+	
+	/**
+	 * Returns the label ID of the label operand at the specified operand index, or of the displacement of the memory operand at the specified operand index, or -1 if the operand or its displacement is a literal value.
+	 * @param operand the operand index
+	 * @return the label ID, or -1
+	 * @throws IllegalArgumentException if the operand is a register
+	 */
+	public int getOperandLabelId(int operand) {
+		switch (getOperandType(operand)) {
+			case IMMEDIATE:  return -1;
+			case LABEL:      return operandValues[operand];
+			case MEMORY:     return (operandValues[operand] & LABEL_DISPLACEMENT) != 0 ? operandDisplacements[operand] : -1;
+			default:  throw new IllegalArgumentException("Not an immediate or memory operand");
+		}
+	}
+	
+	
+	/**
+	 * Returns the base register of the memory operand at the specified operand index.
+	 * @param operand the operand index
+	 * @return the base register, or {@code null} if none
+	 * @throws IllegalArgumentException if the operand is not a memory operand
+	 */
+	public Register32 getOperandBase(int operand) {
+		return toRegister32(getMemoryValue(operand) & 0xF);
+	}
+	
+	
+	/**
+	 * Returns the index register of the memory operand at the specified operand index.
+	 * @param operand the operand index
+	 * @return the index register, or {@code null} if none
+	 * @throws IllegalArgumentException if the operand is not a memory operand
+	 */
+	public Register32 getOperandIndex(int operand) {
+		return toRegister32(getMemoryValue(operand) >>> 4 & 0xF);
+	}
+	
+	
+	/**
+	 * Returns the scale of the memory operand at the specified operand index.
+	 * @param operand the operand index
+	 * @return the scale, which is 1, 2, 4, or 8
+	 * @throws IllegalArgumentException if the operand is not a memory operand
+	 */
+	public int getOperandScale(int operand) {
+		return 1 << (getMemoryValue(operand) >>> 8 & 3);
+	}
+	
+	
+	/**
+	 * Sets the section of the statements that are appended after this call. This has the same effect as a section directive.
+	 * @param section the section
+	 */
+	public void setSection(Section section) {
+		if (section == null)
+			throw new NullPointerException();
+		currentSection = section;
+	}
+	
+	
+	/**
+	 * Sets the line number of the statements that are appended after this call.
+	 * @param lineNumber the line number in the source file, or 0 if unknown
+	 * @throws IllegalArgumentException if the line number is negative
+	 */
+	public void setLineNumber(int lineNumber) {
+		if (lineNumber < 0)
+			throw new IllegalArgumentException("Negative line number");
+		currentLineNumber = lineNumber;
+	}
+	
+	
+	/**
+	 * Sets the name of the source file that this program was parsed from. The line numbers of the statements refer to this file.
+	 * @param name the name of the source file, or {@code null} if unknown
+	 */
+	public void setSourceName(String name) {
+		sourceName = name;
+	}
+	
+	
+	/**
+	 * Sets the compilation directory that the source name is relative to. It is recorded as is in the debugging information, so a relative directory such as {@code "."} keeps the output independent of where the program was assembled.
+	 * @param directory the compilation directory, or {@code null} to record none
+	 */
+	public void setCompilationDirectory(String directory) {
+		compilationDirectory = directory;
+	}
+	
+	
+	/**
+	 * Appends a label statement with the specified name to this program.
+	 * @param name the name of the label
+	 */
+	public void addLabel(String name) {
+		if (name == null)
+			throw new NullPointerException();
+		ensureStatementCapacity();
+		heads[numStatements] = -1 - symbols.intern(name);
+		sections[numStatements] = (byte)currentSection.ordinal();
+		lineNumbers[numStatements] = currentLineNumber;
+		operandStarts[numStatements + 1] = operandStarts[numStatements];
+		numStatements++;
+	}
+	
+	
+	/**
+	 * Appends an instruction statement with the specified mnemonic and list of operands to this program.
+	 * @param mnemonic the mnemonic
+	 * @param operands the list of operands
+	 */
+	public void addInstruction(String mnemonic, List<Operand> operands) {
+		if (mnemonic == null || operands == null)
+			throw new NullPointerException();
+		ensureStatementCapacity();
+		
+		Integer id = mnemonicIds.get(mnemonic);
+		if (id == null) {
+			id = mnemonics.size();
+			mnemonics.add(mnemonic);
+			mnemonicIds.put(mnemonic, id);
+		}
+		
+		int start = operandStarts[numStatements];
+		ensureOperandCapacity(start + operands.size());
+		for (int i = 0; i < operands.size(); i++)
+			setOperand(start + i, operands.get(i));
+		
+		heads[numStatements] = id;
+		sections[numStatements] = (byte)currentSection.ordinal();
+		lineNumbers[numStatements] = currentLineNumber;
+		operandStarts[numStatements + 1] = start + operands.size();
+		numStatements++;
+	}
+	
+	
+	/**
+	 * Removes all the statements and labels from this program, and resets the current section, line number, source name, and compilation directory. The internal arrays are kept, so that the program can be reused without reallocating.
+	 */
+	public void clear() {
+		numStatements = 0;
+		currentSection = Section.TEXT;
+		currentLineNumber = 0;
+		sourceName = null;
+		compilationDirectory = null;
+		symbols.clear();
+	}
+	
+	
+	/**
+	 * Shrinks the internal arrays of this program to the exact number of statements and operands, to release the spare capacity left after appending.
+	 */
+	public void trimToSize() {
+		int numOperands = operandStarts[numStatements];
+		heads = Arrays.copyOf(heads, numStatements);
+		sections = Arrays.copyOf(sections, numStatements);
+		lineNumbers = Arrays.copyOf(lineNumbers, numStatements);
+		operandStarts = Arrays.copyOf(operandStarts, numStatements + 1);
+		operandTypes = Arrays.copyOf(operandTypes, numOperands);
+		operandValues = Arrays.copyOf(operandValues, numOperands);
+		operandDisplacements = Arrays.copyOf(operandDisplacements, numOperands);
+	}
+	
+	
+	/**
+	 * Returns a program with the same statements as this compact program. A section statement is inserted wherever the section changes.
+	 * @return a program with the same statements
+	 */
+	public Program toProgram() {
+		Program result = new Program();
+		result.setSourceName(sourceName);
+		List<Operand> operands = new ArrayList<Operand>();
+		Section section = Section.TEXT;
+		for (int i = 0; i < numStatements; i++) {
+			if (getSection(i) != section) {
+				section = getSection(i);
+				result.addStatement(new SectionStatement(section));
+			}
+			if (isLabel(i))
+				result.addStatement(new LabelStatement(getLabelName(i), lineNumbers[i]));
+			else {
+				getOperands(i, operands);
+				result.addStatement(new InstructionStatement(getMnemonic(i), operands, lineNumbers[i]));
+			}
+		}
+		return result;
+	}
+	
+	
+	private int getHead(int index) {
+		if (index < 0 || index >= numStatements)
+			throw new IndexOutOfBoundsException();
+		return heads[index];
+	}
+	
+	
+	private byte getOperandType(int operand) {
+		if (operand < 0 || operand >= operandStarts[numStatements])
+			throw new IndexOutOfBoundsException();
+		return operandTypes[operand];
+	}
+	
+	
+	private int getMemoryValue(int operand) {
+		if (getOperandType(operand) != MEMORY)
+			throw new IllegalArgumentException("Not a memory operand");
+		return operandValues[operand];
+	}
+	
+	
+	// Decodes a register field of a memory operand value, which is the register number plus 1, or 0 for none
+	private static Register32 toRegister32(int field) {
+		return field != 0 ? (Register32)REGISTERS[16 + field - 1] : null;
+	}
+	
+	
+	private Operand getOperand(int i) {
+		int value = operandValues[i];
+		switch (operandTypes[i]) {
+			case REGISTER:   return REGISTERS[value];
+			case IMMEDIATE:  return new ImmediateValue(value);
+			case LABEL:      return symbols.getLabel(value);
+			case MEMORY: {
+				Register32 base  = toRegister32(value & 0xF);
+				Register32 index = toRegister32(value >>> 4 & 0xF);
+				int scale = 1 << (value >>> 8 & 3);
+				int disp = operandDisplacements[i];
+				if ((value & LABEL_DISPLACEMENT) != 0)
+					return new Memory(base, index, scale, symbols.getLabel(disp));
+				else
+					return new Memory(base, index, scale, new ImmediateValue(disp));
+			}
+			default:  throw new AssertionError();
+		}
+	}
+	
+	
+	private void setOperand(int i, Operand op) {
+		int disp = 0;
+		if (op instanceof Register) {
+			operandTypes[i] = REGISTER;
+			operandValues[i] = Long.numberOfTrailingZeros(op.getKinds());
+		} else if (op instanceof ImmediateValue) {
+			operandTypes[i] = IMMEDIATE;
+			operandValues[i] = ((ImmediateValue)op).getValue();
+		} else if (op instanceof Label) {
+			operandTypes[i] = LABEL;
+			operandValues[i] = symbols.intern(((Label)op).getName());
+		} else if (op instanceof Memory) {
+			Memory m = (Memory)op;
+			int value = 0;
+			if (m.base != null)
+				value |= m.base.getRegisterNumber() + 1;
+			if (m.index != null)
+				value |= (m.index.getRegisterNumber() + 1) << 4;
+			value |= Integer.numberOfTrailingZeros(m.scale) << 8;
+			if (m.displacement instanceof Label) {
+				value |= LABEL_DISPLACEMENT;
+				disp = symbols.intern(((Label)m.displacement).getName());
+			} else
+				disp = ((ImmediateValue)m.displacement).getValue();
+			operandTypes[i] = MEMORY;
+			operandValues[i] = value;
+		} else
+			throw new IllegalArgumentException("Unknown operand type");
+		operandDisplacements[i] = disp;
+	}
+	
+	
+	private void ensureStatementCapacity() {
+		if (numStatements == heads.length) {
+			if (numStatements == Integer.MAX_VALUE - 1)
+				throw new IllegalStateException("Maximum size exceeded");
+			int newLength = (int)Math.min(Math.max((long)heads.length * 2, 16), Integer.MAX_VALUE - 1);
+			heads = Arrays.copyOf(heads, newLength);
+			sections = Arrays.copyOf(sections, newLength);
+			lineNumbers = Arrays.copyOf(lineNumbers, newLength);
+			operandStarts = Arrays.copyOf(operandStarts, newLength + 1);
+		}
+	}
+	
+	
+	private void ensureOperandCapacity(int capacity) {
+		if (capacity > operandTypes.length) {
+			int newLength = (int)Math.min(Math.max((long)operandTypes.length * 2 + 16, capacity), Integer.MAX_VALUE);
+			operandTypes = Arrays.copyOf(operandTypes, newLength);
+			operandValues = Arrays.copyOf(operandValues, newLength);
+			operandDisplacements = Arrays.copyOf(operandDisplacements, newLength);
+		}
+	}
+	
+}
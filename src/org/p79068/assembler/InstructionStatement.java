@@ -12,6 +12,12 @@ import org.p79068.assembler.operand.Operand;
  */
 public class InstructionStatement extends Statement {
 	
+	/**
+	 * The mnemonic of the reservation directive. Its single operand is an immediate value, which is the number of zero bytes to reserve.
+	 */
+	public static final String SKIP = ".skip";
+	
+	
 	/**
 	 * The instruction's mnemonic.
 	 */
@@ -31,6 +37,19 @@ public class InstructionStatement extends Statement {
 	 * @throws NullPointerException if the mnemonic or list of operands or any operand is {@code null}
 	 */
 	public InstructionStatement(String mnemonic, List<Operand> operands) {
+		this(mnemonic, operands, 0);
+	}
+	
+	
+	/**
+	 * Constructs an instruction statement with the specified mnemonic, list of operands, and line number.
+	 * @param mnemonic the mnemonic
+	 * @param operands the list of operands
+	 * @param lineNumber the line number in the source file, or 0 if unknown
+	 * @throws NullPointerException if the mnemonic or list of operands or any operand is {@code null}
+	 */
+	public InstructionStatement(String mnemonic, List<Operand> operands, int lineNumber) {
+		super(lineNumber);
 		if (mnemonic == null || operands == null)
 			throw new NullPointerException();
 		for (Operand op : operands) {
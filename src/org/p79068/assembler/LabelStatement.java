@@ -19,6 +19,18 @@ public class LabelStatement extends Statement {
 	 * @throws NullPointerException if the name is {@code null}
 	 */
 	public LabelStatement(String name) {
+		this(name, 0);
+	}
+	
+	
+	/**
+	 * Constructs a label statement with the specified name and line number.
+	 * @param name the name of the label
+	 * @param lineNumber the line number in the source file, or 0 if unknown
+	 * @throws NullPointerException if the name is {@code null}
+	 */
+	public LabelStatement(String name, int lineNumber) {
+		super(lineNumber);
 		if (name == null)
 			throw new NullPointerException();
 		this.name = name;
@@ -1,7 +1,18 @@
 package org.p79068.assembler;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.p79068.assembler.generator.Assembler;
 import org.p79068.assembler.parser.Parser;
@@ -12,22 +23,228 @@ import org.p79068.assembler.parser.Parser;
  */
 public final class Main {
 	
+	private static final String USAGE =
+		"Usage: java org.p79068.assembler.Main [--no-relax | --single-pass] [DEBUGOPTIONS] [CACHEOPTIONS] INPUTFILE OUTPUTFILE\n" +
+		"       java org.p79068.assembler.Main --batch [--no-relax | --single-pass] [--jobs N] [DEBUGOPTIONS] [CACHEOPTIONS] INPUTFILE OUTPUTFILE [INPUTFILE OUTPUTFILE ...]\n" +
+		"       java org.p79068.assembler.Main --manifest MANIFESTFILE [--no-relax | --single-pass] [--jobs N] [DEBUGOPTIONS] [CACHEOPTIONS]\n" +
+		"Debug options: -g [--comp-dir DIRECTORY]\n" +
+		"Cache options: --cache DIRECTORY [--cache-size MEGABYTES]\n" +
+		"  The cache directory can be shared by concurrent builds. Outputs are copies of cache entries, and without -g, identical sources hit from any directory.";
+	
+	/** The default maximum size of a build cache, in megabytes. */
+	private static final long DEFAULT_CACHE_SIZE = 1024;
+	
+	
+	
 	/**
-	 * The main method. Argument 0 is the input file name. Argument 1 is the output file name.
+	 * The main method. Argument 0 is the input file name. Argument 1 is the output file name. These can be preceded by the option {@code --no-relax}, which encodes every branch in its long form, or {@code --single-pass}, which assembles in one pass and backpatches forward label references.
+	 * <p>The option {@code -g} adds DWARF debugging information with the line number of every instruction. The input file is recorded by its name relative to the compilation directory given by {@code --comp-dir}, which defaults to {@code .}, and the directory is recorded as given, so that the output does not depend on where the build runs. Without {@code -g}, the output depends only on the input bytes and the assembly option.</p>
+	 * <p>The option {@code --cache} names a {@link BuildCache} directory, which is shared by every file assembled and can be shared with other builds running at the same time, also in other directories. Each output is a copy of its cache entry, so writing over an output later does not affect the cache. Its total size is bounded by {@code --cache-size} in megabytes, which defaults to 1024.</p>
+	 * <p>With {@code --batch}, the remaining arguments are pairs of input and output file names. With {@code --manifest}, the pairs are read from the named file, one pair per line separated by whitespace, where blank lines and lines starting with {@code #} are ignored and relative paths are resolved against the directory of the manifest. A malformed line is reported with its file name and line number, and nothing is assembled. In both batch modes, the files are assembled concurrently on a pool of {@code --jobs} threads, which defaults to the number of processors. A file that fails is reported without stopping the others, and the exit status is 1 if any file failed.</p>
 	 * @param args the list of command line arguments
 	 * @throws IOException if an I/O exception occurred
 	 */
 	public static void main(String[] args) throws IOException {
-		if (args.length != 2) {
-			System.err.println("Usage: java org.p79068.assembler.Main INPUTFILE OUTPUTFILE");
-			System.exit(1);
+		boolean batch = false;
+		File manifest = null;
+		String option = null;
+		boolean debug = false;
+		String compDir = null;
+		int jobs = Runtime.getRuntime().availableProcessors();
+		File cacheDir = null;
+		long cacheSize = -1;
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("-"); i++) {
+				if (args[i].equals("--batch") && !batch && manifest == null)
+					batch = true;
+				else if (args[i].equals("--manifest") && !batch && manifest == null && i + 1 < args.length)
+					manifest = new File(args[++i]);
+				else if ((args[i].equals("--no-relax") || args[i].equals("--single-pass")) && option == null)
+					option = args[i];
+				else if (args[i].equals("-g") && !debug)
+					debug = true;
+				else if (args[i].equals("--comp-dir") && i + 1 < args.length && compDir == null)
+					compDir = args[++i];
+				else if (args[i].equals("--jobs") && i + 1 < args.length && (batch || manifest != null))
+					jobs = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--cache") && i + 1 < args.length && cacheDir == null)
+					cacheDir = new File(args[++i]);
+				else if (args[i].equals("--cache-size") && i + 1 < args.length && cacheSize == -1)
+					cacheSize = Long.parseLong(args[++i]);
+				else
+					usage();
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+		if (jobs < 1 || cacheSize < -1 || cacheSize > Long.MAX_VALUE >> 20 || cacheSize != -1 && cacheDir == null || compDir != null && !debug)
+			usage();
+		if (debug && compDir == null)
+			compDir = ".";
+		
+		List<File> files = new ArrayList<File>();
+		for (; i < args.length; i++)
+			files.add(new File(args[i]));
+		
+		if (manifest != null) {
+			if (!files.isEmpty())
+				usage();
+			try {
+				files = readManifest(manifest);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		} else if (files.size() % 2 != 0 || files.isEmpty() || !batch && files.size() != 2) {
+			usage();
+		}
+		
+		BuildCache cache = null;
+		if (cacheDir != null)
+			cache = new BuildCache(cacheDir, (cacheSize != -1 ? cacheSize : DEFAULT_CACHE_SIZE) << 20);
+		
+		if (!batch && manifest == null) {
+			assemble(files.get(0), files.get(1), option, compDir, cache);
+			return;
 		}
 		
-		File inputfile = new File(args[0]);
-		File outputfile = new File(args[1]);
+		int numFiles = files.size() / 2;
+		int failures = assembleAll(files, option, compDir, cache, jobs, System.err);
+		if (failures > 0) {
+			System.err.printf("%d of %d files failed%n", failures, numFiles);
+			System.exit(1);
+		}
+	}
+	
+	
+	
+	/**
+	 * Assembles the specified pairs of input and output files concurrently on a pool of the specified number of threads. Every file is attempted, and each failure is reported to the specified stream, in the order of the files.
+	 * @param files the list of files, alternating between input and output
+	 * @param option the assembly option, which is {@code null}, {@code "--no-relax"}, or {@code "--single-pass"}
+	 * @param compDir the compilation directory for debugging information, or {@code null} for none
+	 * @param cache the build cache to use, or {@code null} for none
+	 * @param jobs the maximum number of files to assemble at once
+	 * @param err the stream to report failures to
+	 * @return the number of files that failed
+	 */
+	static int assembleAll(List<File> files, final String option, final String compDir, final BuildCache cache, int jobs, PrintStream err) {
+		if (files == null || err == null)
+			throw new NullPointerException();
+		if (files.size() % 2 != 0 || jobs < 1)
+			throw new IllegalArgumentException();
 		
-		Program program = Parser.parseFile(inputfile);
-		Assembler.assembleToFile(program, outputfile);
+		int numFiles = files.size() / 2;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(Math.min(jobs, numFiles), 1));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < files.size(); i += 2) {
+				final File inputfile = files.get(i);
+				final File outputfile = files.get(i + 1);
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						assemble(inputfile, outputfile, option, compDir, cache);
+						return null;
+					}
+				}));
+			}
+			
+			int failures = 0;
+			for (int i = 0; i < numFiles; i++) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					err.println(files.get(i * 2) + ": " + (cause.getMessage() != null ? cause.getMessage() : cause.toString()));
+					failures++;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			return failures;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	
+	// Assembles one file with the specified option, which is null, "--no-relax", or "--single-pass", without debugging information
+	static void assemble(File inputfile, File outputfile, String option) throws IOException {
+		assemble(inputfile, outputfile, option, null, null);
+	}
+	
+	
+	// Assembles one file with debugging information if the compilation directory is not null, and through the cache if it is not null
+	static void assemble(File inputfile, File outputfile, String option, String compDir, BuildCache cache) throws IOException {
+		if (cache != null)
+			cache.assemble(inputfile, outputfile, option, compDir);
+		else {
+			CompactProgram program = Parser.parseFileCompact(inputfile);
+			program.setSourceName(getDebugName(inputfile, compDir));
+			program.setCompilationDirectory(compDir);
+			assemble(program, outputfile, option);
+		}
+	}
+	
+	
+	// Returns the name that records the input file in the debugging information, which is relative to the compilation directory, or absolute if the file is outside it.
+	// Returns null if the directory is null, so that no debugging information is emitted
+	static String getDebugName(File inputfile, String compDir) {
+		if (compDir == null)
+			return null;
+		Path dir = new File(compDir).toPath().toAbsolutePath().normalize();
+		Path file = inputfile.toPath().toAbsolutePath().normalize();
+		return (file.startsWith(dir) ? dir.relativize(file) : file).toString();
+	}
+	
+	
+	// Assembles a parsed program with the specified option
+	static void assemble(CompactProgram program, File outputfile, String option) throws IOException {
+		if ("--single-pass".equals(option))
+			Assembler.assembleToFileSinglePass(program, outputfile);
+		else
+			Assembler.assembleToFile(program, outputfile, option == null);
+	}
+	
+	
+	/**
+	 * Reads the pairs of input and output files in the specified manifest. Each line that is not blank and does not start with {@code #} has an input file name and an output file name, separated by whitespace. Relative names are resolved against the directory of the manifest.
+	 * @param manifest the manifest file
+	 * @return the list of files, alternating between input and output
+	 * @throws IOException if an I/O exception occurred
+	 * @throws IllegalArgumentException if a line does not have exactly 2 file names
+	 */
+	static List<File> readManifest(File manifest) throws IOException {
+		List<File> result = new ArrayList<File>();
+		File dir = manifest.getAbsoluteFile().getParentFile();
+		BufferedReader in = new BufferedReader(new FileReader(manifest));
+		try {
+			int lineNumber = 0;
+			for (String line; (line = in.readLine()) != null; ) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] names = line.split("\\s+");
+				if (names.length != 2)
+					throw new IllegalArgumentException(manifest + ":" + lineNumber + ": Expected input and output file names");
+				for (String name : names) {
+					File file = new File(name);
+					result.add(file.isAbsolute() ? file : new File(dir, name));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+	
+	
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(1);
 	}
 	
 	
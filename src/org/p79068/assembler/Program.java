@@ -13,6 +13,9 @@ public final class Program {
 	/** The list of statements. */
 	private List<Statement> statements;
 	
+	/** The name of the source file, or {@code null} if unknown. */
+	private String sourceName;
+	
 	
 	
 	/**
@@ -20,6 +23,7 @@ public final class Program {
 	 */
 	public Program() {
 		statements = new ArrayList<Statement>();
+		sourceName = null;
 	}
 	
 	
@@ -33,6 +37,24 @@ public final class Program {
 	}
 	
 	
+	/**
+	 * Returns the name of the source file that this program was parsed from, or {@code null} if unknown.
+	 * @return the name of the source file, or {@code null}
+	 */
+	public String getSourceName() {
+		return sourceName;
+	}
+	
+	
+	/**
+	 * Sets the name of the source file that this program was parsed from. The line numbers of the statements refer to this file.
+	 * @param name the name of the source file, or {@code null} if unknown
+	 */
+	public void setSourceName(String name) {
+		sourceName = name;
+	}
+	
+	
 	/**
 	 * Appends the specified statement to the list of statements in this program.
 	 * @param statement the statement to append
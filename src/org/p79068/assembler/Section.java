@@ -0,0 +1,44 @@
+package org.p79068.assembler;
+
+
+/**
+ * A section of a program, selected by a section directive. The assembler lays out the sections in the order of this enum, each one in its own page-aligned segment, except that {@link #BSS} directly follows {@link #DATA} in the same segment. Statements before the first directive are in {@link #TEXT}.
+ */
+public enum Section {
+	
+	/** Executable code, which is readable and executable. */
+	TEXT(".text"),
+	
+	/** Read-only data, which is readable only. */
+	RODATA(".rodata"),
+	
+	/** Writable data, which is readable and writable. */
+	DATA(".data"),
+	
+	/** Uninitialized writable data, which is zero-filled when the program is loaded and takes no space in the file. It can only hold labels and {@code .skip} directives. */
+	BSS(".bss");
+	
+	
+	/** The directive that selects this section. */
+	public final String directive;
+	
+	
+	private Section(String directive) {
+		this.directive = directive;
+	}
+	
+	
+	/**
+	 * Returns the section selected by the specified directive, or {@code null} if the directive is not a section directive.
+	 * @param directive the directive, including the leading period
+	 * @return the section selected by the directive, or {@code null}
+	 */
+	public static Section fromDirective(String directive) {
+		for (Section sect : values()) {
+			if (sect.directive.equals(directive))
+				return sect;
+		}
+		return null;
+	}
+	
+}
@@ -0,0 +1,83 @@
+package org.p79068.assembler;
+
+
+/**
+ * A section directive statement. The statements after it, up to the next section directive, are placed in its section. Immutable.
+ */
+public class SectionStatement extends Statement {
+	
+	/**
+	 * The section that this directive selects.
+	 */
+	private Section section;
+	
+	
+	
+	/**
+	 * Constructs a section statement that selects the specified section.
+	 * @param section the section
+	 * @throws NullPointerException if the section is {@code null}
+	 */
+	public SectionStatement(Section section) {
+		this(section, 0);
+	}
+	
+	
+	/**
+	 * Constructs a section statement that selects the specified section, with the specified line number.
+	 * @param section the section
+	 * @param lineNumber the line number in the source file, or 0 if unknown
+	 * @throws NullPointerException if the section is {@code null}
+	 */
+	public SectionStatement(Section section, int lineNumber) {
+		super(lineNumber);
+		if (section == null)
+			throw new NullPointerException();
+		this.section = section;
+	}
+	
+	
+	
+	/**
+	 * Returns the section that this directive selects.
+	 * @return the section
+	 */
+	public Section getSection() {
+		return section;
+	}
+	
+	
+	/**
+	 * Compares this section statement to the specified object for equality. Returns {@code true} if the specified object is a section statement with the same section. Otherwise returns {@code false}.
+	 * @param obj the object to compare this section statement against
+	 * @return {@code true} if the object is a section statement with the same section, {@code false} otherwise
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SectionStatement))
+			return false;
+		else
+			return section == ((SectionStatement)obj).section;
+	}
+	
+	
+	/**
+	 * Returns the hash code for this section statement.
+	 * @return the hash code for this section statement
+	 */
+	@Override
+	public int hashCode() {
+		return section.hashCode();
+	}
+	
+	
+	/**
+	 * Returns a string representation of this section statement. The format is subjected to change.
+	 * @return a string representation of this section statement
+	 */
+	@Override
+	public String toString() {
+		return section.directive;
+	}
+	
+}
@@ -8,8 +8,39 @@ package org.p79068.assembler;
 public abstract class Statement {
 	
 	/**
-	 * Constructs a program statement.
+	 * The line number of this statement in its source file, or 0 if unknown.
 	 */
-	Statement() {}
+	private int lineNumber;
+	
+	
+	
+	/**
+	 * Constructs a program statement with an unknown line number.
+	 */
+	Statement() {
+		this(0);
+	}
+	
+	
+	/**
+	 * Constructs a program statement with the specified line number.
+	 * @param lineNumber the line number in the source file, or 0 if unknown
+	 * @throws IllegalArgumentException if the line number is negative
+	 */
+	Statement(int lineNumber) {
+		if (lineNumber < 0)
+			throw new IllegalArgumentException("Negative line number");
+		this.lineNumber = lineNumber;
+	}
+	
+	
+	
+	/**
+	 * Returns the line number of this statement in its source file, starting at 1, or 0 if unknown. The line number is not part of the statement's identity, so it is ignored by {@code equals()}.
+	 * @return the line number of this statement, or 0
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
 	
 }
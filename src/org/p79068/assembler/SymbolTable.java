@@ -0,0 +1,136 @@
+package org.p79068.assembler;
+
+import java.util.Arrays;
+
+import org.p79068.assembler.operand.Label;
+
+
+/**
+ * A table that interns label names to dense integer IDs, starting at 0 in order of first appearance. Each name has one shared {@link Label} object that carries its ID, so that a label's offset can be resolved by indexing an {@code int[]} with {@link Label#getId()}. Names are stored in a primitive open-addressing hash table. Symbol tables are mutable, but names can only be added, or all removed at once.
+ */
+public final class SymbolTable {
+	
+	/** The labels, indexed by ID. Only the first {@code size} entries are used. */
+	private Label[] labels;
+	
+	/** The number of labels. */
+	private int size;
+	
+	/** The open-addressing hash table, holding the ID of the label in each slot, or -1 for empty slots. The length is a power of 2 and at least twice the size. */
+	private int[] slots;
+	
+	
+	
+	/**
+	 * Constructs an empty symbol table.
+	 */
+	public SymbolTable() {
+		labels = new Label[16];
+		size = 0;
+		slots = new int[32];
+		Arrays.fill(slots, -1);
+	}
+	
+	
+	
+	/**
+	 * Returns the number of labels in this table. The IDs are in the range [0, size).
+	 * @return the number of labels
+	 */
+	public int size() {
+		return size;
+	}
+	
+	
+	/**
+	 * Returns the ID of the label with the specified name, adding the name to this table if it is not already present.
+	 * @param name the name of the label
+	 * @return the ID of the label
+	 */
+	public int intern(String name) {
+		if (name == null)
+			throw new NullPointerException();
+		int i = find(name);
+		if (slots[i] != -1)
+			return slots[i];
+		
+		int id = size;
+		if (id == labels.length)
+			labels = Arrays.copyOf(labels, id * 2);
+		labels[id] = new Label(name, id);
+		slots[i] = id;
+		size++;
+		if (size * 2 > slots.length)
+			rehash();
+		return id;
+	}
+	
+	
+	/**
+	 * Removes all the labels from this table, so that IDs start at 0 again. The storage is kept, so that the table can be reused without reallocating, and only the occupied slots are emptied, so that clearing a small table after a large one is cheap.
+	 */
+	public void clear() {
+		// In reverse order of ID, because the slots probed before reaching a label's slot are all held by labels with lower IDs
+		for (int id = size - 1; id >= 0; id--) {
+			slots[find(labels[id].getName())] = -1;
+			labels[id] = null;
+		}
+		size = 0;
+	}
+	
+	
+	/**
+	 * Returns the ID of the label with the specified name, or -1 if the name is not in this table.
+	 * @param name the name of the label
+	 * @return the ID of the label, or -1
+	 */
+	public int getId(String name) {
+		if (name == null)
+			throw new NullPointerException();
+		return slots[find(name)];
+	}
+	
+	
+	/**
+	 * Returns the shared label object for the specified ID.
+	 * @param id the ID of the label
+	 * @return the label with the ID
+	 * @throws IndexOutOfBoundsException if the ID is out of range
+	 */
+	public Label getLabel(int id) {
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException();
+		return labels[id];
+	}
+	
+	
+	/**
+	 * Returns the name of the label with the specified ID.
+	 * @param id the ID of the label
+	 * @return the name of the label
+	 * @throws IndexOutOfBoundsException if the ID is out of range
+	 */
+	public String getName(int id) {
+		return getLabel(id).getName();
+	}
+	
+	
+	// Returns the slot holding the name, or the empty slot where it would be inserted
+	private int find(String name) {
+		int mask = slots.length - 1;
+		int h = name.hashCode() * 0x9E3779B9;
+		int i = (h ^ h >>> 16) & mask;
+		while (slots[i] != -1 && !labels[slots[i]].getName().equals(name))
+			i = (i + 1) & mask;
+		return i;
+	}
+	
+	
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		Arrays.fill(slots, -1);
+		for (int id = 0; id < size; id++)
+			slots[find(labels[id].getName())] = id;
+	}
+	
+}
@@ -1,119 +1,776 @@
 package org.p79068.assembler.generator;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.HashMap;
+import java.nio.BufferOverflowException;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import org.p79068.assembler.CompactProgram;
 import org.p79068.assembler.InstructionStatement;
-import org.p79068.assembler.LabelStatement;
 import org.p79068.assembler.Program;
-import org.p79068.assembler.Statement;
-import org.p79068.assembler.operand.Operand;
+import org.p79068.assembler.Section;
+import org.p79068.assembler.SymbolTable;
+import org.p79068.assembler.operand.OperandKind;
+import org.p79068.libelf.CompileUnit;
 import org.p79068.libelf.ElfFile;
 import org.p79068.libelf.ElfHeader;
+import org.p79068.libelf.ElfSymbolTable;
+import org.p79068.libelf.LineNumberProgram;
 import org.p79068.libelf.ObjectType;
 import org.p79068.libelf.ProgramHeader;
+import org.p79068.libelf.SectionHeader;
+import org.p79068.libelf.SectionType;
 import org.p79068.libelf.SegmentType;
+import org.p79068.libelf.StringTable;
+import org.p79068.util.ByteBuffer;
 
 
 public final class Assembler {
 	
-	private static InstructionPatternTable patterntable = InstructionPatternTable.MODE32_TABLE;
+	private static final InstructionPatternTable patterntable = InstructionPatternTable.MODE32_TABLE;
 	
-	private static final int ENTRY_POINT = 0x00100054;
+	/** The address that file offset 0 is mapped to. */
+	private static final int BASE_ADDRESS = 0x00100000;
 	
+	private static final int PAGE_SIZE = 0x1000;
+	
+	private static final int NUM_SECTIONS = Section.values().length;
+	
+	/** The segment permissions of each section, indexed by section ordinal. */
+	private static final int[] SEGMENT_FLAGS = {
+		ProgramHeader.PF_R | ProgramHeader.PF_X,  // TEXT
+		ProgramHeader.PF_R,                       // RODATA
+		ProgramHeader.PF_R | ProgramHeader.PF_W,  // DATA
+		ProgramHeader.PF_R | ProgramHeader.PF_W,  // BSS, which is in the data segment
+	};
+	
+	/** The section header flags of each section, indexed by section ordinal. */
+	private static final int[] SECTION_FLAGS = {
+		SectionHeader.SHF_ALLOC | SectionHeader.SHF_EXECINSTR,  // TEXT
+		SectionHeader.SHF_ALLOC,                                // RODATA
+		SectionHeader.SHF_ALLOC | SectionHeader.SHF_WRITE,      // DATA
+		SectionHeader.SHF_ALLOC | SectionHeader.SHF_WRITE,      // BSS
+	};
+	
+	/* The section headers are the null header, one for each section in order, then the symbol table, its string table, and the section name string table */
+	private static final int SYMTAB_INDEX = 1 + NUM_SECTIONS;
+	private static final int STRTAB_INDEX = SYMTAB_INDEX + 1;
+	private static final short SHSTRTAB_INDEX = (short)(STRTAB_INDEX + 1);
+	private static final int NUM_SECTION_HEADERS = SHSTRTAB_INDEX + 1;
+	
+	/** The number of extra section headers for the DWARF debugging sections, which come after the others: {@code .debug_abbrev}, {@code .debug_info}, and {@code .debug_line}. */
+	private static final int NUM_DEBUG_SECTION_HEADERS = 3;
+	
+	/** The producer name recorded in the debugging information. */
+	private static final String PRODUCER = "Project79068 assembler";
+	
+	/** The version of the output file format. Increment this whenever a change to the assembler changes the output for the same input, other than through the pattern table. */
+	private static final int OUTPUT_VERSION = 2;
+	
+	/**
+	 * The minimum number of statements in a range for parallel assembly. Programs with fewer than twice this many statements are assembled as a single range.
+	 */
+	private static final int MIN_PARALLEL_RANGE_SIZE = 16384;
+	
+	
+	
+	/**
+	 * Returns a string that identifies everything besides the program, its source name, and its compilation directory that determines the output of the {@code assembleToFile} methods: the output format version, the base address, and the fingerprint of the pattern table. Two assemblers with the same configuration produce the same file from the same program.
+	 * @return the configuration of this assembler, as a string
+	 */
+	public static String getConfiguration() {
+		return String.format("v%d base=%08X table=%s", OUTPUT_VERSION, BASE_ADDRESS, patterntable.getFingerprint());
+	}
 	
 	
 	public static void assembleToFile(Program program, File outputfile) throws IOException {
+		assembleToFile(program, outputfile, true);
+	}
+	
+	
+	// With branch relaxation, a branch is encoded in its short form if its target is within reach. Otherwise every branch is encoded in its widest form
+	public static void assembleToFile(Program program, File outputfile, boolean relaxBranches) throws IOException {
 		if (program == null || outputfile == null)
 			throw new NullPointerException();
+		assembleToFile(CompactProgram.fromProgram(program), outputfile, relaxBranches);
+	}
+	
+	
+	public static void assembleToFile(CompactProgram program, File outputfile) throws IOException {
+		assembleToFile(program, outputfile, true);
+	}
+	
+	
+	public static void assembleToFile(CompactProgram program, File outputfile, boolean relaxBranches) throws IOException {
+		if (program == null || outputfile == null)
+			throw new NullPointerException();
+		writeElfFile(program, assembleToBuffers(new AssemblerContext(), program, relaxBranches, null, 1, elfLayout(program)), outputfile);
+	}
+	
+	
+	/**
+	 * Assembles the specified program to the specified file with branch relaxation, using the common fork-join pool. The output is the same as {@link #assembleToFile(CompactProgram, File)}.
+	 * @param program the program to assemble
+	 * @param outputfile the file to write
+	 * @throws IOException if an I/O exception occurred
+	 * @see #assembleToFileParallel(CompactProgram, File, ForkJoinPool)
+	 */
+	public static void assembleToFileParallel(CompactProgram program, File outputfile) throws IOException {
+		assembleToFileParallel(program, outputfile, ForkJoinPool.commonPool());
+	}
+	
+	
+	/**
+	 * Assembles the specified program to the specified file with branch relaxation, using the specified fork-join pool. The statements are split into contiguous ranges. Each range is matched, laid out, and encoded into its own buffer as a separate task, and the start offset of each range is the prefix sum of the lengths of the ranges before it. The output is the same as {@link #assembleToFile(CompactProgram, File)}.
+	 * @param program the program to assemble
+	 * @param outputfile the file to write
+	 * @param pool the pool to run the ranges on
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static void assembleToFileParallel(CompactProgram program, File outputfile, ForkJoinPool pool) throws IOException {
+		if (program == null || outputfile == null || pool == null)
+			throw new NullPointerException();
+		int numRanges = (int)Math.max(Math.min((long)pool.getParallelism() * 4, program.getStatementCount() / MIN_PARALLEL_RANGE_SIZE), 1);
+		writeElfFile(program, assembleToBuffers(new AssemblerContext(), program, true, pool, numRanges, elfLayout(program)), outputfile);
+	}
+	
+	
+	/**
+	 * Assembles the specified program to the specified file in a single pass. Each instruction is matched and encoded once, as soon as it is reached. A reference to a label that is not placed yet is emitted as zero and patched after the last statement. A branch to a label that is already placed uses its short form if the target is in range, and a forward branch or a branch to a numeric address always uses its long form, so the output can be larger than with {@link #assembleToFile(CompactProgram, File, boolean) branch relaxation}.
+	 * @param program the program to assemble
+	 * @param outputfile the file to write
+	 * @throws IOException if an I/O exception occurred
+	 * @throws IllegalArgumentException if the program has an invalid instruction, or an undefined or duplicate label
+	 */
+	public static void assembleToFileSinglePass(CompactProgram program, File outputfile) throws IOException {
+		if (program == null || outputfile == null)
+			throw new NullPointerException();
+		writeElfFile(program, assembleSinglePass(new AssemblerContext(), program, elfLayout(program)), outputfile);
+	}
+	
+	
+	/**
+	 * Assembles the specified program into the specified buffer as a flat image, without writing any file. There are no headers: the text, read-only data, and data sections are placed one after another starting at the specified base address, and the .bss section follows the data section in memory but is not part of the image. The image is written at the buffer's position, which is advanced past it, and nothing is written if it does not fit. Branches are relaxed as in {@link #assembleToFile(CompactProgram, File)}.
+	 * <p>This method is thread-safe, and programs can be assembled concurrently. To avoid allocating scratch state on every call, use an {@link AssemblerContext} per thread instead.</p>
+	 * @param program the program to assemble
+	 * @param baseAddress the address of the first byte of the image
+	 * @param out the buffer to write the image to
+	 * @return the address of each label, by name, in the order of the program's symbol table
+	 * @throws IllegalArgumentException if the program has an invalid instruction, or an undefined or duplicate label, or the image does not fit in the address space above the base address
+	 * @throws BufferOverflowException if the image is longer than the remaining space in the buffer
+	 * @throws ReadOnlyBufferException if the buffer is read-only
+	 */
+	public static Map<String,Integer> assemble(CompactProgram program, int baseAddress, java.nio.ByteBuffer out) {
+		if (program == null || out == null)
+			throw new NullPointerException();
+		int[] labelOffsets = assembleFlat(new AssemblerContext(), program, false, baseAddress, out);
 		
-		Map<String,Integer> labelOffsets = computeLabelOffsets(program);
-		assembleProgram(program, labelOffsets, outputfile);
+		SymbolTable symbols = program.getSymbolTable();
+		Map<String,Integer> result = new LinkedHashMap<String,Integer>();
+		for (int id = 0; id < symbols.size(); id++)
+			result.put(symbols.getName(id), labelOffsets[id]);
+		return result;
+	}
+	
+	
+	/**
+	 * Assembles the specified program into the specified buffer as a flat image, without writing any file. The result is the same as {@link #assemble(CompactProgram, int, java.nio.ByteBuffer)}.
+	 * @param program the program to assemble
+	 * @param baseAddress the address of the first byte of the image
+	 * @param out the buffer to write the image to
+	 * @return the address of each label, by name
+	 * @throws IllegalArgumentException if the program has an invalid instruction, or an undefined or duplicate label, or the image does not fit in the address space above the base address
+	 * @throws BufferOverflowException if the image is longer than the remaining space in the buffer
+	 * @throws ReadOnlyBufferException if the buffer is read-only
+	 */
+	public static Map<String,Integer> assemble(Program program, int baseAddress, java.nio.ByteBuffer out) {
+		if (program == null || out == null)
+			throw new NullPointerException();
+		return assemble(CompactProgram.fromProgram(program), baseAddress, out);
 	}
 	
 	
-	private static Map<String,Integer> computeLabelOffsets(Program program) {
-		Map<String,Integer> result = new HashMap<String,Integer>();
-		int offset = ENTRY_POINT;
-		for (Statement st : program.getStatements()) {
-			if (st instanceof InstructionStatement) {
-				InstructionStatement ist = (InstructionStatement)st;
-				String mnemonic = ist.getMnemonic();
-				List<Operand> operands = ist.getOperands();
-				int length = CodeGenerator.getMachineCodeLength(patterntable, mnemonic, operands);
-				offset += length;
-			} else if (st instanceof LabelStatement) {
-				String name = ((LabelStatement)st).getName();
-				result.put(name, offset);
+	// Assembles the program into the buffer as a flat image, using the scratch state of the context, and returns the address of each label indexed by label ID
+	static int[] assembleFlat(AssemblerContext context, CompactProgram program, boolean singlePass, int baseAddress, java.nio.ByteBuffer out) {
+		if (out.isReadOnly())
+			throw new ReadOnlyBufferException();
+		Image image;
+		if (singlePass)
+			image = assembleSinglePass(context, program, flatLayout(baseAddress));
+		else
+			image = assembleToBuffers(context, program, true, null, 1, flatLayout(baseAddress));
+		
+		long length = 0;
+		for (int i = 0; i < NUM_SECTIONS; i++) {
+			if (i != Section.BSS.ordinal())
+				length += image.sectionLengths[i];
+		}
+		if (length > out.remaining())
+			throw new BufferOverflowException();
+		for (int i = 0; i < NUM_SECTIONS; i++) {
+			if (i != Section.BSS.ordinal()) {
+				for (ByteBuffer b : image.code[i])
+					out.put(b.asNioBuffer());
 			}
 		}
+		return image.labelOffsets;
+	}
+	
+	
+	// The layout and encoding passes run over contiguous ranges of statements, on the pool if it is not null, or else in the calling thread.
+	// The arrays and buffers come from the context, and are only valid until it is next used.
+	private static Image assembleToBuffers(AssemblerContext context, final CompactProgram program, final boolean relaxBranches, ForkJoinPool pool, int numRanges, SectionLayout layout) {
+		checkLabels(context, program);
+		int numStatements = program.getStatementCount();
+		final int[] bounds = new int[numRanges + 1];
+		for (int i = 0; i <= numRanges; i++)
+			bounds[i] = (int)((long)numStatements * i / numRanges);
+		
+		// Match every instruction, recording the pattern and machine code length of each, which the encoding pass reuses.
+		// With relaxation, every branch that has a short form starts out short.
+		final InstructionPattern[] patterns = context.getPatterns(numStatements);
+		final InstructionPattern[] longPatterns = context.getLongPatterns(numStatements);
+		final int[] lengths = context.getLengths(numStatements);
+		runRanges(pool, bounds, new RangeTask<Void>() {
+			public Void run(int index, int start, int end) {
+				matchRange(program, start, end, relaxBranches, patterns, longPatterns, lengths);
+				return null;
+			}
+		});
+		
+		// Lengthen the short branches whose targets are out of range, until nothing changes. Branches only ever grow, so this terminates
+		final int[] labelOffsets = context.getLabelOffsets(program.getSymbolTable().size());
+		while (true) {
+			final int[][] starts = computeLayout(program, lengths, labelOffsets, pool, bounds, layout);
+			List<Boolean> changed = runRanges(pool, bounds, new RangeTask<Boolean>() {
+				public Boolean run(int index, int start, int end) {
+					return lengthenRange(program, start, end, patterns, longPatterns, lengths, labelOffsets, starts[index]);
+				}
+			});
+			if (!changed.contains(true))
+				break;
+		}
+		
+		// Encode each range into its own buffer per section at its start offsets. The buffers are written out in order without being concatenated
+		final int[][] starts = computeLayout(program, lengths, labelOffsets, pool, bounds, layout);
+		final ByteBuffer[][] parts = context.getRangeBuffers(numRanges);
+		runRanges(pool, bounds, new RangeTask<Void>() {
+			public Void run(int index, int start, int end) {
+				encodeRange(program, start, end, patterns, lengths, labelOffsets, starts[index], starts[index + 1], parts[index]);
+				return null;
+			}
+		});
+		
+		// The line table is built in order, because each row is encoded relative to the previous one. This only reads the lengths and line numbers, so it is cheap next to encoding
+		LineNumberProgram lines = null;
+		if (program.getSourceName() != null) {
+			lines = new LineNumberProgram();
+			int offset = starts[0][Section.TEXT.ordinal()];
+			for (int i = 0; i < numStatements; i++) {
+				if (program.getSection(i) == Section.TEXT) {
+					if (lengths[i] > 0 && program.getLineNumber(i) > 0)
+						lines.addRow(offset, program.getLineNumber(i));
+					offset += lengths[i];
+				}
+			}
+			lines.endSequence(offset);
+		}
+		Image result = new Image(new ByteBuffer[NUM_SECTIONS][numRanges], new int[NUM_SECTIONS], labelOffsets, lines);
+		for (int i = 0; i < numRanges; i++) {
+			for (int j = 0; j < NUM_SECTIONS; j++)
+				result.code[j][i] = parts[i][j];
+		}
+		for (int j = 0; j < NUM_SECTIONS; j++)
+			result.sectionLengths[j] = starts[numRanges][j] - starts[0][j];
 		return result;
 	}
 	
 	
-	private static void assembleProgram(Program program, Map<String,Integer> labelOffsets, File outputfile) throws IOException {
-		byte[] code = assembleToBytes(program, labelOffsets);
+	// Computes the label offsets and returns the start offset of each section in each range, plus the end offsets of the last range.
+	// This is a prefix sum: the length of each section in each range in parallel, then the section addresses and range start offsets in order, then the labels of each range in parallel.
+	private static int[][] computeLayout(final CompactProgram program, final int[] lengths, final int[] labelOffsets, ForkJoinPool pool, int[] bounds, SectionLayout layout) {
+		List<long[]> rangeLengths = runRanges(pool, bounds, new RangeTask<long[]>() {
+			public long[] run(int index, int start, int end) {
+				long[] sums = new long[NUM_SECTIONS];
+				for (int i = start; i < end; i++)
+					sums[program.getSection(i).ordinal()] += lengths[i];
+				return sums;
+			}
+		});
+		
+		// Once the sections fit, so does every range, because no length is negative
+		long[] totals = new long[NUM_SECTIONS];
+		for (long[] sums : rangeLengths) {
+			for (int j = 0; j < NUM_SECTIONS; j++)
+				totals[j] += sums[j];
+		}
+		int[] sectionLengths = new int[NUM_SECTIONS];
+		for (int j = 0; j < NUM_SECTIONS; j++)
+			sectionLengths[j] = checkSectionLength(j, totals[j]);
+		final int[][] starts = new int[bounds.length][];
+		starts[0] = layout.getAddresses(sectionLengths);
+		for (int i = 0; i < rangeLengths.size(); i++) {
+			starts[i + 1] = new int[NUM_SECTIONS];
+			for (int j = 0; j < NUM_SECTIONS; j++)
+				starts[i + 1][j] = starts[i][j] + (int)rangeLengths.get(i)[j];
+		}
+		
+		runRanges(pool, bounds, new RangeTask<Void>() {
+			public Void run(int index, int start, int end) {
+				int[] offsets = starts[index].clone();
+				for (int i = start; i < end; i++) {
+					int sect = program.getSection(i).ordinal();
+					if (program.isLabel(i))
+						labelOffsets[program.getLabelId(i)] = offsets[sect];
+					offsets[sect] += lengths[i];
+				}
+				return null;
+			}
+		});
+		return starts;
+	}
+	
+	
+	// Places the sections as in an ELF file, at the addresses given by computeSectionAddresses()
+	private static SectionLayout elfLayout(final CompactProgram program) {
+		final int numSectionHeaders = getNumSectionHeaders(program);
+		return new SectionLayout() {
+			public int[] getAddresses(int[] sectionLengths) {
+				return computeSectionAddresses(sectionLengths, numSectionHeaders);
+			}
+		};
+	}
+	
+	
+	// Places the sections back to back starting at the base address, with no headers or padding
+	private static SectionLayout flatLayout(final int baseAddress) {
+		return new SectionLayout() {
+			public int[] getAddresses(int[] sectionLengths) {
+				int[] result = new int[NUM_SECTIONS];
+				long address = baseAddress & 0xFFFFFFFFL;
+				for (int i = 0; i < NUM_SECTIONS; i++) {
+					result[i] = (int)address;
+					address += sectionLengths[i];
+				}
+				if (address > 0x100000000L)
+					throw new IllegalArgumentException("Program does not fit above base address");
+				return result;
+			}
+		};
+	}
+	
+	
+	// Returns the start address of each section. The text section follows the headers, and every other section with a segment starts on a new page, so that it gets its own permissions. The .bss section directly follows the data section.
+	// Each address is the file offset plus BASE_ADDRESS.
+	private static int[] computeSectionAddresses(int[] sectionLengths, int numSectionHeaders) {
+		int numSegments = 0;
+		for (int i = 0; i < NUM_SECTIONS; i++) {
+			if (hasSegment(i, sectionLengths))
+				numSegments++;
+		}
+		
+		int[] result = new int[NUM_SECTIONS];
+		long offset = ElfFile.getHeaderSize(numSegments, numSectionHeaders);
+		for (int i = 0; i < NUM_SECTIONS; i++) {
+			if (i != Section.TEXT.ordinal() && hasSegment(i, sectionLengths))
+				offset = (offset + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+			result[i] = (int)(BASE_ADDRESS + offset);
+			offset += sectionLengths[i];
+		}
+		if (BASE_ADDRESS + offset > 0x100000000L)
+			throw new IllegalArgumentException("Program does not fit in the 32-bit address space");
+		return result;
+	}
+	
+	
+	// Returns the length of a section, which must fit in an int like every offset within it
+	private static int checkSectionLength(int section, long length) {
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Section too large: " + Section.values()[section].directive);
+		return (int)length;
+	}
+	
+	
+	// Debugging information is only emitted for programs that come from a source file
+	private static int getNumSectionHeaders(CompactProgram program) {
+		if (program.getSourceName() != null)
+			return NUM_SECTION_HEADERS + NUM_DEBUG_SECTION_HEADERS;
+		else
+			return NUM_SECTION_HEADERS;
+	}
+	
+	
+	// The text section always has a segment, because it holds the entry point. The .bss section has no segment of its own, but extends the memory of the data segment
+	private static boolean hasSegment(int section, int[] sectionLengths) {
+		if (section == Section.BSS.ordinal())
+			return false;
+		else if (section == Section.DATA.ordinal())
+			return sectionLengths[section] > 0 || sectionLengths[Section.BSS.ordinal()] > 0;
+		else
+			return section == Section.TEXT.ordinal() || sectionLengths[section] > 0;
+	}
+	
+	
+	// Returns the number of bytes reserved by the specified .skip directive, or -1 if the statement is not a .skip directive.
+	// Every other statement in the .bss section is an error, because the section has no bytes in the file.
+	private static int getSkipLength(CompactProgram program, int index) {
+		String mnemonic = program.getMnemonic(index);
+		if (!mnemonic.equals(InstructionStatement.SKIP)) {
+			if (program.getSection(index) == Section.BSS)
+				throw new IllegalArgumentException("Initialized data in .bss: " + mnemonic);
+			return -1;
+		}
+		int operand = program.getOperandStart(index);
+		if (program.getOperandCount(index) != 1 || (program.getOperandKinds(operand) & OperandKind.IMM) == 0 || program.getOperandValue(operand) < 0)
+			throw new IllegalArgumentException("Invalid size for " + InstructionStatement.SKIP);
+		return program.getOperandValue(operand);
+	}
+	
+	
+	private static void matchRange(CompactProgram program, int start, int end, boolean relaxBranches, InstructionPattern[] patterns, InstructionPattern[] longPatterns, int[] lengths) {
+		for (int i = start; i < end; i++) {
+			patterns[i] = null;
+			longPatterns[i] = null;
+			lengths[i] = 0;
+			if (!program.isLabel(i)) {
+				int skip = getSkipLength(program, i);
+				if (skip != -1) {
+					lengths[i] = skip;
+					continue;
+				}
+				InstructionPattern pat = patterntable.match(program, i);
+				if (relaxBranches) {
+					InstructionPattern shortpat = patterntable.getShortForm(pat);
+					if (shortpat != null) {
+						longPatterns[i] = pat;
+						pat = shortpat;
+					}
+				}
+				patterns[i] = pat;
+				lengths[i] = CodeGenerator.getMachineCodeLength(pat, program, program.getOperandStart(i));
+			}
+		}
+	}
+	
+	
+	// Lengthens the short branches in the range whose targets are out of range under the current layout, and returns whether any were lengthened
+	private static boolean lengthenRange(CompactProgram program, int start, int end, InstructionPattern[] patterns, InstructionPattern[] longPatterns, int[] lengths, int[] labelOffsets, int[] startOffsets) {
+		int[] offsets = startOffsets.clone();
+		boolean changed = false;
+		for (int i = start; i < end; i++) {
+			int sect = program.getSection(i).ordinal();
+			int offset = offsets[sect];
+			int length = lengths[i];
+			if (longPatterns[i] != null && patterns[i] != longPatterns[i]) {
+				int first = program.getOperandStart(i);
+				if (!CodeGenerator.isInRange(patterns[i], length, program, first, labelOffsets, offset)) {
+					patterns[i] = longPatterns[i];
+					lengths[i] = CodeGenerator.getMachineCodeLength(patterns[i], program, first);
+					changed = true;
+				}
+			}
+			offsets[sect] += length;
+		}
+		return changed;
+	}
+	
+	
+	// Appends the code of each section to the empty buffers. A .skip directive has no pattern. It emits zeros, except in the .bss section, whose buffer stays empty
+	private static void encodeRange(CompactProgram program, int start, int end, InstructionPattern[] patterns, int[] lengths, int[] labelOffsets, int[] startOffsets, int[] endOffsets, ByteBuffer[] out) {
+		for (int i = 0; i < NUM_SECTIONS; i++) {
+			if (i != Section.BSS.ordinal())
+				out[i].ensureCapacity(endOffsets[i] - startOffsets[i]);
+		}
+		int[] offsets = startOffsets.clone();
+		for (int i = start; i < end; i++) {
+			int sect = program.getSection(i).ordinal();
+			int offset = offsets[sect];
+			if (!program.isLabel(i)) {
+				if (patterns[i] != null)
+					CodeGenerator.makeMachineCode(patterns[i], lengths[i], program, program.getOperandStart(i), labelOffsets, offset, out[sect]);
+				else if (sect != Section.BSS.ordinal())
+					out[sect].appendZeros(lengths[i]);
+				offsets[sect] += lengths[i];
+			} else {
+				if (offset != labelOffsets[program.getLabelId(i)])
+					throw new AssertionError("Label offset mismatch");
+			}
+		}
+	}
+	
+	
+	// Runs the task on each range, on the pool if it is not null, and returns the results in order
+	private static <T> List<T> runRanges(ForkJoinPool pool, int[] bounds, final RangeTask<T> task) {
+		List<T> result = new ArrayList<T>();
+		if (pool == null) {
+			for (int i = 0; i + 1 < bounds.length; i++)
+				result.add(task.run(i, bounds[i], bounds[i + 1]));
+		} else {
+			List<ForkJoinTask<T>> tasks = new ArrayList<ForkJoinTask<T>>();
+			for (int i = 0; i + 1 < bounds.length; i++) {
+				final int index = i;
+				final int start = bounds[i];
+				final int end = bounds[i + 1];
+				tasks.add(pool.submit(new Callable<T>() {
+					public T call() {
+						return task.run(index, start, end);
+					}
+				}));
+			}
+			for (ForkJoinTask<T> t : tasks)
+				result.add(t.join());
+		}
+		return result;
+	}
+	
+	
+	// The symbol table holds every label that is declared or referenced, so each one must be declared exactly once
+	private static void checkLabels(AssemblerContext context, CompactProgram program) {
+		SymbolTable symbols = program.getSymbolTable();
+		boolean[] declared = context.getDeclared(symbols.size());
+		for (int i = 0; i < program.getStatementCount(); i++) {
+			if (program.isLabel(i)) {
+				int id = program.getLabelId(i);
+				if (declared[id])
+					throw new IllegalArgumentException("Duplicate label: " + symbols.getName(id));
+				declared[id] = true;
+			}
+		}
+		for (int id = 0; id < symbols.size(); id++) {
+			if (!declared[id])
+				throw new IllegalArgumentException("Undefined label: " + symbols.getName(id));
+		}
+	}
+	
+	
+	// Writes each section as its own loadable segment, with the buffers of each section in order.
+	// The .bss section is not written; the data segment's memory size covers it, and the loader fills it with zeros.
+	// Every section also has a section header, and every label becomes a symbol, so that debuggers and profilers can symbolize addresses. The symbol and string tables follow the last segment, and are not loaded.
+	private static void writeElfFile(CompactProgram program, Image image, File outputfile) throws IOException {
+		int[] sectionLengths = image.sectionLengths;
+		int[] addresses = computeSectionAddresses(sectionLengths, getNumSectionHeaders(program));
 		
 		ElfFile elf = new ElfFile();
 		
 		ElfHeader eh = new ElfHeader();
 		eh.type = ObjectType.ET_EXEC;
-		eh.entry = ENTRY_POINT;
-		eh.shstrndx = 0;
+		eh.entry = addresses[Section.TEXT.ordinal()];
+		eh.shstrndx = SHSTRTAB_INDEX;
 		elf.elfHeader = eh;
 		
-		ProgramHeader ph = new ProgramHeader();
-		ph.type = SegmentType.PT_LOAD;
-		ph.vaddr = ENTRY_POINT;
-		ph.filesz = code.length;
-		ph.memsz = code.length;
-		ph.flags = 0x7;
-		ph.align = 0x1000;
-		elf.programHeaders.add(ph);
-		ph.offset = elf.getDataOffset();
+		// The padding before each page-aligned segment is written as a buffer of zeros
+		List<java.nio.ByteBuffer> data = new ArrayList<java.nio.ByteBuffer>();
+		int fileOffset = addresses[Section.TEXT.ordinal()] - BASE_ADDRESS;  // The end of the headers
+		for (int i = 0; i < NUM_SECTIONS; i++) {
+			if (!hasSegment(i, sectionLengths))
+				continue;
+			ProgramHeader ph = new ProgramHeader();
+			ph.type = SegmentType.PT_LOAD;
+			ph.offset = addresses[i] - BASE_ADDRESS;
+			ph.vaddr = addresses[i];
+			ph.filesz = sectionLengths[i];
+			ph.memsz = sectionLengths[i];
+			if (i == Section.DATA.ordinal())
+				ph.memsz += sectionLengths[Section.BSS.ordinal()];
+			ph.flags = SEGMENT_FLAGS[i];
+			ph.align = PAGE_SIZE;
+			elf.programHeaders.add(ph);
+			
+			if (ph.filesz == 0)
+				continue;
+			if (ph.offset > fileOffset)
+				data.add(java.nio.ByteBuffer.allocate(ph.offset - fileOffset));
+			for (ByteBuffer b : image.code[i])
+				data.add(b.asNioBuffer());
+			fileOffset = ph.offset + ph.filesz;
+		}
+		
+		StringTable sectionNames = new StringTable();
+		elf.sectionHeaders.add(makeSectionHeader(0, SectionType.SHT_NULL, 0, 0, 0, 0));
+		for (Section sect : Section.values()) {
+			int i = sect.ordinal();
+			SectionHeader sh = makeSectionHeader(sectionNames.add(sect.directive), SectionType.SHT_PROGBITS, SECTION_FLAGS[i], addresses[i], addresses[i] - BASE_ADDRESS, sectionLengths[i]);
+			if (sect == Section.BSS)
+				sh.type = SectionType.SHT_NOBITS;
+			elf.sectionHeaders.add(sh);
+		}
+		
+		// The symbol table is 4-byte aligned
+		ElfSymbolTable symbols = makeSymbolTable(program, image.labelOffsets, addresses, sectionLengths);
+		int padding = -fileOffset & 3;
+		data.add(java.nio.ByteBuffer.allocate(padding));
+		fileOffset += padding;
+		
+		SectionHeader symtab = makeSectionHeader(sectionNames.add(".symtab"), SectionType.SHT_SYMTAB, 0, 0, fileOffset, symbols.size() * symbols.getEntrySize());
+		symtab.link = STRTAB_INDEX;
+		symtab.info = symbols.size();  // Every symbol is local
+		symtab.addralign = 4;
+		symtab.entsize = symbols.getEntrySize();
+		elf.sectionHeaders.add(symtab);
+		data.add(symbols.asNioBuffer());
+		fileOffset += symtab.size;
+		
+		StringTable symbolNames = symbols.getStringTable();
+		elf.sectionHeaders.add(makeSectionHeader(sectionNames.add(".strtab"), SectionType.SHT_STRTAB, 0, 0, fileOffset, symbolNames.length()));
+		data.add(symbolNames.asNioBuffer());
+		fileOffset += symbolNames.length();
 		
-		elf.data = code;
+		SectionHeader shstrtab = makeSectionHeader(sectionNames.add(".shstrtab"), SectionType.SHT_STRTAB, 0, 0, 0, 0);
+		elf.sectionHeaders.add(shstrtab);
 		
-		OutputStream out0 = new FileOutputStream(outputfile);
-		OutputStream out = new BufferedOutputStream(out0);
+		// The compilation unit covers the text section, and its line number program is at the start of the line table
+		if (image.lines != null) {
+			String fileName = program.getSourceName();
+			int textAddress = addresses[Section.TEXT.ordinal()];
+			byte[] abbrev = CompileUnit.getDebugAbbrevBytes();
+			byte[] info = CompileUnit.getDebugInfoBytes(fileName, program.getCompilationDirectory(), PRODUCER, textAddress, textAddress + sectionLengths[Section.TEXT.ordinal()]);
+			int programLength = image.lines.length();
+			byte[] lineHeader = LineNumberProgram.getHeaderBytes(fileName, programLength);
+			
+			elf.sectionHeaders.add(makeSectionHeader(sectionNames.add(".debug_abbrev"), SectionType.SHT_PROGBITS, 0, 0, fileOffset, abbrev.length));
+			data.add(java.nio.ByteBuffer.wrap(abbrev));
+			fileOffset += abbrev.length;
+			elf.sectionHeaders.add(makeSectionHeader(sectionNames.add(".debug_info"), SectionType.SHT_PROGBITS, 0, 0, fileOffset, info.length));
+			data.add(java.nio.ByteBuffer.wrap(info));
+			fileOffset += info.length;
+			elf.sectionHeaders.add(makeSectionHeader(sectionNames.add(".debug_line"), SectionType.SHT_PROGBITS, 0, 0, fileOffset, lineHeader.length + programLength));
+			data.add(java.nio.ByteBuffer.wrap(lineHeader));
+			data.add(image.lines.asNioBuffer());
+			fileOffset += lineHeader.length + programLength;
+		}
+		
+		// The section names are only complete after the last section header
+		shstrtab.offset = fileOffset;
+		shstrtab.size = sectionNames.length();
+		data.add(sectionNames.asNioBuffer());
 		
+		FileChannel out = new FileOutputStream(outputfile).getChannel();
 		try {
-			out.write(elf.toBytes());
+			elf.writeTo(out, data.toArray(new java.nio.ByteBuffer[data.size()]));
 		} finally {
 			out.close();
 		}
 	}
 	
 	
-	private static byte[] assembleToBytes(Program program, Map<String,Integer> labelOffsets) {
-		try {
-			ByteArrayOutputStream out = new ByteArrayOutputStream(); 
-			int offset = ENTRY_POINT;
-			for (Statement st : program.getStatements()) {
-				if (st instanceof InstructionStatement) {
-					InstructionStatement ist = (InstructionStatement)st;
-					String mnemonic = ist.getMnemonic();
-					List<Operand> operands = ist.getOperands();
-					byte[] machinecode = CodeGenerator.makeMachineCode(patterntable, mnemonic, operands, program, labelOffsets, offset);
-					out.write(machinecode);
-					offset += machinecode.length;
-				} else if (st instanceof LabelStatement) {
-					String name = ((LabelStatement)st).getName();
-					if (offset != labelOffsets.get(name))
-						throw new AssertionError("Label offset mismatch");
+	private static SectionHeader makeSectionHeader(int name, SectionType type, int flags, int addr, int offset, int size) {
+		SectionHeader sh = new SectionHeader();
+		sh.name = name;
+		sh.type = type;
+		sh.flags = flags;
+		sh.addr = addr;
+		sh.offset = offset;
+		sh.size = size;
+		sh.addralign = type == SectionType.SHT_NULL ? 0 : 1;
+		return sh;
+	}
+	
+	
+	// Makes a local symbol for every label. Labels in the text section are functions and the others are objects.
+	// The size of each symbol extends to the next label in the same section, or else to the end of the section.
+	private static ElfSymbolTable makeSymbolTable(CompactProgram program, int[] labelOffsets, int[] addresses, int[] sectionLengths) {
+		SymbolTable labels = program.getSymbolTable();
+		int[] sizes = new int[labels.size()];
+		byte[] labelSections = new byte[labels.size()];
+		int[] previous = new int[NUM_SECTIONS];
+		Arrays.fill(previous, -1);
+		for (int i = 0; i < program.getStatementCount(); i++) {
+			if (program.isLabel(i)) {
+				int id = program.getLabelId(i);
+				int sect = program.getSection(i).ordinal();
+				labelSections[id] = (byte)sect;
+				if (previous[sect] != -1)
+					sizes[previous[sect]] = labelOffsets[id] - labelOffsets[previous[sect]];
+				previous[sect] = id;
+			}
+		}
+		for (int i = 0; i < NUM_SECTIONS; i++) {
+			if (previous[i] != -1)
+				sizes[previous[i]] = addresses[i] + sectionLengths[i] - labelOffsets[previous[i]];
+		}
+		
+		ElfSymbolTable result = new ElfSymbolTable();
+		for (int id = 0; id < sizes.length; id++) {
+			int sect = labelSections[id];
+			int type = sect == Section.TEXT.ordinal() ? ElfSymbolTable.STT_FUNC : ElfSymbolTable.STT_OBJECT;
+			result.add(labels.getName(id), labelOffsets[id], sizes[id], ElfSymbolTable.STB_LOCAL, type, 1 + sect);
+		}
+		return result;
+	}
+	
+	
+	// Each section is emitted into its own buffer, and label offsets are kept relative to the start of their section, because the section addresses depend on the final lengths.
+	// A branch to a label that is already placed in the same section can be resolved right away, but every absolute label reference and every other branch, including one to a numeric address, is a fixup.
+	private static Image assembleSinglePass(AssemblerContext context, CompactProgram program, SectionLayout layout) {
+		SymbolTable symbols = program.getSymbolTable();
+		int numLabels = symbols.size();
+		int[][] sectionLabelOffsets = context.getSectionLabelOffsets(numLabels);
+		for (int[] offsets : sectionLabelOffsets)
+			Arrays.fill(offsets, 0, numLabels, CodeGenerator.UNKNOWN_OFFSET);
+		int[] labelSections = context.getLabelSections(numLabels);
+		Arrays.fill(labelSections, 0, numLabels, -1);
+		FixupList[] fixups = context.getFixupLists();
+		ByteBuffer[] out = context.getRangeBuffers(1)[0];
+		int[] sectionLengths = new int[NUM_SECTIONS];
+		LineNumberProgram lines = program.getSourceName() != null ? new LineNumberProgram() : null;  // Relative to the text section
+		
+		for (int i = 0; i < program.getStatementCount(); i++) {
+			int sect = program.getSection(i).ordinal();
+			int offset = sectionLengths[sect];
+			if (!program.isLabel(i)) {
+				int skip = getSkipLength(program, i);
+				if (skip != -1) {
+					sectionLengths[sect] = checkSectionLength(sect, (long)offset + skip);
+					if (sect != Section.BSS.ordinal())
+						out[sect].appendZeros(skip);
+				} else {
+					int first = program.getOperandStart(i);
+					InstructionPattern pat = patterntable.match(program, i);
+					InstructionPattern shortpat = patterntable.getShortForm(pat);
+					if (shortpat != null && CodeGenerator.isInRange(shortpat, CodeGenerator.getMachineCodeLength(shortpat, program, first), program, first, sectionLabelOffsets[sect], offset, true))
+						pat = shortpat;
+					CodeGenerator.makeMachineCode(pat, CodeGenerator.getMachineCodeLength(pat, program, first), program, first, sectionLabelOffsets[sect], offset, out[sect], fixups[sect]);
+					sectionLengths[sect] = out[sect].length();
 				}
+				if (lines != null && sect == Section.TEXT.ordinal() && sectionLengths[sect] > offset && program.getLineNumber(i) > 0)
+					lines.addRow(offset, program.getLineNumber(i));
+			} else {
+				int id = program.getLabelId(i);
+				if (labelSections[id] != -1)
+					throw new IllegalArgumentException("Duplicate label: " + symbols.getName(id));
+				labelSections[id] = sect;
+				sectionLabelOffsets[sect][id] = offset;
 			}
-			return out.toByteArray();
-		} catch (IOException e) {
-			throw new AssertionError(e);
 		}
+		
+		int[] addresses = layout.getAddresses(sectionLengths);
+		int[] labelOffsets = context.getLabelOffsets(numLabels);
+		for (int id = 0; id < numLabels; id++) {
+			if (labelSections[id] == -1)
+				throw new IllegalArgumentException("Undefined label: " + symbols.getName(id));
+			labelOffsets[id] = addresses[labelSections[id]] + sectionLabelOffsets[labelSections[id]][id];
+		}
+		
+		ByteBuffer[][] code = new ByteBuffer[NUM_SECTIONS][];
+		for (int i = 0; i < NUM_SECTIONS; i++) {
+			fixups[i].patch(labelOffsets, addresses[i], out[i]);
+			code[i] = new ByteBuffer[]{out[i]};
+		}
+		if (lines == null)
+			return new Image(code, sectionLengths, labelOffsets, null);
+		lines.endSequence(sectionLengths[Section.TEXT.ordinal()]);
+		lines.relocate(addresses[Section.TEXT.ordinal()]);
+		return new Image(code, sectionLengths, labelOffsets, lines);
 	}
 	
 	
@@ -123,4 +780,58 @@ public final class Assembler {
 	 */
 	private Assembler() {}
 	
+	
+	
+	/**
+	 * The machine code of an assembled program, before it is written out. Each section's code is split into one or more buffers, which are written in order. The .bss section has a length but no code.
+	 */
+	private static final class Image {
+		
+		public final ByteBuffer[][] code;
+		
+		public final int[] sectionLengths;
+		
+		/** The address of each label, indexed by label ID. */
+		public final int[] labelOffsets;
+		
+		/** The line number program for the text section, or {@code null} if there is no debugging information. */
+		public final LineNumberProgram lines;
+		
+		
+		public Image(ByteBuffer[][] code, int[] sectionLengths, int[] labelOffsets, LineNumberProgram lines) {
+			this.code = code;
+			this.sectionLengths = sectionLengths;
+			this.labelOffsets = labelOffsets;
+			this.lines = lines;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * A placement of the sections in memory.
+	 */
+	private interface SectionLayout {
+		
+		/**
+		 * Returns the start address of each section, indexed by section ordinal.
+		 * @param sectionLengths the length of each section, indexed by section ordinal
+		 * @return the start address of each section
+		 */
+		public int[] getAddresses(int[] sectionLengths);
+		
+	}
+	
+	
+	
+	/**
+	 * A computation over a contiguous range of statements.
+	 */
+	private interface RangeTask<T> {
+		
+		public T run(int index, int start, int end);
+		
+	}
+	
 }
@@ -0,0 +1,243 @@
+package org.p79068.assembler.generator;
+
+import java.nio.BufferOverflowException;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
+import org.p79068.assembler.CompactProgram;
+import org.p79068.assembler.Section;
+import org.p79068.assembler.SymbolTable;
+import org.p79068.assembler.parser.Parser;
+import org.p79068.util.ByteBuffer;
+
+
+/**
+ * Reusable scratch state for assembling programs in memory, one at a time. The arrays indexed by statement and label, the code buffers, the fixup lists, and a program to parse source code into are kept between calls and only grow, so that assembling many similar programs in a row allocates little more than the name strings and label objects of each program. The pattern and register tables are immutable and shared by all contexts.
+ * <p>A context is not thread-safe. Threads that assemble concurrently should each have their own context, for example in a {@link ThreadLocal}, and then do not contend with each other. The static methods of {@link Assembler} each use a new context.</p>
+ */
+public final class AssemblerContext {
+	
+	private static final int NUM_SECTIONS = Section.values().length;
+	
+	
+	
+	/* Scratch arrays for the relaxing assembler, indexed by statement */
+	private InstructionPattern[] patterns;
+	private InstructionPattern[] longPatterns;
+	private int[] lengths;
+	
+	/** The address of each label, indexed by label ID, from the last call that assembled a program. */
+	private int[] labelOffsets;
+	
+	/** Whether each label has been declared, indexed by label ID. */
+	private boolean[] declared;
+	
+	/** The code buffers for each range, indexed by range and then section ordinal. */
+	private ByteBuffer[][] rangeBuffers;
+	
+	/* Scratch state for the single-pass assembler */
+	private int[][] sectionLabelOffsets;
+	private int[] labelSections;
+	private final FixupList[] fixups;
+	
+	/** The program that source code is parsed into. */
+	private final CompactProgram program;
+	
+	/** The symbol table of the last program assembled, or {@code null} if none. */
+	private SymbolTable symbols;
+	
+	
+	
+	/**
+	 * Constructs a context with empty scratch state.
+	 */
+	public AssemblerContext() {
+		patterns = new InstructionPattern[0];
+		longPatterns = new InstructionPattern[0];
+		lengths = new int[0];
+		labelOffsets = new int[0];
+		declared = new boolean[0];
+		rangeBuffers = new ByteBuffer[0][];
+		sectionLabelOffsets = new int[NUM_SECTIONS][0];
+		labelSections = new int[0];
+		fixups = new FixupList[NUM_SECTIONS];
+		for (int i = 0; i < NUM_SECTIONS; i++)
+			fixups[i] = new FixupList();
+		program = new CompactProgram();
+		symbols = null;
+	}
+	
+	
+	
+	/**
+	 * Parses and assembles the specified source code into the specified buffer as a flat image, reusing the program of this context. The image is the same as from {@link Assembler#assemble(CompactProgram, int, java.nio.ByteBuffer)} for the parsed program.
+	 * @param source the source code to assemble
+	 * @param baseAddress the address of the first byte of the image
+	 * @param out the buffer to write the image to
+	 * @return the number of bytes written, which is the length of the image
+	 * @throws IllegalArgumentException if the program has an invalid instruction, or an undefined or duplicate label, or the image does not fit in the address space above the base address
+	 * @throws RuntimeException if the source code has a syntax error
+	 * @throws BufferOverflowException if the image is longer than the remaining space in the buffer
+	 * @throws ReadOnlyBufferException if the buffer is read-only
+	 */
+	public int assemble(CharSequence source, int baseAddress, java.nio.ByteBuffer out) {
+		if (source == null || out == null)
+			throw new NullPointerException();
+		symbols = null;
+		Parser.parseCompact(source, program);
+		return assemble(program, baseAddress, out);
+	}
+	
+	
+	/**
+	 * Assembles the specified program into the specified buffer as a flat image, with branch relaxation. The image is the same as from {@link Assembler#assemble(CompactProgram, int, java.nio.ByteBuffer)}, and the label addresses are available from {@link #getLabelAddress(String)} until the next call.
+	 * @param program the program to assemble
+	 * @param baseAddress the address of the first byte of the image
+	 * @param out the buffer to write the image to
+	 * @return the number of bytes written, which is the length of the image
+	 * @throws IllegalArgumentException if the program has an invalid instruction, or an undefined or duplicate label, or the image does not fit in the address space above the base address
+	 * @throws BufferOverflowException if the image is longer than the remaining space in the buffer
+	 * @throws ReadOnlyBufferException if the buffer is read-only
+	 */
+	public int assemble(CompactProgram program, int baseAddress, java.nio.ByteBuffer out) {
+		return assemble(program, false, baseAddress, out);
+	}
+	
+	
+	/**
+	 * Assembles the specified program into the specified buffer as a flat image, in a single pass. Forward branches and branches to numeric addresses use their long forms, as in {@link Assembler#assembleToFileSinglePass(CompactProgram, java.io.File)}. Otherwise this is the same as {@link #assemble(CompactProgram, int, java.nio.ByteBuffer)}.
+	 * @param program the program to assemble
+	 * @param baseAddress the address of the first byte of the image
+	 * @param out the buffer to write the image to
+	 * @return the number of bytes written, which is the length of the image
+	 * @throws IllegalArgumentException if the program has an invalid instruction, or an undefined or duplicate label, or the image does not fit in the address space above the base address
+	 * @throws BufferOverflowException if the image is longer than the remaining space in the buffer
+	 * @throws ReadOnlyBufferException if the buffer is read-only
+	 */
+	public int assembleSinglePass(CompactProgram program, int baseAddress, java.nio.ByteBuffer out) {
+		return assemble(program, true, baseAddress, out);
+	}
+	
+	
+	/**
+	 * Returns the address of the label with the specified name in the last program assembled by this context.
+	 * @param name the name of the label
+	 * @return the address of the label
+	 * @throws IllegalStateException if no program has been assembled successfully since the last parse
+	 * @throws IllegalArgumentException if the program has no such label
+	 */
+	public int getLabelAddress(String name) {
+		if (name == null)
+			throw new NullPointerException();
+		if (symbols == null)
+			throw new IllegalStateException("No program assembled");
+		int id = symbols.getId(name);
+		if (id == -1)
+			throw new IllegalArgumentException("Undefined label: " + name);
+		return labelOffsets[id];
+	}
+	
+	
+	private int assemble(CompactProgram program, boolean singlePass, int baseAddress, java.nio.ByteBuffer out) {
+		if (program == null || out == null)
+			throw new NullPointerException();
+		symbols = null;
+		int start = out.position();
+		Assembler.assembleFlat(this, program, singlePass, baseAddress, out);
+		symbols = program.getSymbolTable();
+		return out.position() - start;
+	}
+	
+	
+	
+	/* Scratch accessors for the assembler. Each returns an array with at least the specified length, whose contents are unspecified unless stated otherwise. */
+	
+	InstructionPattern[] getPatterns(int length) {
+		if (patterns.length < length)
+			patterns = new InstructionPattern[grow(patterns.length, length)];
+		return patterns;
+	}
+	
+	
+	InstructionPattern[] getLongPatterns(int length) {
+		if (longPatterns.length < length)
+			longPatterns = new InstructionPattern[grow(longPatterns.length, length)];
+		return longPatterns;
+	}
+	
+	
+	int[] getLengths(int length) {
+		if (lengths.length < length)
+			lengths = new int[grow(lengths.length, length)];
+		return lengths;
+	}
+	
+	
+	int[] getLabelOffsets(int length) {
+		if (labelOffsets.length < length)
+			labelOffsets = new int[grow(labelOffsets.length, length)];
+		return labelOffsets;
+	}
+	
+	
+	// The first entries are all false
+	boolean[] getDeclared(int length) {
+		if (declared.length < length)
+			declared = new boolean[grow(declared.length, length)];
+		else
+			Arrays.fill(declared, 0, length, false);
+		return declared;
+	}
+	
+	
+	// Returns an array of the specified number of ranges, each with an empty buffer per section
+	ByteBuffer[][] getRangeBuffers(int numRanges) {
+		if (rangeBuffers.length < numRanges) {
+			ByteBuffer[][] newBuffers = Arrays.copyOf(rangeBuffers, numRanges);
+			for (int i = rangeBuffers.length; i < numRanges; i++) {
+				newBuffers[i] = new ByteBuffer[NUM_SECTIONS];
+				for (int j = 0; j < NUM_SECTIONS; j++)
+					newBuffers[i][j] = new ByteBuffer();
+			}
+			rangeBuffers = newBuffers;
+		}
+		for (int i = 0; i < numRanges; i++) {
+			for (ByteBuffer b : rangeBuffers[i])
+				b.clear();
+		}
+		return rangeBuffers;
+	}
+	
+	
+	// Indexed by section ordinal and then label ID
+	int[][] getSectionLabelOffsets(int length) {
+		if (sectionLabelOffsets[0].length < length) {
+			int newLength = grow(sectionLabelOffsets[0].length, length);
+			for (int i = 0; i < NUM_SECTIONS; i++)
+				sectionLabelOffsets[i] = new int[newLength];
+		}
+		return sectionLabelOffsets;
+	}
+	
+	
+	int[] getLabelSections(int length) {
+		if (labelSections.length < length)
+			labelSections = new int[grow(labelSections.length, length)];
+		return labelSections;
+	}
+	
+	
+	// Returns an empty fixup list per section
+	FixupList[] getFixupLists() {
+		for (FixupList f : fixups)
+			f.clear();
+		return fixups;
+	}
+	
+	
+	// Grows by at least half, to amortize the cost of programs that get gradually larger
+	private static int grow(int current, int required) {
+		return (int)Math.min(Math.max((long)current + (current >> 1), required), Integer.MAX_VALUE);
+	}
+	
+}
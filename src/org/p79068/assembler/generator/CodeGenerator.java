@@ -1,30 +1,70 @@
 package org.p79068.assembler.generator;
 
 import java.util.List;
-import java.util.Map;
 
-import org.p79068.assembler.Program;
-import org.p79068.assembler.operand.Immediate;
+import org.p79068.assembler.CompactProgram;
 import org.p79068.assembler.operand.ImmediateValue;
 import org.p79068.assembler.operand.Memory;
 import org.p79068.assembler.operand.Operand;
+import org.p79068.assembler.operand.OperandKind;
 import org.p79068.assembler.operand.Register;
 import org.p79068.assembler.operand.Register32;
+import org.p79068.util.ByteBuffer;
 
 
 final class CodeGenerator {
 	
-	public static int getMachineCodeLength(InstructionPatternTable table, String mnemonic, List<Operand> operands) {
-		InstructionPattern pat = table.match(mnemonic, operands);
+	// The label offset of a label that is not placed yet, in single-pass assembly
+	public static final int UNKNOWN_OFFSET = Integer.MIN_VALUE;
+	
+	private static final long REGISTER_KINDS = OperandKind.REG8 | OperandKind.REG16 | OperandKind.REG32 | OperandKind.SREG;
+	
+	
+	
+	public static int getMachineCodeLength(InstructionPattern pat, List<Operand> operands) {
+		int modrmLength = 0;
+		if (pat.options.size() == 1 && pat.options.get(0) instanceof ModRM) {
+			Operand rm = operands.get(((ModRM)pat.options.get(0)).rmOperandIndex);
+			if (rm instanceof Register)
+				modrmLength = 1;
+			else if (rm instanceof Memory) {
+				Memory m = (Memory)rm;
+				boolean isLiteral = m.displacement instanceof ImmediateValue;
+				modrmLength = getModRMBytesLength(m.base, m.index, isLiteral, isLiteral ? ((ImmediateValue)m.displacement).getValue() : 0);
+			} else
+				throw new AssertionError("Not a register or memory operand");
+		}
+		return getMachineCodeLength(pat, modrmLength);
+	}
+	
+	
+	// The operands of the instruction start at the operand index in the program, and are read in place
+	public static int getMachineCodeLength(InstructionPattern pat, CompactProgram program, int first) {
+		int modrmLength = 0;
+		if (pat.options.size() == 1 && pat.options.get(0) instanceof ModRM) {
+			int rm = first + ((ModRM)pat.options.get(0)).rmOperandIndex;
+			long kinds = program.getOperandKinds(rm);
+			if ((kinds & REGISTER_KINDS) != 0)
+				modrmLength = 1;
+			else if ((kinds & OperandKind.MEMORY) != 0) {
+				boolean isLiteral = program.getOperandLabelId(rm) == -1;
+				modrmLength = getModRMBytesLength(program.getOperandBase(rm), program.getOperandIndex(rm), isLiteral, isLiteral ? program.getOperandValue(rm) : 0);
+			} else
+				throw new AssertionError("Not a register or memory operand");
+		}
+		return getMachineCodeLength(pat, modrmLength);
+	}
+	
+	
+	// Returns the length of the instruction, given the length of its ModR/M byte, SIB byte, and displacement
+	private static int getMachineCodeLength(InstructionPattern pat, int modrmLength) {
 		int length = 0;
 		
 		if (pat.operandSizeMode == OperandSizeMode.MODE16)
 			length++;
 		
 		length += pat.opcodes.length;
-		
-		if (pat.options.size() == 1 && pat.options.get(0) instanceof ModRM)
-			length += getModRMBytesLength((ModRM)pat.options.get(0), operands);
+		length += modrmLength;
 		
 		for (int i = 0; i < pat.operands.size(); i++) {
 			OperandPattern slot = pat.operands.get(i);
@@ -40,65 +80,55 @@ final class CodeGenerator {
 	}
 	
 	
-	private static int getModRMBytesLength(ModRM option, List<Operand> operands) {
-		Operand rm = operands.get(option.rmOperandIndex);
-		
-		if (rm instanceof Register) {
+	// Returns the length of the ModR/M byte, SIB byte, and displacement of a memory operand. A label displacement is not literal, and is always encoded as disp32
+	private static int getModRMBytesLength(Register32 base, Register32 index, boolean isLiteral, int disp) {
+		if (base == null && index == null)  // disp32
+			return 5;
+		else if (base != Register32.ESP && base != Register32.EBP && index == null && isLiteral && disp == 0)  // eax, ecx, edx, ebx, esi, edi
 			return 1;
-			
-		} else if (rm instanceof Memory) {
-			Memory m = (Memory)rm;
-			Immediate disp = m.displacement;
-			
-			if (m.base == null && m.index == null)  // disp32
-				return 5;
-			else if (m.base != Register32.ESP && m.base != Register32.EBP && m.index == null && disp instanceof ImmediateValue && ((ImmediateValue)disp).isZero())  // eax, ecx, edx, ebx, esi, edi
-				return 1;
-			else if (m.base != Register32.ESP && m.index == null && disp instanceof ImmediateValue && ((ImmediateValue)disp).isSigned8Bit())  // (eax, ecx, edx, ebx, ebp, esi, edi) + disp8
+		else if (base != Register32.ESP && index == null && isLiteral && (byte)disp == disp)  // (eax, ecx, edx, ebx, ebp, esi, edi) + disp8
+			return 2;
+		else if (base != Register32.ESP && index == null)  // (eax, ecx, edx, ebx, ebp, esi, edi) + disp32
+			return 5;
+		else {  // SIB
+			if (base == null)  // index*scale + disp32
+				return 6;
+			else if (base != Register32.EBP && isLiteral && disp == 0)  // (eax, ecx, edx, ebx, esp, esi, edi) + index*scale
 				return 2;
-			else if (m.base != Register32.ESP && m.index == null)  // (eax, ecx, edx, ebx, ebp, esi, edi) + disp32
-				return 5;
-			else {  // SIB
-				if (m.base == null)  // index*scale + disp32
-					return 6;
-				else if (m.base != Register32.EBP && disp instanceof ImmediateValue && ((ImmediateValue)disp).isZero())  // (eax, ecx, edx, ebx, esp, esi, edi) + index*scale
-					return 2;
-				else if (disp instanceof ImmediateValue && ((ImmediateValue)disp).isSigned8Bit())  // base + index*scale + disp8
-					return 3;
-				else  // base + index*scale + disp32
-					return 6;
-			}
-			
-		} else
-			throw new AssertionError("Not a register or memory operand");
+			else if (isLiteral && (byte)disp == disp)  // base + index*scale + disp8
+				return 3;
+			else  // base + index*scale + disp32
+				return 6;
+		}
 	}
 	
 	
-	public static byte[] makeMachineCode(InstructionPatternTable table, String mnemonic, List<Operand> operands, Program program, Map<String,Integer> labelOffsets, int offset) {
-		// Get matching instruction pattern
-		InstructionPattern pat = table.match(mnemonic, operands);
-		
-		// Initialize blank result
-		byte[] result = new byte[0];
-		
+	// The pattern and its length must come from the same match in the layout pass, so that the instruction is not matched again here
+	public static void makeMachineCode(InstructionPattern pat, int length, CompactProgram program, int first, int[] labelOffsets, int offset, ByteBuffer out) {
+		makeMachineCode(pat, length, program, first, labelOffsets, offset, out, null);
+	}
+	
+	
+	// With a fixup list, the label offsets are relative to the start of the section being emitted, and the offset is the instruction's offset in that section.
+	// Every absolute label field, every relative field whose label offset is unknown, and every relative field to a numeric address is emitted as zero and recorded in the fixup list
+	public static void makeMachineCode(InstructionPattern pat, int length, CompactProgram program, int first, int[] labelOffsets, int offset, ByteBuffer out, FixupList fixups) {
 		// Append operand size override prefix if necessary
 		if (pat.operandSizeMode == OperandSizeMode.MODE16)
-			result = concatenate(result, new byte[]{0x66});
+			out.append((byte)0x66);
 		
-		// Process register-in-opcode option
+		// Append opcode, processing the register-in-opcode option
 		byte[] opcodes = pat.opcodes;
 		if (pat.options.size() == 1 && pat.options.get(0) instanceof RegisterInOpcode) {
 			RegisterInOpcode option = (RegisterInOpcode)pat.options.get(0);
-			opcodes = opcodes.clone();
-			opcodes[opcodes.length - 1] += ((Register)operands.get(option.operandIndex)).getRegisterNumber();
-		}
-		
-		// Append opcode
-		result = concatenate(result, opcodes);
+			for (int i = 0; i < opcodes.length - 1; i++)
+				out.append(opcodes[i]);
+			out.append((byte)(opcodes[opcodes.length - 1] + program.getOperandRegister(first + option.operandIndex).getRegisterNumber()));
+		} else
+			out.append(opcodes);
 		
 		// Append ModR/M and SIB bytes if necessary
 		if (pat.options.size() == 1 && pat.options.get(0) instanceof ModRM)
-			result = concatenate(result, makeModRMBytes((ModRM)pat.options.get(0), operands, program, labelOffsets));
+			makeModRMBytes((ModRM)pat.options.get(0), program, first, labelOffsets, out, fixups);
 		
 		// Append immediate operands if necessary
 		for (int i = 0; i < pat.operands.size(); i++) {
@@ -106,97 +136,137 @@ final class CodeGenerator {
 			
 			if (slot == OperandPattern.IMM8 || slot == OperandPattern.IMM8S || slot == OperandPattern.IMM16 || slot == OperandPattern.IMM32 || slot == OperandPattern.REL8 || slot == OperandPattern.REL16 || slot == OperandPattern.REL32) {
 				
-				ImmediateValue value = ((Immediate)operands.get(i)).getValue(labelOffsets);
-				
-				if (slot == OperandPattern.REL8 || slot == OperandPattern.REL16 || slot == OperandPattern.REL32)
-					value = new ImmediateValue(value.getValue(labelOffsets).getValue() - offset - getMachineCodeLength(table, mnemonic, operands));
+				int labelId = program.getOperandLabelId(first + i);
+				boolean isRelative = slot == OperandPattern.REL8 || slot == OperandPattern.REL16 || slot == OperandPattern.REL32;
+				int value;
+				if (fixups != null && (labelId != -1 ? !isRelative || labelOffsets[labelId] == UNKNOWN_OFFSET : isRelative)) {
+					fixups.add(out.length(), slot, labelId, labelId != -1 ? 0 : program.getOperandValue(first + i), isRelative ? offset + length : 0);
+					value = 0;
+				} else {
+					value = labelId != -1 ? labelOffsets[labelId] : program.getOperandValue(first + i);
+					if (isRelative)
+						value = value - offset - length;
+				}
 				
 				// Encode signed or unsigned
 				if (slot == OperandPattern.IMM8) {
-					result = concatenate(result, value.to1Byte());
+					if (value < -0x80 || value >= 0x100)
+						throw new IllegalStateException("Not an 8-bit integer");
+					out.append((byte)value);
 				} else if (slot == OperandPattern.IMM16) {
-					result = concatenate(result, value.to2Bytes());
+					if (value < -0x8000 || value >= 0x10000)
+						throw new IllegalStateException("Not a 16-bit integer");
+					out.appendLittleEndian((short)value);
 				} else if (slot == OperandPattern.IMM32 || slot == OperandPattern.REL32) {
-					result = concatenate(result, value.to4Bytes());
+					out.appendLittleEndian(value);
 				}
 				
 				// Encode signed
 				else if (slot == OperandPattern.IMM8S || slot == OperandPattern.REL8) {
-					if (!value.isSigned8Bit())
+					if ((byte)value != value)
 						throw new RuntimeException("Not a signed 8-bit immediate operand");
-					result = concatenate(result, value.to1Byte());
+					out.append((byte)value);
 				} else if (slot == OperandPattern.REL16) {
-					if (!value.isSigned16Bit())
+					if ((short)value != value)
 						throw new RuntimeException("Not a signed 16-bit immediate operand");
-					result = concatenate(result, value.to2Bytes());
+					out.appendLittleEndian((short)value);
 				} else {
 					throw new AssertionError();
 				}
 			}
 		}
-		
-		// Return machine code sequence
-		return result;
 	}
 	
 	
-	private static byte[] makeModRMBytes(ModRM option, List<Operand> operands, Program program, Map<String,Integer> labelOffsets) {
-		Operand rm = operands.get(option.rmOperandIndex);
+	// Tests whether the rel8 and rel16 operands of the instruction can reach their targets when it is placed at the offset
+	public static boolean isInRange(InstructionPattern pat, int length, CompactProgram program, int first, int[] labelOffsets, int offset) {
+		return isInRange(pat, length, program, first, labelOffsets, offset, false);
+	}
+	
+	
+	// If the offsets are relative to the start of the section, a numeric target is never in range, because the address of the section is not known yet
+	public static boolean isInRange(InstructionPattern pat, int length, CompactProgram program, int first, int[] labelOffsets, int offset, boolean isSectionRelative) {
+		for (int i = 0; i < pat.operands.size(); i++) {
+			OperandPattern slot = pat.operands.get(i);
+			if (slot == OperandPattern.REL8 || slot == OperandPattern.REL16) {
+				int labelId = program.getOperandLabelId(first + i);
+				if (labelId != -1 ? labelOffsets[labelId] == UNKNOWN_OFFSET : isSectionRelative)
+					return false;
+				int value = (labelId != -1 ? labelOffsets[labelId] : program.getOperandValue(first + i)) - offset - length;
+				if (slot == OperandPattern.REL8 ? (byte)value != value : (short)value != value)
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	private static void makeModRMBytes(ModRM option, CompactProgram program, int first, int[] labelOffsets, ByteBuffer out, FixupList fixups) {
+		int rm = first + option.rmOperandIndex;
+		long kinds = program.getOperandKinds(rm);
 		int mod;
 		int rmvalue;
-		byte[] rest;
+		boolean hasSib = false;
+		int dispLength;  // 0, 1, or 4
+		int disp = 0;
+		int labelId = -1;
+		boolean isDispUnknown = false;
 		
-		if (rm instanceof Register) {
+		if ((kinds & REGISTER_KINDS) != 0) {
 			mod = 3;
-			rmvalue = ((Register)rm).getRegisterNumber();
-			rest = new byte[0];
+			rmvalue = program.getOperandRegister(rm).getRegisterNumber();
+			dispLength = 0;
 			
-		} else if (rm instanceof Memory) {
-			Memory m = (Memory)rm;
-			ImmediateValue disp = m.displacement.getValue(labelOffsets);
+		} else if ((kinds & OperandKind.MEMORY) != 0) {
+			Register32 base = program.getOperandBase(rm);
+			Register32 index = program.getOperandIndex(rm);
+			labelId = program.getOperandLabelId(rm);
+			boolean isLiteral = labelId == -1;
+			// A label displacement is always encoded as disp32, so its value does not affect the encoding, and it can be a fixup
+			isDispUnknown = fixups != null && !isLiteral;
+			if (!isDispUnknown)
+				disp = isLiteral ? program.getOperandValue(rm) : labelOffsets[labelId];
 			
-			if (m.base == null && m.index == null) {  // disp32
+			if (base == null && index == null) {  // disp32
 				mod = 0;
 				rmvalue = 5;
-				rest = disp.to4Bytes();
+				dispLength = 4;
 				
-			} else if (m.base != Register32.ESP && m.base != Register32.EBP && m.index == null && m.displacement instanceof ImmediateValue && disp.isZero()) {  // eax, ecx, edx, ebx, esi, edi
+			} else if (base != Register32.ESP && base != Register32.EBP && index == null && isLiteral && disp == 0) {  // eax, ecx, edx, ebx, esi, edi
 				mod = 0;
-				rmvalue = m.base.getRegisterNumber();
-				rest = new byte[0];
+				rmvalue = base.getRegisterNumber();
+				dispLength = 0;
 				
-			} else if (m.base != Register32.ESP && m.index == null && m.displacement instanceof ImmediateValue && disp.isSigned8Bit()) {  // (eax, ecx, edx, ebx, ebp, esi, edi) + disp8
+			} else if (base != Register32.ESP && index == null && isLiteral && (byte)disp == disp) {  // (eax, ecx, edx, ebx, ebp, esi, edi) + disp8
 				mod = 1;
-				rmvalue = m.base.getRegisterNumber();
-				rest = disp.to1Byte();
+				rmvalue = base.getRegisterNumber();
+				dispLength = 1;
 				
-			} else if (m.base != Register32.ESP && m.index == null) {  // (eax, ecx, edx, ebx, ebp, esi, edi) + disp32
+			} else if (base != Register32.ESP && index == null) {  // (eax, ecx, edx, ebx, ebp, esi, edi) + disp32
 				mod = 2;
-				rmvalue = m.base.getRegisterNumber();
-				rest = disp.to4Bytes();
+				rmvalue = base.getRegisterNumber();
+				dispLength = 4;
 				
 			} else {  // SIB
 				rmvalue = 4;
+				hasSib = true;
 				
-				if (m.base == null) {  // index*scale + disp32
+				if (base == null) {  // index*scale + disp32
 					mod = 0;
-					rest = disp.to4Bytes();
+					dispLength = 4;
 					
-				} else if (m.base != Register32.EBP && m.displacement instanceof ImmediateValue && disp.isZero()) {  // (eax, ecx, edx, ebx, esp, esi, edi) + index*scale
+				} else if (base != Register32.EBP && isLiteral && disp == 0) {  // (eax, ecx, edx, ebx, esp, esi, edi) + index*scale
 					mod = 0;
-					rest = new byte[0];
+					dispLength = 0;
 					
-				} else if (m.displacement instanceof ImmediateValue && disp.isSigned8Bit()) {  // base + index*scale + disp8
+				} else if (isLiteral && (byte)disp == disp) {  // base + index*scale + disp8
 					mod = 1;
-					rest = disp.to1Byte();
+					dispLength = 1;
 					
 				} else {  // base + index*scale + disp32
 					mod = 2;
-					rest = disp.to4Bytes();
+					dispLength = 4;
 				}
-				
-				byte[] sib = makeSIBByte(m);
-				rest = concatenate(sib, rest);
 			}
 			
 		} else
@@ -204,32 +274,33 @@ final class CodeGenerator {
 		
 		// Set reg/op value
 		int regopvalue;
-		if (option.regOpcodeOperandIndex < 10) {
-			Register regop = (Register)operands.get(option.regOpcodeOperandIndex);
-			regopvalue = regop.getRegisterNumber();
-		} else
+		if (option.regOpcodeOperandIndex < 10)
+			regopvalue = program.getOperandRegister(first + option.regOpcodeOperandIndex).getRegisterNumber();
+		else
 			regopvalue = option.regOpcodeOperandIndex - 10;
 		
-		// Make ModR/M byte
-		byte[] modrm = makeModRMByte(mod, regopvalue, rmvalue);
-		
-		// Concatenate and return
-		return concatenate(modrm, rest);
+		// Append ModR/M byte, SIB byte, and displacement
+		out.append(makeModRMByte(mod, regopvalue, rmvalue));
+		if (hasSib)
+			out.append(makeSIBByte(program.getOperandScale(rm), program.getOperandIndex(rm), program.getOperandBase(rm)));
+		if (isDispUnknown)
+			fixups.add(out.length(), OperandPattern.IMM32, labelId, 0, 0);
+		if (dispLength == 1)
+			out.append((byte)disp);
+		else if (dispLength == 4)
+			out.appendLittleEndian(disp);
 	}
 	
 	
-	private static byte[] makeModRMByte(int mod, int regop, int rm) {
+	private static byte makeModRMByte(int mod, int regop, int rm) {
 		if (mod < 0 || mod >= 4 || regop < 0 || regop >= 8 || rm < 0 || rm >= 8)
 			throw new AssertionError("Invalid ModR/M fields");
-		return new byte[]{(byte)(mod << 6 | regop << 3 | rm << 0)};
+		return (byte)(mod << 6 | regop << 3 | rm << 0);
 	}
 	
 	
-	private static byte[] makeSIBByte(Memory mem) {
-		int scale = getScaleNumber(mem.scale);
-		int index = getIndexNumber(mem.index);
-		int base = getBaseNumber(mem.base);
-		return new byte[]{(byte)(scale << 6 | index << 3 | base << 0)};
+	private static byte makeSIBByte(int scale, Register32 index, Register32 base) {
+		return (byte)(getScaleNumber(scale) << 6 | getIndexNumber(index) << 3 | getBaseNumber(base) << 0);
 	}
 	
 	
@@ -262,21 +333,6 @@ final class CodeGenerator {
 	}
 	
 	
-	private static byte[] concatenate(byte[]... arrays) {
-		int totalLength = 0;
-		for (byte[] b : arrays)
-			totalLength += b.length;
-		
-		byte[] result = new byte[totalLength];
-		int offset = 0;
-		for (byte[] b : arrays) {
-			System.arraycopy(b, 0, result, offset, b.length);
-			offset += b.length;
-		}
-		return result;
-	}
-	
-	
 	
 	/**
 	 * Not instantiable.
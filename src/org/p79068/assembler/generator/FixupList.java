@@ -0,0 +1,133 @@
+package org.p79068.assembler.generator;
+
+import java.util.Arrays;
+
+import org.p79068.util.ByteBuffer;
+
+
+/**
+ * A list of references in the machine code of one section whose values were not known when they were emitted. Each fixup records where the field is in the section's buffer, which label or numeric address it refers to, and how the field is encoded, so that it can be patched once all the sections and labels are placed. A relative field to a numeric address is a fixup too, because its value depends on the address of the section.
+ */
+final class FixupList {
+	
+	/** The number of fixups. */
+	private int size;
+	
+	/** For each fixup, the index of its field in the output buffer. */
+	private int[] positions;
+	
+	/** For each fixup, the ID of the label it refers to, or -1 for a numeric address. */
+	private int[] labelIds;
+	
+	/** For each fixup without a label, the address it refers to, and 0 otherwise. */
+	private int[] targets;
+	
+	/** For each fixup, the offset of the next instruction relative to the start of the section for relative fields, and 0 for absolute fields. */
+	private int[] bases;
+	
+	/** For each fixup, the operand pattern that determines the width and range of the field. */
+	private OperandPattern[] slots;
+	
+	
+	
+	/**
+	 * Constructs an empty fixup list.
+	 */
+	public FixupList() {
+		size = 0;
+		positions = new int[64];
+		labelIds = new int[64];
+		targets = new int[64];
+		bases = new int[64];
+		slots = new OperandPattern[64];
+	}
+	
+	
+	
+	/**
+	 * Returns the number of fixups in this list.
+	 * @return the number of fixups
+	 */
+	public int size() {
+		return size;
+	}
+	
+	
+	/**
+	 * Removes all the fixups from this list. The storage is kept, so that the list can be reused without reallocating.
+	 */
+	public void clear() {
+		size = 0;
+	}
+	
+	
+	/**
+	 * Appends a fixup to this list.
+	 * @param position the index of the field in the output buffer
+	 * @param slot the operand pattern of the field, which is one of the immediate or relative patterns
+	 * @param labelId the ID of the label that the field refers to, or -1 for a numeric address
+	 * @param target the address that the field refers to if the label ID is -1, and 0 otherwise
+	 * @param base the offset of the next instruction in the section for a relative field, or 0 for an absolute field
+	 */
+	public void add(int position, OperandPattern slot, int labelId, int target, int base) {
+		if (slot == null)
+			throw new NullPointerException();
+		if (size == positions.length) {
+			positions = Arrays.copyOf(positions, size * 2);
+			labelIds = Arrays.copyOf(labelIds, size * 2);
+			targets = Arrays.copyOf(targets, size * 2);
+			bases = Arrays.copyOf(bases, size * 2);
+			slots = Arrays.copyOf(slots, size * 2);
+		}
+		positions[size] = position;
+		labelIds[size] = labelId;
+		targets[size] = target;
+		bases[size] = base;
+		slots[size] = slot;
+		size++;
+	}
+	
+	
+	/**
+	 * Writes the value of every fixup into the specified buffer, given the address of each label and of the section.
+	 * @param labelOffsets the address of each label, indexed by label ID
+	 * @param sectionAddress the address of the start of the section
+	 * @param out the buffer of the section that the fixups were recorded against
+	 * @throws RuntimeException if a value does not fit in its field
+	 */
+	public void patch(int[] labelOffsets, int sectionAddress, ByteBuffer out) {
+		for (int i = 0; i < size; i++) {
+			int position = positions[i];
+			OperandPattern slot = slots[i];
+			int value = labelIds[i] != -1 ? labelOffsets[labelIds[i]] : targets[i];
+			if (slot == OperandPattern.REL8 || slot == OperandPattern.REL16 || slot == OperandPattern.REL32)
+				value -= sectionAddress + bases[i];
+			
+			int width;
+			if (slot == OperandPattern.IMM8) {
+				if (value < -0x80 || value >= 0x100)
+					throw new IllegalStateException("Not an 8-bit integer");
+				width = 1;
+			} else if (slot == OperandPattern.IMM16) {
+				if (value < -0x8000 || value >= 0x10000)
+					throw new IllegalStateException("Not a 16-bit integer");
+				width = 2;
+			} else if (slot == OperandPattern.REL8) {
+				if ((byte)value != value)
+					throw new RuntimeException("Not a signed 8-bit immediate operand");
+				width = 1;
+			} else if (slot == OperandPattern.REL16) {
+				if ((short)value != value)
+					throw new RuntimeException("Not a signed 16-bit immediate operand");
+				width = 2;
+			} else if (slot == OperandPattern.IMM32 || slot == OperandPattern.REL32)
+				width = 4;
+			else
+				throw new AssertionError();
+			
+			for (int j = 0; j < width; j++)
+				out.set(position + j, (byte)(value >>> (j * 8)));
+		}
+	}
+	
+}
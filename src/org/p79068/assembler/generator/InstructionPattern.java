@@ -5,6 +5,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import org.p79068.assembler.operand.Operand;
+
 import static org.p79068.assembler.generator.OperandPattern.*;
 
 
@@ -16,7 +18,7 @@ public final class InstructionPattern {
 	/**
 	 * The regular expression pattern for mnemonics, which is one lowercase letter followed by zero or more lowercase or numeric characters.
 	 */
-	private static Pattern MNEMONIC_PATTERN = Pattern.compile("[a-z][a-z0-9]*");
+	private static final Pattern MNEMONIC_PATTERN = Pattern.compile("[a-z][a-z0-9]*");
 	
 	
 	
@@ -31,6 +33,9 @@ public final class InstructionPattern {
 	
 	public final byte[] opcodes;
 	
+	/** The mask of each operand pattern, so that matching an operand list is a sequence of bitwise ANDs. */
+	private final long[] operandMasks;
+	
 	
 	
 	/**
@@ -72,6 +77,10 @@ public final class InstructionPattern {
 		Collections.addAll(tempoper, operands);
 		this.operands = Collections.unmodifiableList(tempoper);
 		
+		operandMasks = new long[operands.length];
+		for (int i = 0; i < operands.length; i++)
+			operandMasks[i] = operands[i].mask;
+		
 		List<InstructionOption> tempopt = new ArrayList<InstructionOption>();
 		Collections.addAll(tempopt, options);
 		this.options = Collections.unmodifiableList(tempopt);
@@ -79,6 +88,22 @@ public final class InstructionPattern {
 	
 	
 	
+	/**
+	 * Tests whether the specified list of operands matches this pattern's list of operand patterns.
+	 * @param operands the list of operands
+	 * @return {@code true} if the operands match this pattern, {@code false} otherwise
+	 */
+	public boolean matches(List<Operand> operands) {
+		if (operands.size() != operandMasks.length)
+			return false;
+		for (int i = 0; i < operandMasks.length; i++) {
+			if ((operands.get(i).getKinds() & operandMasks[i]) == 0)
+				return false;
+		}
+		return true;
+	}
+	
+	
 	/**
 	 * Returns a string representation of this instruction pattern. The format is subjected to change.
 	 * @return a string representation of this instruction pattern
@@ -3,17 +3,21 @@ package org.p79068.assembler.generator;
 import static org.p79068.assembler.generator.OperandPattern.*;
 import static org.p79068.assembler.generator.OperandSizeMode.*;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
+import org.p79068.assembler.CompactProgram;
 import org.p79068.assembler.operand.Operand;
 
 
 /**
- * A set of instruction patterns.
+ * A set of instruction patterns. A table is filled and compiled during class initialization and is immutable afterward, so it is safely published and can be used by any number of threads without locking.
  */
 public class InstructionPatternTable {
 	
@@ -128,8 +132,11 @@ public class InstructionPatternTable {
 		MODE32_TABLE.add("imulw"        , opPat(REG16, RM16, IMM16)  , MODE16  , new int[]{0x69}, new ModRM(1, 0));
 		MODE32_TABLE.add("imull"        , opPat(REG32, RM32, IMM32)  , MODE32  , new int[]{0x69}, new ModRM(1, 0));
 		MODE32_TABLE.add("pushb"        , opPat(IMM8)                , MODELESS, new int[]{0x6A});
+		MODE32_TABLE.add("pushl"        , opPat(IMM8S)               , MODE32  , new int[]{0x6A});
 		MODE32_TABLE.add("imulwb"       , opPat(REG16, RM16, IMM8)   , MODE16  , new int[]{0x6B}, new ModRM(1, 0));
 		MODE32_TABLE.add("imullb"       , opPat(REG32, RM32, IMM8)   , MODE32  , new int[]{0x6B}, new ModRM(1, 0));
+		MODE32_TABLE.add("imulw"        , opPat(REG16, RM16, IMM8S)  , MODE16  , new int[]{0x6B}, new ModRM(1, 0));
+		MODE32_TABLE.add("imull"        , opPat(REG32, RM32, IMM8S)  , MODE32  , new int[]{0x6B}, new ModRM(1, 0));
 		MODE32_TABLE.add("insb"         , opPat()                    , MODELESS, new int[]{0x6C});
 		MODE32_TABLE.add("insw"         , opPat()                    , MODE16  , new int[]{0x6D});
 		MODE32_TABLE.add("insl"         , opPat()                    , MODE32  , new int[]{0x6D});
@@ -176,22 +183,22 @@ public class InstructionPatternTable {
 		MODE32_TABLE.add("subl"         , opPat(RM32, IMM32)         , MODE32  , new int[]{0x81}, new ModRM(0, 15));
 		MODE32_TABLE.add("xorl"         , opPat(RM32, IMM32)         , MODE32  , new int[]{0x81}, new ModRM(0, 16));
 		MODE32_TABLE.add("cmpl"         , opPat(RM32, IMM32)         , MODE32  , new int[]{0x81}, new ModRM(0, 17));
-		MODE32_TABLE.add("addwb"        , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 10));
-		MODE32_TABLE.add("orwb"         , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 11));
-		MODE32_TABLE.add("adcwb"        , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 12));
-		MODE32_TABLE.add("sbbwb"        , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 13));
-		MODE32_TABLE.add("andwb"        , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 14));
-		MODE32_TABLE.add("subwb"        , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 15));
-		MODE32_TABLE.add("xorwb"        , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 16));
-		MODE32_TABLE.add("cmpwb"        , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 17));
-		MODE32_TABLE.add("addlb"        , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 10));
-		MODE32_TABLE.add("orlb"         , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 11));
-		MODE32_TABLE.add("adclb"        , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 12));
-		MODE32_TABLE.add("sbblb"        , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 13));
-		MODE32_TABLE.add("andlb"        , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 14));
-		MODE32_TABLE.add("sublb"        , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 15));
-		MODE32_TABLE.add("xorlb"        , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 16));
-		MODE32_TABLE.add("cmplb"        , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 17));
+		MODE32_TABLE.add("addwb|addw"   , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 10));
+		MODE32_TABLE.add("orwb|orw"     , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 11));
+		MODE32_TABLE.add("adcwb|adcw"   , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 12));
+		MODE32_TABLE.add("sbbwb|sbbw"   , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 13));
+		MODE32_TABLE.add("andwb|andw"   , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 14));
+		MODE32_TABLE.add("subwb|subw"   , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 15));
+		MODE32_TABLE.add("xorwb|xorw"   , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 16));
+		MODE32_TABLE.add("cmpwb|cmpw"   , opPat(RM16, IMM8S)         , MODE16  , new int[]{0x83}, new ModRM(0, 17));
+		MODE32_TABLE.add("addlb|addl"   , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 10));
+		MODE32_TABLE.add("orlb|orl"     , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 11));
+		MODE32_TABLE.add("adclb|adcl"   , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 12));
+		MODE32_TABLE.add("sbblb|sbbl"   , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 13));
+		MODE32_TABLE.add("andlb|andl"   , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 14));
+		MODE32_TABLE.add("sublb|subl"   , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 15));
+		MODE32_TABLE.add("xorlb|xorl"   , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 16));
+		MODE32_TABLE.add("cmplb|cmpl"   , opPat(RM32, IMM8S)         , MODE32  , new int[]{0x83}, new ModRM(0, 17));
 		MODE32_TABLE.add("testb"        , opPat(RM8, REG8)           , MODELESS, new int[]{0x84}, new ModRM(0, 1));
 		MODE32_TABLE.add("testw"        , opPat(RM16, REG16)         , MODE16  , new int[]{0x85}, new ModRM(0, 1));
 		MODE32_TABLE.add("testl"        , opPat(RM32, REG32)         , MODE32  , new int[]{0x85}, new ModRM(0, 1));
@@ -498,13 +505,25 @@ public class InstructionPatternTable {
 		MODE32_TABLE.add("cmpxchg8b"    , opPat(MEM)                 , MODELESS, new int[]{0x0F, 0xC7}, new ModRM(0, 11));
 		MODE32_TABLE.add("bswapw"       , opPat(REG16)               , MODE16  , new int[]{0x0F, 0xC8}, new RegisterInOpcode(0));
 		MODE32_TABLE.add("bswapl"       , opPat(REG32)               , MODE32  , new int[]{0x0F, 0xC8}, new RegisterInOpcode(0));
+		MODE32_TABLE.compile();
 	}
 	
 	
 	
-	private Set<InstructionPattern> patterns;
+	/** All the patterns, in the order they were added. */
+	private final List<InstructionPattern> patterns;
 	
-	private Map<String,Set<InstructionPattern>> patternsByMnemonic;
+	/** The patterns for each mnemonic, in the order they were added. */
+	private final Map<String,List<InstructionPattern>> patternsByMnemonic;
+	
+	/** The compiled dispatch index, which is {@code null} until {@link #compile()} is called. */
+	private PatternIndex index;
+	
+	/** The mapping of each pattern with a wide relative operand to the same pattern with a rel8 operand, if one exists. This is {@code null} until {@link #compile()} is called. */
+	private Map<InstructionPattern,InstructionPattern> shortForms;
+	
+	/** The SHA-256 digest of all the patterns in hexadecimal, which is {@code null} until {@link #compile()} is called. */
+	private String fingerprint;
 	
 	
 	
@@ -512,8 +531,11 @@ public class InstructionPatternTable {
 	 * Constructs an empty instruction pattern table.
 	 */
 	private InstructionPatternTable() {
-		patterns = new HashSet<InstructionPattern>();
-		patternsByMnemonic = new HashMap<String,Set<InstructionPattern>>();
+		patterns = new ArrayList<InstructionPattern>();
+		patternsByMnemonic = new HashMap<String,List<InstructionPattern>>();
+		index = null;
+		shortForms = null;
+		fingerprint = null;
 	}
 	
 	
@@ -526,10 +548,12 @@ public class InstructionPatternTable {
 	private void add(InstructionPattern pat) {
 		if (pat == null)
 			throw new NullPointerException();
+		if (index != null)
+			throw new IllegalStateException("Table already compiled");
 		patterns.add(pat);
 		
 		if (!patternsByMnemonic.containsKey(pat.mnemonic))
-			patternsByMnemonic.put(pat.mnemonic, new HashSet<InstructionPattern>());
+			patternsByMnemonic.put(pat.mnemonic, new ArrayList<InstructionPattern>());
 		patternsByMnemonic.get(pat.mnemonic).add(pat);
 	}
 	
@@ -562,12 +586,116 @@ public class InstructionPatternTable {
 	
 	
 	/**
-	 * Returns an instruction pattern in this table that matches the specified mnemonic and that best matches list of operands.
+	 * Compiles the dispatch index for the patterns added so far. No more patterns can be added afterward.
+	 */
+	private void compile() {
+		index = new PatternIndex(this, patternsByMnemonic);
+		
+		shortForms = new HashMap<InstructionPattern,InstructionPattern>();
+		for (List<InstructionPattern> pats : patternsByMnemonic.values()) {
+			for (InstructionPattern pat : pats) {
+				for (InstructionPattern other : pats) {
+					if (isShortFormOf(other, pat))
+						shortForms.put(pat, other);
+				}
+			}
+		}
+		
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);  // Every Java platform supports SHA-256
+		}
+		for (InstructionPattern pat : patterns)
+			digest.update(describe(pat).getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest())
+			sb.append(String.format("%02x", b & 0xFF));
+		fingerprint = sb.toString();
+	}
+	
+	
+	// Describes everything about the pattern that affects the machine code, one line per pattern
+	private static String describe(InstructionPattern pat) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(pat.mnemonic).append('|').append(pat.operands).append('|').append(pat.operandSizeMode).append('|');
+		for (byte b : pat.opcodes)
+			sb.append(String.format("%02X", b & 0xFF));
+		for (InstructionOption option : pat.options) {
+			if (option instanceof ModRM) {
+				ModRM modrm = (ModRM)option;
+				sb.append("|modrm ").append(modrm.rmOperandIndex).append(' ').append(modrm.regOpcodeOperandIndex);
+			} else if (option instanceof RegisterInOpcode)
+				sb.append("|reg ").append(((RegisterInOpcode)option).operandIndex);
+			else
+				throw new AssertionError("Unknown option " + option.getClass());
+		}
+		return sb.append('\n').toString();
+	}
+	
+	
+	/**
+	 * Returns an instruction pattern in this table that matches the specified mnemonic and that best matches list of operands. This is a single lookup in the compiled dispatch index.
 	 * @param mnemonic the mnemonic
 	 * @param operands the list of operands
 	 * @return an instruction pattern that matches the mnemonic and operands
 	 */
 	public InstructionPattern match(String mnemonic, List<Operand> operands) {
+		if (mnemonic == null || operands == null)
+			throw new NullPointerException();
+		return index.match(mnemonic, operands);
+	}
+	
+	
+	/**
+	 * Returns an instruction pattern in this table that matches the mnemonic of the specified instruction statement and that best matches its operands, which are read in place without decoding them. This gives the same result as {@link #match(String, List)}.
+	 * @param program the compact program
+	 * @param statement the index of an instruction statement in the program
+	 * @return an instruction pattern that matches the mnemonic and operands
+	 */
+	InstructionPattern match(CompactProgram program, int statement) {
+		return index.match(program.getMnemonic(statement), program, statement);
+	}
+	
+	
+	/**
+	 * Returns a read-only view of all the patterns in this table, in the order they were added.
+	 * @return the list of patterns in this table
+	 */
+	List<InstructionPattern> getPatterns() {
+		return Collections.unmodifiableList(patterns);
+	}
+	
+	
+	/**
+	 * Returns a fingerprint of the contents of this table, which changes whenever a pattern is added, removed, or changed. Caches of assembled output include it in their keys, so that entries from an older table are not reused.
+	 * @return the SHA-256 digest of the patterns in this table, as 64 lowercase hexadecimal digits
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+	
+	
+	/**
+	 * Returns the pattern in this table that is the same as the specified pattern except that its wide relative operands (rel16 or rel32) are rel8, or {@code null} if there is no such pattern. This is the short form of a branch, which can be used when the target is within a signed 8-bit displacement.
+	 * @param pat an instruction pattern in this table
+	 * @return the short form of the pattern, or {@code null} if none exists
+	 */
+	public InstructionPattern getShortForm(InstructionPattern pat) {
+		if (pat == null)
+			throw new NullPointerException();
+		return shortForms.get(pat);
+	}
+	
+	
+	/**
+	 * Returns an instruction pattern in this table that matches the specified mnemonic and that best matches list of operands, by testing every pattern for the mnemonic. Among the matching patterns, the one with the widest relative operands is chosen, then the one with the shortest encoding, then the one that was added to the table first. This gives the same result as {@link #match(String, List)}, and is used to compile the dispatch index.
+	 * @param mnemonic the mnemonic
+	 * @param operands the list of operands
+	 * @return an instruction pattern that matches the mnemonic and operands
+	 */
+	InstructionPattern matchLinear(String mnemonic, List<Operand> operands) {
 		if (mnemonic == null || operands == null)
 			throw new NullPointerException();
 		if (!patternsByMnemonic.containsKey(mnemonic))
@@ -575,7 +703,7 @@ public class InstructionPatternTable {
 		
 		InstructionPattern bestmatch = null;
 		for (InstructionPattern pat : patternsByMnemonic.get(mnemonic)) {
-			if (matches(pat, operands) && (bestmatch == null || isBetterMatch(pat, bestmatch, operands))) {
+			if (pat.matches(operands) && (bestmatch == null || isBetterMatch(pat, bestmatch, operands))) {
 				bestmatch = pat;
 			}
 		}
@@ -587,17 +715,6 @@ public class InstructionPatternTable {
 	}
 	
 	
-	private static boolean matches(InstructionPattern pat, List<Operand> operands) {
-		if (pat.operands.size() != operands.size())
-			return false;
-		for (int i = 0; i < pat.operands.size() && i < operands.size(); i++) {
-			if (!pat.operands.get(i).matches(operands.get(i)))
-				return false;
-		}
-		return true;
-	}
-	
-	
 	private static boolean isBetterMatch(InstructionPattern x, InstructionPattern y, List<Operand> operands) {
 		boolean isbetter = false;
 		boolean isworse = false;
@@ -610,7 +727,28 @@ public class InstructionPatternTable {
 			}
 		}
 		
-		return !isworse && isbetter;
+		if (isbetter || isworse)
+			return !isworse && isbetter;
+		
+		// Shorter is better. Ties keep the pattern that was added first
+		return CodeGenerator.getMachineCodeLength(x, operands) < CodeGenerator.getMachineCodeLength(y, operands);
+	}
+	
+	
+	private static boolean isShortFormOf(InstructionPattern x, InstructionPattern y) {
+		if (x.operands.size() != y.operands.size())
+			return false;
+		
+		boolean isshorter = false;
+		for (int i = 0; i < x.operands.size(); i++) {
+			OperandPattern xop = x.operands.get(i);
+			OperandPattern yop = y.operands.get(i);
+			if (xop == REL8 && (yop == REL16 || yop == REL32))
+				isshorter = true;
+			else if (xop != yop)
+				return false;
+		}
+		return isshorter;
 	}
 	
 	
@@ -1,91 +1,114 @@
 package org.p79068.assembler.generator;
 
-import org.p79068.assembler.operand.Immediate;
-import org.p79068.assembler.operand.ImmediateValue;
-import org.p79068.assembler.operand.Label;
-import org.p79068.assembler.operand.Memory;
 import org.p79068.assembler.operand.Operand;
+import org.p79068.assembler.operand.OperandKind;
+import org.p79068.assembler.operand.Register;
 import org.p79068.assembler.operand.Register16;
 import org.p79068.assembler.operand.Register32;
 import org.p79068.assembler.operand.Register8;
 import org.p79068.assembler.operand.SegmentRegister;
 
 
-abstract class OperandPattern {
-	
-	public static OperandPattern IMM8  = new OperandPattern("imm8" ) { @Override public boolean matches(Operand op) { return op instanceof Label || op instanceof ImmediateValue && ((ImmediateValue)op).is8Bit(); } };
-	public static OperandPattern IMM16 = new OperandPattern("imm16") { @Override public boolean matches(Operand op) { return op instanceof Label || op instanceof ImmediateValue && ((ImmediateValue)op).is16Bit(); } };
-	public static OperandPattern IMM32 = new OperandPattern("imm32") { @Override public boolean matches(Operand op) { return op instanceof Label || op instanceof ImmediateValue; } };
-	
-	public static OperandPattern IMM8S = new OperandPattern("imm8s") { @Override public boolean matches(Operand op) { return op instanceof ImmediateValue && ((ImmediateValue)op).isSigned8Bit(); } };
-	
-	public static OperandPattern REL8  = new OperandPattern("rel8" ) { @Override public boolean matches(Operand op) { return op instanceof Immediate; } };
-	public static OperandPattern REL16 = new OperandPattern("rel16") { @Override public boolean matches(Operand op) { return op instanceof Immediate; } };
-	public static OperandPattern REL32 = new OperandPattern("rel32") { @Override public boolean matches(Operand op) { return op instanceof Immediate; } };
-	
-	public static OperandPattern IMM_VAL_1 = new LiteralOperandPattern(new ImmediateValue(1));
-	public static OperandPattern IMM_VAL_3 = new LiteralOperandPattern(new ImmediateValue(3));
-	
-	public static OperandPattern MEM = new OperandPattern("mem") { @Override public boolean matches(Operand op) { return op instanceof Memory; } };
-	
-	public static OperandPattern RM8  = new OperandPattern("r/m8" ) { @Override public boolean matches(Operand op) { return op instanceof Register8  || op instanceof Memory; } };
-	public static OperandPattern RM16 = new OperandPattern("r/m16") { @Override public boolean matches(Operand op) { return op instanceof Register16 || op instanceof Memory; } };
-	public static OperandPattern RM32 = new OperandPattern("r/m32") { @Override public boolean matches(Operand op) { return op instanceof Register32 || op instanceof Memory; } };
-	
-	public static OperandPattern REG8  = new OperandPattern("reg8" ) { @Override public boolean matches(Operand op) { return op instanceof Register8; } };
-	public static OperandPattern REG16 = new OperandPattern("reg16") { @Override public boolean matches(Operand op) { return op instanceof Register16; } };
-	public static OperandPattern REG32 = new OperandPattern("reg32") { @Override public boolean matches(Operand op) { return op instanceof Register32; } };
-	public static OperandPattern SREG  = new OperandPattern("sreg" ) { @Override public boolean matches(Operand op) { return op instanceof SegmentRegister; } };
-	
-	public static OperandPattern AL = new LiteralOperandPattern(Register8.AL);
-	public static OperandPattern AH = new LiteralOperandPattern(Register8.AH);
-	public static OperandPattern BL = new LiteralOperandPattern(Register8.BL);
-	public static OperandPattern BH = new LiteralOperandPattern(Register8.BH);
-	public static OperandPattern CL = new LiteralOperandPattern(Register8.CL);
-	public static OperandPattern CH = new LiteralOperandPattern(Register8.CH);
-	public static OperandPattern DL = new LiteralOperandPattern(Register8.DL);
-	public static OperandPattern DH = new LiteralOperandPattern(Register8.DH);
-	
-	public static OperandPattern AX = new LiteralOperandPattern(Register16.AX);
-	public static OperandPattern BX = new LiteralOperandPattern(Register16.BX);
-	public static OperandPattern CX = new LiteralOperandPattern(Register16.CX);
-	public static OperandPattern DX = new LiteralOperandPattern(Register16.DX);
-	public static OperandPattern SP = new LiteralOperandPattern(Register16.SP);
-	public static OperandPattern BP = new LiteralOperandPattern(Register16.BP);
-	public static OperandPattern SI = new LiteralOperandPattern(Register16.SI);
-	public static OperandPattern DI = new LiteralOperandPattern(Register16.DI);
-	
-	public static OperandPattern EAX = new LiteralOperandPattern(Register32.EAX);
-	public static OperandPattern EBX = new LiteralOperandPattern(Register32.EBX);
-	public static OperandPattern ECX = new LiteralOperandPattern(Register32.ECX);
-	public static OperandPattern EDX = new LiteralOperandPattern(Register32.EDX);
-	public static OperandPattern ESP = new LiteralOperandPattern(Register32.ESP);
-	public static OperandPattern EBP = new LiteralOperandPattern(Register32.EBP);
-	public static OperandPattern ESI = new LiteralOperandPattern(Register32.ESI);
-	public static OperandPattern EDI = new LiteralOperandPattern(Register32.EDI);
-	
-	public static OperandPattern CS = new LiteralOperandPattern(SegmentRegister.CS);
-	public static OperandPattern DS = new LiteralOperandPattern(SegmentRegister.DS);
-	public static OperandPattern ES = new LiteralOperandPattern(SegmentRegister.ES);
-	public static OperandPattern FS = new LiteralOperandPattern(SegmentRegister.FS);
-	public static OperandPattern GS = new LiteralOperandPattern(SegmentRegister.GS);
-	public static OperandPattern SS = new LiteralOperandPattern(SegmentRegister.SS);
+/**
+ * A pattern that an instruction operand must match. A pattern is a mask of operand kind flags, and an operand matches if it has any of those flags. Immutable.
+ * @see OperandKind
+ */
+final class OperandPattern {
+	
+	public static final OperandPattern IMM8  = new OperandPattern("imm8" , OperandKind.LABEL | OperandKind.IMM8 );
+	public static final OperandPattern IMM16 = new OperandPattern("imm16", OperandKind.LABEL | OperandKind.IMM16);
+	public static final OperandPattern IMM32 = new OperandPattern("imm32", OperandKind.LABEL | OperandKind.IMM  );
+	
+	public static final OperandPattern IMM8S = new OperandPattern("imm8s", OperandKind.IMM8S);
+	
+	public static final OperandPattern REL8  = new OperandPattern("rel8" , OperandKind.LABEL | OperandKind.IMM);
+	public static final OperandPattern REL16 = new OperandPattern("rel16", OperandKind.LABEL | OperandKind.IMM);
+	public static final OperandPattern REL32 = new OperandPattern("rel32", OperandKind.LABEL | OperandKind.IMM);
+	
+	public static final OperandPattern IMM_VAL_1 = new OperandPattern("1", OperandKind.IMM_VAL_1);
+	public static final OperandPattern IMM_VAL_3 = new OperandPattern("3", OperandKind.IMM_VAL_3);
+	
+	public static final OperandPattern MEM = new OperandPattern("mem", OperandKind.MEMORY);
+	
+	public static final OperandPattern RM8  = new OperandPattern("r/m8" , OperandKind.REG8  | OperandKind.MEMORY);
+	public static final OperandPattern RM16 = new OperandPattern("r/m16", OperandKind.REG16 | OperandKind.MEMORY);
+	public static final OperandPattern RM32 = new OperandPattern("r/m32", OperandKind.REG32 | OperandKind.MEMORY);
+	
+	public static final OperandPattern REG8  = new OperandPattern("reg8" , OperandKind.REG8 );
+	public static final OperandPattern REG16 = new OperandPattern("reg16", OperandKind.REG16);
+	public static final OperandPattern REG32 = new OperandPattern("reg32", OperandKind.REG32);
+	public static final OperandPattern SREG  = new OperandPattern("sreg" , OperandKind.SREG );
+	
+	public static final OperandPattern AL = literal(Register8.AL);
+	public static final OperandPattern AH = literal(Register8.AH);
+	public static final OperandPattern BL = literal(Register8.BL);
+	public static final OperandPattern BH = literal(Register8.BH);
+	public static final OperandPattern CL = literal(Register8.CL);
+	public static final OperandPattern CH = literal(Register8.CH);
+	public static final OperandPattern DL = literal(Register8.DL);
+	public static final OperandPattern DH = literal(Register8.DH);
+	
+	public static final OperandPattern AX = literal(Register16.AX);
+	public static final OperandPattern BX = literal(Register16.BX);
+	public static final OperandPattern CX = literal(Register16.CX);
+	public static final OperandPattern DX = literal(Register16.DX);
+	public static final OperandPattern SP = literal(Register16.SP);
+	public static final OperandPattern BP = literal(Register16.BP);
+	public static final OperandPattern SI = literal(Register16.SI);
+	public static final OperandPattern DI = literal(Register16.DI);
+	
+	public static final OperandPattern EAX = literal(Register32.EAX);
+	public static final OperandPattern EBX = literal(Register32.EBX);
+	public static final OperandPattern ECX = literal(Register32.ECX);
+	public static final OperandPattern EDX = literal(Register32.EDX);
+	public static final OperandPattern ESP = literal(Register32.ESP);
+	public static final OperandPattern EBP = literal(Register32.EBP);
+	public static final OperandPattern ESI = literal(Register32.ESI);
+	public static final OperandPattern EDI = literal(Register32.EDI);
+	
+	public static final OperandPattern CS = literal(SegmentRegister.CS);
+	public static final OperandPattern DS = literal(SegmentRegister.DS);
+	public static final OperandPattern ES = literal(SegmentRegister.ES);
+	public static final OperandPattern FS = literal(SegmentRegister.FS);
+	public static final OperandPattern GS = literal(SegmentRegister.GS);
+	public static final OperandPattern SS = literal(SegmentRegister.SS);
+	
+	
+	/**
+	 * Returns a pattern that matches only the specified register.
+	 * @param reg the register to match
+	 * @return a pattern that matches the register
+	 */
+	private static OperandPattern literal(Register reg) {
+		return new OperandPattern(reg.toString(), reg.getKinds());
+	}
 	
 	
 	
 	private String name;
 	
+	/** The mask of operand kind flags that this pattern accepts. */
+	public final long mask;
 	
 	
-	public OperandPattern(String name) {
+	
+	private OperandPattern(String name, long mask) {
 		if (name == null)
 			throw new NullPointerException();
 		this.name = name;
+		this.mask = mask;
 	}
 	
 	
 	
-	public abstract boolean matches(Operand operand);
+	/**
+	 * Tests whether the specified operand matches this pattern.
+	 * @param operand the operand to test
+	 * @return {@code true} if the operand matches this pattern, {@code false} otherwise
+	 */
+	public boolean matches(Operand operand) {
+		return (operand.getKinds() & mask) != 0;
+	}
 	
 	
 	/**
@@ -0,0 +1,220 @@
+package org.p79068.assembler.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.p79068.assembler.CompactProgram;
+import org.p79068.assembler.operand.ImmediateValue;
+import org.p79068.assembler.operand.Label;
+import org.p79068.assembler.operand.Memory;
+import org.p79068.assembler.operand.Operand;
+import org.p79068.assembler.operand.OperandKind;
+import org.p79068.assembler.operand.Register16;
+import org.p79068.assembler.operand.Register32;
+import org.p79068.assembler.operand.Register8;
+import org.p79068.assembler.operand.SegmentRegister;
+
+
+/**
+ * A precompiled dispatch index over the patterns of an instruction pattern table. Every operand is reduced to a shape code derived from its kind flags, such that operands with the same shape match exactly the same operand patterns. The best pattern for every combination of mnemonic and operand shapes is computed once at construction, so a lookup is a single hash probe with no per-candidate matching. Immutable.
+ */
+final class PatternIndex {
+	
+	/** The number of bits per operand in a shape signature. */
+	private static final int SHAPE_BITS = 6;
+	
+	/** The number of bits in a shape signature: a 2-bit operand count plus up to 3 operand shapes. */
+	private static final int SIGNATURE_BITS = 2 + 3 * SHAPE_BITS;
+	
+	/** One operand of each shape, indexed by shape code. Unused shape codes have {@code null}. */
+	private static final Operand[] REPRESENTATIVES;
+	
+	static {
+		Operand[] operands = {
+			Register8.AL, Register8.CL, Register8.DL, Register8.BL, Register8.AH, Register8.CH, Register8.DH, Register8.BH,
+			Register16.AX, Register16.CX, Register16.DX, Register16.BX, Register16.SP, Register16.BP, Register16.SI, Register16.DI,
+			Register32.EAX, Register32.ECX, Register32.EDX, Register32.EBX, Register32.ESP, Register32.EBP, Register32.ESI, Register32.EDI,
+			SegmentRegister.ES, SegmentRegister.CS, SegmentRegister.SS, SegmentRegister.DS, SegmentRegister.FS, SegmentRegister.GS,
+			new Memory(Register32.EAX, null, 1, ImmediateValue.ZERO),
+			new Label("label"),
+			new ImmediateValue(1),         // IMM_VAL_1, IMM8S, IMM8, IMM16
+			new ImmediateValue(3),         // IMM_VAL_3, IMM8S, IMM8, IMM16
+			new ImmediateValue(-2),        // IMM8S, IMM8, IMM16
+			new ImmediateValue(0x80),      // IMM8, IMM16
+			new ImmediateValue(0x1000),    // IMM16
+			new ImmediateValue(0x100000),  // IMM only
+		};
+		REPRESENTATIVES = new Operand[1 << SHAPE_BITS];
+		for (Operand op : operands)
+			REPRESENTATIVES[getShape(op.getKinds())] = op;
+	}
+	
+	
+	
+	/** The mapping of mnemonics to dense mnemonic IDs. */
+	private Map<String,Integer> mnemonicIds;
+	
+	/** The open-addressing hash table keys, which are (mnemonic ID, signature) pairs. Empty slots are -1. The length is a power of 2. */
+	private int[] keys;
+	
+	/** The best pattern for each key in {@code keys}. */
+	private InstructionPattern[] values;
+	
+	/** The right shift that maps a scrambled key to a slot in the hash table. */
+	private int shift;
+	
+	
+	
+	/**
+	 * Compiles an index for the specified patterns, grouped by mnemonic. Ties between equally good patterns are broken by {@link InstructionPatternTable#matchLinear(String, List)}, so that this index gives the same results as the linear scan.
+	 * @param table the table to compile
+	 * @param patternsByMnemonic the patterns of the table grouped by mnemonic
+	 */
+	public PatternIndex(InstructionPatternTable table, Map<String,List<InstructionPattern>> patternsByMnemonic) {
+		if (table == null || patternsByMnemonic == null)
+			throw new NullPointerException();
+		if (patternsByMnemonic.size() >= 1 << (31 - SIGNATURE_BITS))
+			throw new IllegalArgumentException("Too many mnemonics");
+		
+		// Collect every key that has at least one matching pattern, along with a representative operand list
+		mnemonicIds = new HashMap<String,Integer>();
+		List<String> mnemonics = new ArrayList<String>();
+		Map<Integer,List<Operand>> representatives = new HashMap<Integer,List<Operand>>();
+		for (Map.Entry<String,List<InstructionPattern>> entry : patternsByMnemonic.entrySet()) {
+			int id = mnemonics.size();
+			mnemonicIds.put(entry.getKey(), id);
+			mnemonics.add(entry.getKey());
+			for (InstructionPattern pat : entry.getValue())
+				addKeys(id, pat.operands, 0, 0, new ArrayList<Operand>(), representatives);
+		}
+		
+		// Resolve the best pattern for each key
+		int capacity = Integer.highestOneBit(Math.max(representatives.size(), 1) * 4);
+		keys = new int[capacity];
+		Arrays.fill(keys, -1);
+		values = new InstructionPattern[capacity];
+		shift = 32 - Integer.numberOfTrailingZeros(capacity);
+		for (Map.Entry<Integer,List<Operand>> entry : representatives.entrySet()) {
+			int key = entry.getKey();
+			int i = slot(key);
+			while (keys[i] != -1)
+				i = (i + 1) & (keys.length - 1);
+			keys[i] = key;
+			values[i] = table.matchLinear(mnemonics.get(key >>> SIGNATURE_BITS), entry.getValue());
+		}
+	}
+	
+	
+	
+	/**
+	 * Returns the best instruction pattern for the specified mnemonic and list of operands.
+	 * @param mnemonic the mnemonic
+	 * @param operands the list of operands
+	 * @return the best matching instruction pattern
+	 * @throws IllegalArgumentException if the mnemonic is unknown or no pattern matches
+	 */
+	public InstructionPattern match(String mnemonic, List<Operand> operands) {
+		int numOperands = operands.size();
+		int signature = numOperands;
+		for (int i = 0; i < numOperands && i < 3; i++)
+			signature |= getShape(operands.get(i).getKinds()) << (2 + i * SHAPE_BITS);
+		return lookup(mnemonic, numOperands, signature);
+	}
+	
+	
+	/**
+	 * Returns the best instruction pattern for the specified mnemonic and the operands of the specified statement in the compact program, which are read in place. This gives the same result as {@link #match(String, List)} with the decoded operands.
+	 * @param mnemonic the mnemonic
+	 * @param program the compact program
+	 * @param index the statement index in the program
+	 * @return the best matching instruction pattern
+	 * @throws IllegalArgumentException if the mnemonic is unknown or no pattern matches
+	 */
+	public InstructionPattern match(String mnemonic, CompactProgram program, int index) {
+		int first = program.getOperandStart(index);
+		int numOperands = program.getOperandCount(index);
+		int signature = numOperands;
+		for (int i = 0; i < numOperands && i < 3; i++)
+			signature |= getShape(program.getOperandKinds(first + i)) << (2 + i * SHAPE_BITS);
+		return lookup(mnemonic, numOperands, signature);
+	}
+	
+	
+	/**
+	 * Returns the best instruction pattern for the specified mnemonic and operand shape signature.
+	 * @param mnemonic the mnemonic
+	 * @param numOperands the number of operands
+	 * @param signature the shape signature of the operands, which is only meaningful for up to 3 operands
+	 * @return the best matching instruction pattern
+	 * @throws IllegalArgumentException if the mnemonic is unknown or no pattern matches
+	 */
+	private InstructionPattern lookup(String mnemonic, int numOperands, int signature) {
+		Integer id = mnemonicIds.get(mnemonic);
+		if (id == null)
+			throw new IllegalArgumentException("Invalid mnemonic: " + mnemonic);
+		
+		if (numOperands <= 3) {
+			int key = id << SIGNATURE_BITS | signature;
+			for (int i = slot(key); keys[i] != -1; i = (i + 1) & (keys.length - 1)) {
+				if (keys[i] == key)
+					return values[i];
+			}
+		}
+		throw new IllegalArgumentException("No match: " + mnemonic);
+	}
+	
+	
+	/**
+	 * Returns the initial slot for the specified key in the hash table.
+	 * @param key the key
+	 * @return the slot index
+	 */
+	private int slot(int key) {
+		return (key * 0x9E3779B9) >>> shift;
+	}
+	
+	
+	/**
+	 * Recursively enumerates the operand shapes matched by the specified operand patterns, starting at the specified index, and records a key with a representative operand list for each combination.
+	 * @param id the mnemonic ID
+	 * @param operands the operand patterns
+	 * @param index the index of the next operand pattern to enumerate
+	 * @param signature the signature bits for the operands before the index
+	 * @param prefix the representative operands before the index
+	 * @param representatives the mapping of keys to representative operand lists, which receives the results
+	 */
+	private static void addKeys(int id, List<OperandPattern> operands, int index, int signature, List<Operand> prefix, Map<Integer,List<Operand>> representatives) {
+		if (index == operands.size()) {
+			int key = id << SIGNATURE_BITS | signature | operands.size();
+			if (!representatives.containsKey(key))
+				representatives.put(key, new ArrayList<Operand>(prefix));
+			return;
+		}
+		
+		OperandPattern pat = operands.get(index);
+		for (int shape = 0; shape < REPRESENTATIVES.length; shape++) {
+			if (REPRESENTATIVES[shape] != null && pat.matches(REPRESENTATIVES[shape])) {
+				prefix.add(REPRESENTATIVES[shape]);
+				addKeys(id, operands, index + 1, signature | shape << (2 + index * SHAPE_BITS), prefix, representatives);
+				prefix.remove(prefix.size() - 1);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Returns the shape code of an operand with the specified kind flags. Registers, memory, and labels have a single flag below bit 32, whose index is the shape code. For immediate values, the flags above {@link OperandKind#IMM} form the low bits of the shape code.
+	 * @param kinds the kind flags of the operand
+	 * @return the shape code, in the range [0, 64)
+	 */
+	static int getShape(long kinds) {
+		if ((kinds & OperandKind.IMM) == 0)
+			return Long.numberOfTrailingZeros(kinds);
+		else
+			return 32 | (int)(kinds >>> 33);
+	}
+	
+}
@@ -9,9 +9,12 @@ import java.util.Map;
 public abstract class Immediate extends Operand {
 	
 	/**
-	 * Constructs an immediate operand.
+	 * Constructs an immediate operand with the specified kind flags.
+	 * @param kinds the kind flags
 	 */
-	Immediate() {}
+	Immediate(long kinds) {
+		super(kinds);
+	}
 	
 	
 	/**
@@ -23,6 +23,7 @@ public class ImmediateValue extends Immediate {
 	 * @param value the value
 	 */
 	public ImmediateValue(int value) {
+		super(OperandKind.ofImmediate(value));
 		this.value = value;
 	}
 	
@@ -11,16 +11,33 @@ public class Label extends Immediate {
 	/** The name of the label. */
 	private String name;
 	
+	/** The ID of this label in its symbol table, or -1 if this label is not interned. */
+	private int id;
+	
 	
 	
 	/**
-	 * Constructs a label with the specified name.
+	 * Constructs a label with the specified name, which is not interned in a symbol table.
 	 * @param name the name of the label
 	 */
 	public Label(String name) {
+		this(name, -1);
+	}
+	
+	
+	/**
+	 * Constructs a label with the specified name and symbol table ID. Labels with IDs are normally created only by {@link org.p79068.assembler.SymbolTable}.
+	 * @param name the name of the label
+	 * @param id the ID of the label, or -1 if not interned
+	 */
+	public Label(String name, int id) {
+		super(OperandKind.LABEL);
 		if (name == null)
 			throw new NullPointerException();
+		if (id < -1)
+			throw new IllegalArgumentException("Invalid ID");
 		this.name = name;
+		this.id = id;
 	}
 	
 	
@@ -33,17 +50,30 @@ public class Label extends Immediate {
 	}
 	
 	
+	/**
+	 * Returns the ID of this label in its symbol table, or -1 if this label is not interned.
+	 * @return the ID of this label, or -1
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	
 	/**
 	 * Returns the value of this label operand, given the specified label offset mapping. This method returns an {@link ImmediateValue} of {@code labelOffset.get(this.name)}.
 	 * @param labelOffsets the mapping of label names to offset
 	 * @return the offset of this label
+	 * @throws IllegalArgumentException if the mapping has no offset for this label
 	 */
 	@Override
 	public ImmediateValue getValue(Map<String,Integer> labelOffsets) {
-		return new ImmediateValue(labelOffsets.get(name));
+		Integer offset = labelOffsets.get(name);
+		if (offset == null)
+			throw new IllegalArgumentException("Undefined label: " + name);
+		return new ImmediateValue(offset);
 	}
 	
-
+	
 	/**
 	 * Compares this label to the specified object for equality. Returns {@code true} if the specified object is a label with the same name. Otherwise returns {@code false}.
 	 * @param obj the object to compare this label against
@@ -29,6 +29,7 @@ public final class Memory extends Operand {
 	 * @param displacement the displacement, which is not {@code null}
 	 */
 	public Memory(Register32 base, Register32 index, int scale, Immediate displacement) {
+		super(OperandKind.MEMORY);
 		if (index == Register32.ESP)
 			throw new IllegalArgumentException("Invalid index register");
 		if (scale != 1 && scale != 2 && scale != 4 && scale != 8)
@@ -9,9 +9,27 @@ package org.p79068.assembler.operand;
  */
 public class Operand {
 	
+	/** The kind flags of this operand, as defined in {@link OperandKind}. */
+	private final long kinds;
+	
+	
+	
+	/**
+	 * Constructs an operand with the specified kind flags.
+	 * @param kinds the kind flags
+	 */
+	Operand(long kinds) {
+		this.kinds = kinds;
+	}
+	
+	
+	
 	/**
-	 * Constructs an operand.
+	 * Returns the kind flags of this operand, as defined in {@link OperandKind}.
+	 * @return the kind flags of this operand
 	 */
-	Operand() {}
+	public final long getKinds() {
+		return kinds;
+	}
 	
 }
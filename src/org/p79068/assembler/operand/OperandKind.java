@@ -0,0 +1,86 @@
+package org.p79068.assembler.operand;
+
+
+/**
+ * Bit flags that classify operands. Every operand carries a precomputed set of kind flags (see {@link Operand#getKinds()}), and an operand pattern is a mask of the flags that it accepts, so that testing an operand against a pattern is a single bitwise AND.
+ * <p>Each register has its own flag. A memory operand and a label have one flag each. An immediate value has the {@link #IMM} flag, plus one flag for each narrower range that it fits in.</p>
+ */
+public final class OperandKind {
+	
+	/** The flags of all 8-bit registers. The register with number <var>n</var> has bit <var>n</var>. */
+	public static final long REG8 = 0xFFL << 0;
+	
+	/** The flags of all 16-bit registers. The register with number <var>n</var> has bit 8 + <var>n</var>. */
+	public static final long REG16 = 0xFFL << 8;
+	
+	/** The flags of all 32-bit registers. The register with number <var>n</var> has bit 16 + <var>n</var>. */
+	public static final long REG32 = 0xFFL << 16;
+	
+	/** The flags of all segment registers. The register with number <var>n</var> has bit 24 + <var>n</var>. */
+	public static final long SREG = 0x3FL << 24;
+	
+	/** The flag of memory operands. */
+	public static final long MEMORY = 1L << 30;
+	
+	/** The flag of labels. */
+	public static final long LABEL = 1L << 31;
+	
+	/** The flag of all immediate values. */
+	public static final long IMM = 1L << 32;
+	
+	/** The flag of immediate values that are signed or unsigned 16-bit integers. */
+	public static final long IMM16 = 1L << 33;
+	
+	/** The flag of immediate values that are signed or unsigned 8-bit integers. */
+	public static final long IMM8 = 1L << 34;
+	
+	/** The flag of immediate values that are signed 8-bit integers. */
+	public static final long IMM8S = 1L << 35;
+	
+	/** The flag of the immediate value 1. */
+	public static final long IMM_VAL_1 = 1L << 36;
+	
+	/** The flag of the immediate value 3. */
+	public static final long IMM_VAL_3 = 1L << 37;
+	
+	
+	
+	/**
+	 * Returns the kind flags of an immediate value with the specified value.
+	 * @param value the value
+	 * @return the kind flags of the value
+	 */
+	public static long ofImmediate(int value) {
+		long result = IMM;
+		if (value >= -0x8000 && value < 0x10000)
+			result |= IMM16;
+		if (value >= -0x80 && value < 0x100)
+			result |= IMM8;
+		if ((byte)value == value)
+			result |= IMM8S;
+		if (value == 1)
+			result |= IMM_VAL_1;
+		else if (value == 3)
+			result |= IMM_VAL_3;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns the flag of the register with the specified number in the specified register class.
+	 * @param registers the flags of all the registers in the class (e.g. {@link #REG32})
+	 * @param registerNumber the register number
+	 * @return the flag of the register
+	 */
+	static long ofRegister(long registers, int registerNumber) {
+		return Long.lowestOneBit(registers) << registerNumber;
+	}
+	
+	
+	
+	/**
+	 * Not instantiable.
+	 */
+	private OperandKind() {}
+	
+}
@@ -16,13 +16,15 @@ public abstract class Register extends Operand {
 	
 	
 	/**
-	 * Constructs a register with the specified name and register number.
+	 * Constructs a register with the specified name and register number, in the register class with the specified kind flags.
 	 * @param name the name of the register
 	 * @param registerNumber the register number
+	 * @param registers the kind flags of all the registers in the class (e.g. {@link OperandKind#REG32})
 	 * @throws NullPointerException if the name is {@code null}
 	 * @throws IllegalArgumentException if the register number is not in the range [0, 8)
 	 */
-	Register(String name, int registerNumber) {
+	Register(String name, int registerNumber, long registers) {
+		super(OperandKind.ofRegister(registers, registerNumber));
 		if (name == null)
 			throw new NullPointerException();
 		if (registerNumber < 0 || registerNumber >= 8)
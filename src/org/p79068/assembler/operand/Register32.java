@@ -38,7 +38,7 @@ public final class Register32 extends Register {
 	 * @param registerNumber the register number
 	 */
 	private Register32(String name, int registerNumber) {
-		super(name, registerNumber);
+		super(name, registerNumber, OperandKind.REG32);
 	}
 	
 }
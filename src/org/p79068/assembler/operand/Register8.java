@@ -38,7 +38,7 @@ public final class Register8 extends Register {
 	 * @param registerNumber the register number
 	 */
 	private Register8(String name, int registerNumber) {
-		super(name, registerNumber);
+		super(name, registerNumber, OperandKind.REG8);
 	}
 	
 }
@@ -32,7 +32,7 @@ public final class SegmentRegister extends Register {
 	 * @param registerNumber the register number
 	 */
 	private SegmentRegister(String name, int registerNumber) {
-		super(name, registerNumber);
+		super(name, registerNumber, OperandKind.SREG);
 	}
 	
 }
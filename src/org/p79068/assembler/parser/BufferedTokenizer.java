@@ -1,10 +1,12 @@
 package org.p79068.assembler.parser;
 
+import org.p79068.assembler.operand.Register;
+
 
 /**
  * Decorates a tokenizer with peeking capabilities.
  */
-final class BufferedTokenizer extends Tokenizer {
+final class BufferedTokenizer extends PeekingTokenizer {
 	
 	/**
 	 * The underlying tokenizer, which provides the tokens.
@@ -16,6 +18,11 @@ final class BufferedTokenizer extends Tokenizer {
 	 */
 	private Token nextToken;
 	
+	/**
+	 * The line number of the next token.
+	 */
+	private int lineNumber;
+	
 	
 	
 	/**
@@ -27,6 +34,7 @@ final class BufferedTokenizer extends Tokenizer {
 			throw new NullPointerException();
 		this.tokenizer = tokenizer;
 		nextToken = null;
+		lineNumber = 1;
 	}
 	
 	
@@ -35,13 +43,22 @@ final class BufferedTokenizer extends Tokenizer {
 	 * Returns the next token from this tokenizer.
 	 * @return the next token from this tokenizer
 	 */
+	@Override
 	public Token next() {
+		Token result;
 		if (nextToken != null) {
-			Token result = nextToken;
+			result = nextToken;
 			nextToken = null;
-			return result;
 		} else
-			return tokenizer.next();
+			result = tokenizer.next();
+		
+		if (result.type == TokenType.NEWLINE) {
+			for (int i = 0; i < result.text.length(); i++) {
+				if (result.text.charAt(i) == '\n')
+					lineNumber++;
+			}
+		}
+		return result;
 	}
 	
 	
@@ -56,13 +73,58 @@ final class BufferedTokenizer extends Tokenizer {
 	}
 	
 	
-	/**
-	 * Peeks at the next token and tests whether it has the specified type. Returns {@code peek().type == type}. 
-	 * @param type the type to test against
-	 * @return {@code true} if the next token (without consuming it) has the specified type, {@code false} otherwise
-	 */
-	public boolean check(TokenType type) {
-		return peek().type == type;
+	@Override
+	public TokenType peekType() {
+		return peek().type;
+	}
+	
+	
+	@Override
+	public void skip() {
+		next();
+	}
+	
+	
+	@Override
+	public int getLineNumber() {
+		return lineNumber;
+	}
+	
+	
+	@Override
+	public String peekText() {
+		return peek().text;
+	}
+	
+	
+	@Override
+	public int peekNumber() {
+		if (check(TokenType.DECIMAL))
+			return Integer.parseInt(peek().text);
+		else if (check(TokenType.HEXADECIMAL))
+			return (int)Long.parseLong(peek().text.substring(2), 16);
+		else
+			throw new IllegalStateException("Not a number");
+	}
+	
+	
+	@Override
+	public Register peekRegister() {
+		if (!check(TokenType.REGISTER))
+			throw new IllegalStateException("Not a register");
+		return Parser.parseRegister(peek().text);
+	}
+	
+	
+	@Override
+	public String peekName() {
+		if (check(TokenType.NAME))
+			return peek().text;
+		else if (check(TokenType.LABEL)) {
+			String text = peek().text;
+			return text.substring(0, text.length() - 1);
+		} else
+			throw new IllegalStateException("Not a name");
 	}
 	
 }
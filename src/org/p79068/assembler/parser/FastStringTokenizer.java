@@ -177,7 +177,7 @@ public class FastStringTokenizer extends Tokenizer {
 	
 	
 	private static boolean isNameStart(int c) {
-		return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_';
+		return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_' || c == '.';
 	}
 	
 	
@@ -0,0 +1,486 @@
+package org.p79068.assembler.parser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import org.p79068.assembler.operand.Register;
+
+
+/**
+ * A tokenizer that scans the bytes of a memory-mapped source file in place. The source is treated as ASCII. No decoded copy of the file is made. The current token is just a type and a range of the source; numbers and registers are converted straight from the bytes, and names are interned, so tokenizing allocates almost nothing. Like the other tokenizers, the source behaves as if a newline character ({@code '\n'}) were appended to it.
+ */
+final class MappedTokenizer extends PeekingTokenizer {
+	
+	/**
+	 * Maps the entire contents of the specified file into memory as a read-only buffer.
+	 * @param file the file to map
+	 * @return a read-only buffer of the file's contents
+	 * @throws IOException if an I/O exception occurred
+	 * @throws IllegalArgumentException if the file is 2 GiB or larger
+	 */
+	static ByteBuffer map(File file) throws IOException {
+		if (file == null)
+			throw new NullPointerException();
+		
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size >= Integer.MAX_VALUE)
+				throw new IllegalArgumentException("File too large");
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);  // The mapping stays valid after the channel is closed
+		} finally {
+			in.close();
+		}
+	}
+	
+	
+	/**
+	 * Copies the specified characters into a new buffer, one byte per character. Characters outside ASCII become the byte {@code 0xFF}, which is never part of a token, like the bytes of non-ASCII characters in a file.
+	 * @param source the characters to copy
+	 * @return a buffer of the characters
+	 */
+	static ByteBuffer encode(CharSequence source) {
+		if (source == null)
+			throw new NullPointerException();
+		
+		int length = source.length();
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			char c = source.charAt(i);
+			result[i] = c < 0x80 ? (byte)c : (byte)0xFF;
+		}
+		return ByteBuffer.wrap(result);
+	}
+	
+	
+	
+	/** The register names (without the percent sign) packed into integers, one character per byte. */
+	private static final int[] REGISTER_KEYS;
+	
+	/** The registers for the keys in {@code REGISTER_KEYS}. */
+	private static final Register[] REGISTER_VALUES;
+	
+	static {
+		REGISTER_KEYS = new int[Parser.REGISTER_TABLE.size()];
+		REGISTER_VALUES = new Register[REGISTER_KEYS.length];
+		int i = 0;
+		for (Map.Entry<String,Register> entry : Parser.REGISTER_TABLE.entrySet()) {
+			String name = entry.getKey();
+			int key = 0;
+			for (int j = 1; j < name.length(); j++)
+				key = key << 8 | name.charAt(j);
+			REGISTER_KEYS[i] = key;
+			REGISTER_VALUES[i] = entry.getValue();
+			i++;
+		}
+	}
+	
+	
+	
+	/** The source bytes. Only the range [0, limit) is scanned, using absolute indexing. */
+	private ByteBuffer source;
+	
+	/** The number of bytes in the source. */
+	private int limit;
+	
+	/** The index of the next byte to scan, which is also the end of the current token. Ranges from 0 to {@code limit + 1} (inclusive), where {@code limit} is the position of the implicit trailing newline. */
+	private int offset;
+	
+	/** The type of the current token, or {@code null} if the next token has not been scanned yet. */
+	private TokenType type;
+	
+	/** The start index of the current token. */
+	private int tokenStart;
+	
+	/** The line number of the current token. */
+	private int lineNumber;
+	
+	/** The number of line feeds in the current token, which is only nonzero for a newline token. */
+	private int lineFeeds;
+	
+	/** The open-addressing hash table of names seen so far. The length is a power of 2. */
+	private String[] names;
+	
+	/** The number of non-{@code null} entries in {@code names}. */
+	private int nameCount;
+	
+	
+	
+	/**
+	 * Constructs a tokenizer over the contents of the specified file.
+	 * @param file the file to read from
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public MappedTokenizer(File file) throws IOException {
+		this(map(file));
+	}
+	
+	
+	/**
+	 * Constructs a tokenizer over the remaining bytes of the specified buffer. The buffer's position and limit are not modified.
+	 * @param source the source bytes
+	 */
+	MappedTokenizer(ByteBuffer source) {
+		this(source, 1);
+	}
+	
+	
+	/**
+	 * Constructs a tokenizer over the remaining bytes of the specified buffer, whose first line has the specified number. The buffer's position and limit are not modified.
+	 * @param source the source bytes
+	 * @param firstLineNumber the line number of the first byte
+	 */
+	MappedTokenizer(ByteBuffer source, int firstLineNumber) {
+		if (source == null)
+			throw new NullPointerException();
+		this.source = source.slice();
+		limit = this.source.limit();
+		offset = 0;
+		type = null;
+		lineNumber = firstLineNumber;
+		lineFeeds = 0;
+		names = new String[64];
+		nameCount = 0;
+	}
+	
+	
+	
+	@Override
+	public TokenType peekType() {
+		if (type == null)
+			scan();
+		return type;
+	}
+	
+	
+	@Override
+	public void skip() {
+		if (type == null)
+			scan();
+		type = null;
+		lineNumber += lineFeeds;
+		lineFeeds = 0;
+	}
+	
+	
+	@Override
+	public int getLineNumber() {
+		return lineNumber;
+	}
+	
+	
+	@Override
+	public String peekText() {
+		if (peekType() == TokenType.END_OF_FILE)
+			return "";
+		return text(tokenStart, offset);
+	}
+	
+	
+	@Override
+	public int peekNumber() {
+		if (check(TokenType.DECIMAL)) {
+			int i = tokenStart;
+			boolean negative = charAt(i) == '-';
+			if (negative)
+				i++;
+			long value = 0;
+			for (; i < offset; i++) {
+				value = value * 10 + (charAt(i) - '0');
+				if (value > (negative ? -(long)Integer.MIN_VALUE : Integer.MAX_VALUE))
+					throw new NumberFormatException("Decimal number out of range");
+			}
+			return (int)(negative ? -value : value);
+			
+		} else if (check(TokenType.HEXADECIMAL)) {
+			if (offset - tokenStart <= 2)
+				throw new NumberFormatException("Empty hexadecimal number");
+			long value = 0;
+			for (int i = tokenStart + 2; i < offset; i++) {
+				if (value > Long.MAX_VALUE >>> 4)
+					throw new NumberFormatException("Hexadecimal number out of range");
+				value = value << 4 | Character.digit(charAt(i), 16);
+			}
+			return (int)value;
+			
+		} else
+			throw new IllegalStateException("Not a number");
+	}
+	
+	
+	@Override
+	public Register peekRegister() {
+		if (!check(TokenType.REGISTER))
+			throw new IllegalStateException("Not a register");
+		
+		// Pack the lowercased name (without the percent sign) into an integer key
+		int length = offset - tokenStart - 1;
+		if (length > 3)
+			throw new IllegalArgumentException("Invalid register name");
+		int key = 0;
+		for (int i = tokenStart + 1; i < offset; i++)
+			key = key << 8 | Character.toLowerCase(charAt(i));
+		
+		for (int i = 0; i < REGISTER_KEYS.length; i++) {
+			if (REGISTER_KEYS[i] == key)
+				return REGISTER_VALUES[i];
+		}
+		throw new IllegalArgumentException("Invalid register name");
+	}
+	
+	
+	@Override
+	public String peekName() {
+		int end;
+		if (check(TokenType.NAME))
+			end = offset;
+		else if (check(TokenType.LABEL))
+			end = offset - 1;
+		else
+			throw new IllegalStateException("Not a name");
+		return internName(tokenStart, end);
+	}
+	
+	
+	/**
+	 * Scans the next token, setting {@code type}, {@code tokenStart}, and {@code offset} (the end of the token). Whitespace and comments are skipped.
+	 */
+	private void scan() {
+		while (true) {
+			tokenStart = offset;
+			
+			switch (peekChar()) {
+				case -1:
+					type = TokenType.END_OF_FILE;
+					return;
+				
+				case '$':
+					offset++;
+					type = TokenType.DOLLAR;
+					return;
+				
+				case '(':
+					offset++;
+					type = TokenType.LEFT_PAREN;
+					return;
+				
+				case ')':
+					offset++;
+					type = TokenType.RIGHT_PAREN;
+					return;
+				
+				case ',':
+					offset++;
+					type = TokenType.COMMA;
+					return;
+				
+				case '+':
+					offset++;
+					type = TokenType.PLUS;
+					return;
+				
+				case '-':
+					offset++;
+					if (isDecimal(peekChar())) {
+						offset++;
+						while (isDecimal(peekChar()))
+							offset++;
+						type = TokenType.DECIMAL;
+					} else {
+						type = TokenType.MINUS;
+					}
+					return;
+				
+				case '\n':
+				case '\r':
+					while (peekChar() == '\r' || peekChar() == '\n') {
+						if (peekChar() == '\n')
+							lineFeeds++;
+						offset++;
+					}
+					type = TokenType.NEWLINE;
+					return;
+				
+				case ' ':  // Whitespace
+				case '\t':
+					offset++;
+					while (peekChar() == ' ' || peekChar() == '\t')
+						offset++;
+					break;
+				
+				case '#':  // Comment
+					offset++;
+					while (peekChar() != '\r' && peekChar() != '\n')
+						offset++;
+					break;
+				
+				case '%':
+					offset++;
+					if (!isNameStart(peekChar()))
+						throw new RuntimeException("No token pattern match");
+					offset++;
+					while (isNameContinuation(peekChar()))
+						offset++;
+					type = TokenType.REGISTER;
+					return;
+				
+				case '0':
+					offset++;
+					if (peekChar() != 'x' && peekChar() != 'X') {
+						while (isDecimal(peekChar()))
+							offset++;
+						type = TokenType.DECIMAL;
+					} else {
+						offset++;
+						while (isHexadecimal(peekChar()))
+							offset++;
+						type = TokenType.HEXADECIMAL;
+					}
+					return;
+				
+				default:
+					if (isNameStart(peekChar())) {
+						offset++;
+						while (isNameContinuation(peekChar()))
+							offset++;
+					
+						if (peekChar() == ':') {
+							offset++;
+							type = TokenType.LABEL;
+						} else {
+							type = TokenType.NAME;
+						}
+						return;
+					
+					} else if (isDecimal(peekChar())) {
+						offset++;
+						while (isDecimal(peekChar()))
+							offset++;
+						type = TokenType.DECIMAL;
+						return;
+					
+					} else {
+						throw new RuntimeException("No token pattern match");
+					}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Returns the name in the range [start, end) of the source as a string. Equal names return the same string object, so that repeated mnemonics and labels cost no allocation.
+	 * @param start the start offset, inclusive
+	 * @param end the end offset, exclusive
+	 * @return the name in the range
+	 */
+	private String internName(int start, int end) {
+		// Same as String.hashCode() for ASCII text
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = hash * 31 + charAt(i);
+		
+		int mask = names.length - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			String name = names[i];
+			if (name == null) {
+				name = text(start, end);
+				names[i] = name;
+				nameCount++;
+				if (nameCount * 2 > names.length)
+					growNames();
+				return name;
+			} else if (name.hashCode() == hash && equals(name, start, end))
+				return name;
+		}
+	}
+	
+	
+	private boolean equals(String name, int start, int end) {
+		if (name.length() != end - start)
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) != charAt(start + i))
+				return false;
+		}
+		return true;
+	}
+	
+	
+	private void growNames() {
+		String[] oldNames = names;
+		names = new String[oldNames.length * 2];
+		int mask = names.length - 1;
+		for (String name : oldNames) {
+			if (name != null) {
+				int i = name.hashCode() & mask;
+				while (names[i] != null)
+					i = (i + 1) & mask;
+				names[i] = name;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Returns the byte at the current offset as an unsigned value, {@code '\n'} at the implicit trailing newline, or -1 past the end.
+	 * @return the current character, or -1 at the end of input
+	 */
+	private int peekChar() {
+		if (offset < limit)
+			return source.get(offset) & 0xFF;
+		else if (offset == limit)
+			return '\n';
+		else
+			return -1;
+	}
+	
+	
+	/**
+	 * Returns the character at the specified index, which may be the implicit trailing newline.
+	 * @param index the index
+	 * @return the character at the index
+	 */
+	private char charAt(int index) {
+		return index < limit ? (char)(source.get(index) & 0xFF) : '\n';
+	}
+	
+	
+	/**
+	 * Returns the source text in the range [start, end) as a string. The range may include the implicit trailing newline.
+	 * @param start the start offset, inclusive
+	 * @param end the end offset, exclusive
+	 * @return the text in the range
+	 */
+	private String text(int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++)
+			chars[i - start] = charAt(i);
+		return new String(chars);
+	}
+	
+	
+	private static boolean isNameStart(int c) {
+		return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_' || c == '.';
+	}
+	
+	
+	private static boolean isNameContinuation(int c) {
+		return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_';
+	}
+	
+	
+	private static boolean isDecimal(int c) {
+		return c >= '0' && c <= '9';
+	}
+	
+	
+	private static boolean isHexadecimal(int c) {
+		return c >= 'A' && c <= 'F' || c >= 'a' && c <= 'f' || c >= '0' && c <= '9';
+	}
+	
+}
@@ -2,14 +2,23 @@ package org.p79068.assembler.parser;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import org.p79068.assembler.CompactProgram;
 import org.p79068.assembler.InstructionStatement;
 import org.p79068.assembler.LabelStatement;
 import org.p79068.assembler.Program;
+import org.p79068.assembler.Section;
+import org.p79068.assembler.SectionStatement;
+import org.p79068.assembler.Statement;
 import org.p79068.assembler.operand.Immediate;
 import org.p79068.assembler.operand.ImmediateValue;
 import org.p79068.assembler.operand.Label;
@@ -24,60 +33,285 @@ import org.p79068.assembler.operand.SegmentRegister;
 
 public final class Parser {
 	
+	/**
+	 * The minimum size of a chunk for parallel parsing, in bytes. Files smaller than twice this size are parsed as a single chunk.
+	 */
+	private static final int MIN_PARALLEL_CHUNK_SIZE = 256 * 1024;
+	
+	
+	
 	public static Program parseFile(File file) throws IOException {
 		if (file == null)
 			throw new NullPointerException();
-		BufferedTokenizer tokenizer = new BufferedTokenizer(new StringTokenizer(file));
-		return new Parser(tokenizer).parseFile();
+		Program result = new Parser(new MappedTokenizer(file)).parseFile();
+		result.setSourceName(file.getPath());
+		return result;
+	}
+	
+	
+	/**
+	 * Parses the specified file into a compact program. This holds the same statements as {@link #parseFile(File)}, but uses far less memory for large files.
+	 * @param file the file to parse
+	 * @return the program in the file, in compact form
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static CompactProgram parseFileCompact(File file) throws IOException {
+		if (file == null)
+			throw new NullPointerException();
+		CompactProgram result = new Parser(new MappedTokenizer(file)).parseFileCompact();
+		result.setSourceName(file.getPath());
+		return result;
+	}
+	
+	
+	/**
+	 * Parses the specified source code, without touching the file system. The result is the same as {@link #parseFile(File)} for a file with the same ASCII contents, except that it has no source name.
+	 * @param source the source code to parse
+	 * @return the program in the source code
+	 */
+	public static Program parse(CharSequence source) {
+		return new Parser(new MappedTokenizer(MappedTokenizer.encode(source))).parseFile();
+	}
+	
+	
+	/**
+	 * Parses the specified source code into a compact program, without touching the file system. The result is the same as {@link #parseFileCompact(File)} for a file with the same ASCII contents, except that it has no source name.
+	 * @param source the source code to parse
+	 * @return the program in the source code, in compact form
+	 */
+	public static CompactProgram parseCompact(CharSequence source) {
+		return new Parser(new MappedTokenizer(MappedTokenizer.encode(source))).parseFileCompact();
+	}
+	
+	
+	/**
+	 * Parses the specified source bytes into a compact program. The result is the same as {@link #parseFileCompact(File)} for a file with these contents, except that it has no source name. This lets a caller that has already read a file parse exactly the bytes it read.
+	 * @param source the source code to parse, from its position to its limit, which is not modified
+	 * @return the program in the source code, in compact form
+	 */
+	public static CompactProgram parseCompact(ByteBuffer source) {
+		if (source == null)
+			throw new NullPointerException();
+		return new Parser(new MappedTokenizer(source)).parseFileCompact();
+	}
+	
+	
+	/**
+	 * Parses the specified source code into the specified compact program, replacing its statements, without touching the file system. The program's internal arrays are reused rather than trimmed, so that parsing many sources into one program allocates little. Otherwise the result is the same as {@link #parseCompact(CharSequence)}.
+	 * @param source the source code to parse
+	 * @param result the program to parse into, which is cleared first
+	 */
+	public static void parseCompact(CharSequence source, CompactProgram result) {
+		if (result == null)
+			throw new NullPointerException();
+		result.clear();
+		new Parser(new MappedTokenizer(MappedTokenizer.encode(source))).parseInto(result);
+	}
+	
+	
+	/**
+	 * Parses the specified file using the common fork-join pool. The result is the same as {@link #parseFile(File)}.
+	 * @param file the file to parse
+	 * @return the program in the file
+	 * @throws IOException if an I/O exception occurred
+	 * @see #parseFileParallel(File, ForkJoinPool)
+	 */
+	public static Program parseFileParallel(File file) throws IOException {
+		return parseFileParallel(file, ForkJoinPool.commonPool());
+	}
+	
+	
+	/**
+	 * Parses the specified file using the specified fork-join pool. The source is split into chunks at line boundaries, each chunk is tokenized and parsed as a separate task, and the statements are concatenated in order. The result is the same as {@link #parseFile(File)}, and if the source has errors, the exception for the earliest failing chunk is thrown.
+	 * @param file the file to parse
+	 * @param pool the pool to run the chunks on
+	 * @return the program in the file
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static Program parseFileParallel(File file, ForkJoinPool pool) throws IOException {
+		if (file == null || pool == null)
+			throw new NullPointerException();
+		
+		ByteBuffer source = MappedTokenizer.map(file);
+		int length = source.limit();
+		int numChunks = (int)Math.max(Math.min((long)pool.getParallelism() * 4, length / MIN_PARALLEL_CHUNK_SIZE), 1);
+		
+		// Split into chunks. Each chunk except the last one ends just after a '\n' byte, so no line is split.
+		List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		int start = 0;
+		for (int i = 1; i <= numChunks && start < length; i++) {
+			int end;
+			if (i == numChunks)
+				end = length;
+			else {
+				end = Math.max((int)((long)length * i / numChunks), start);
+				while (end < length && source.get(end) != '\n')
+					end++;
+				end = Math.min(end + 1, length);
+			}
+			
+			ByteBuffer chunk = source.duplicate();
+			chunk.position(start);
+			chunk.limit(end);
+			chunks.add(chunk);
+			start = end;
+		}
+		
+		// Count the lines in each chunk as a separate task, so that each chunk knows the line number that it starts at
+		List<ForkJoinTask<Integer>> counts = new ArrayList<ForkJoinTask<Integer>>();
+		for (final ByteBuffer chunk : chunks) {
+			counts.add(pool.submit(new Callable<Integer>() {
+				public Integer call() {
+					int result = 0;
+					for (int i = chunk.position(); i < chunk.limit(); i++) {
+						if (chunk.get(i) == '\n')
+							result++;
+					}
+					return result;
+				}
+			}));
+		}
+		
+		// Submit one parsing task per chunk
+		List<ForkJoinTask<Program>> tasks = new ArrayList<ForkJoinTask<Program>>();
+		int lineNumber = 1;
+		for (int i = 0; i < chunks.size(); i++) {
+			final ByteBuffer chunk = chunks.get(i);
+			final int firstLineNumber = lineNumber;
+			tasks.add(pool.submit(new Callable<Program>() {
+				public Program call() {
+					return new Parser(new MappedTokenizer(chunk, firstLineNumber)).parseFile();
+				}
+			}));
+			lineNumber += counts.get(i).join();
+		}
+		
+		// Concatenate in order
+		Program result = new Program();
+		result.setSourceName(file.getPath());
+		for (ForkJoinTask<Program> task : tasks) {
+			for (Statement st : task.join().getStatements())
+				result.addStatement(st);
+		}
+		return result;
 	}
 	
 	
+	private PeekingTokenizer tokenizer;
+	
+	/** The program being parsed into. Exactly one of this and {@code compactProgram} is not {@code null} while parsing. */
+	private Program program;
+	
+	private CompactProgram compactProgram;
+	
+	/**
+	 * A scratch list for the operands of the instruction being parsed. It is reused for every instruction, because {@link InstructionStatement} makes its own copy.
+	 */
+	private List<Operand> operands;
 	
-	private BufferedTokenizer tokenizer;
+	/** The line number of the line being parsed. */
+	private int lineNumber;
 	
 	
 	
-	private Parser(BufferedTokenizer tokenizer) {
+	Parser(PeekingTokenizer tokenizer) {
 		if (tokenizer == null)
 			throw new NullPointerException();
 		this.tokenizer = tokenizer;
+		operands = new ArrayList<Operand>();
 	}
 	
 	
 	
-	private Program parseFile() {
-		Program program = new Program();
+	Program parseFile() {
+		program = new Program();
+		compactProgram = null;
 		while (!tokenizer.check(TokenType.END_OF_FILE))
-			parseLine(program);
+			parseLine();
 		return program;
 	}
 	
 	
-	private void parseLine(Program program) {
+	CompactProgram parseFileCompact() {
+		CompactProgram result = new CompactProgram();
+		parseInto(result);
+		result.trimToSize();
+		return result;
+	}
+	
+	
+	// Appends the statements to the program
+	private void parseInto(CompactProgram result) {
+		program = null;
+		compactProgram = result;
+		while (!tokenizer.check(TokenType.END_OF_FILE))
+			parseLine();
+	}
+	
+	
+	private void parseLine() {
+		lineNumber = tokenizer.getLineNumber();
+		if (compactProgram != null)
+			compactProgram.setLineNumber(lineNumber);
+		
 		// Parse label declarations
 		while (tokenizer.check(TokenType.LABEL)) {
-			String name = tokenizer.next().text;
-			name = name.substring(0, name.length() - 1);
-			program.addStatement(new LabelStatement(name));
+			if (program != null)
+				program.addStatement(new LabelStatement(tokenizer.peekName(), lineNumber));
+			else
+				compactProgram.addLabel(tokenizer.peekName());
+			tokenizer.skip();
 		}
 		
-		// Parse instruction
-		if (tokenizer.check(TokenType.NAME))
-			parseInstruction(program);
+		// Parse directive or instruction
+		if (tokenizer.check(TokenType.NAME)) {
+			if (tokenizer.peekName().startsWith("."))
+				parseDirective();
+			else
+				parseInstruction();
+		}
 		
 		if (tokenizer.check(TokenType.NEWLINE))
-			tokenizer.next();
+			tokenizer.skip();
 		else
 			throw new RuntimeException("Expected newline");
 	}
 	
 	
-	private void parseInstruction(Program program) {
+	private void parseDirective() {
+		String name = tokenizer.peekName();
+		Section section = Section.fromDirective(name);
+		if (section != null) {
+			tokenizer.skip();
+			if (program != null)
+				program.addStatement(new SectionStatement(section, lineNumber));
+			else
+				compactProgram.setSection(section);
+		} else if (name.equals(InstructionStatement.SKIP)) {
+			// The size must be a non-negative number, not a label
+			tokenizer.skip();
+			if (!tokenizer.check(TokenType.DECIMAL) && !tokenizer.check(TokenType.HEXADECIMAL))
+				throw new RuntimeException("Expected size");
+			int size = tokenizer.peekNumber();
+			if (size < 0)
+				throw new RuntimeException("Negative size");
+			tokenizer.skip();
+			operands.clear();
+			operands.add(new ImmediateValue(size));
+			addInstruction(InstructionStatement.SKIP);
+		} else {
+			throw new RuntimeException("Invalid directive: " + name);
+		}
+	}
+	
+	
+	private void parseInstruction() {
 		// Parse mnemonic (easy)
-		String mnemonic = tokenizer.next().text;
+		String mnemonic = tokenizer.peekName();
+		tokenizer.skip();
 		
 		// Parse operands (hard)
-		List<Operand> operands = new ArrayList<Operand>();
+		operands.clear();
 		boolean expectcomma = false;
 		while (!tokenizer.check(TokenType.NEWLINE)) {
 			if (!expectcomma) {
@@ -86,13 +320,14 @@ public final class Parser {
 			} else {
 				if (!tokenizer.check(TokenType.COMMA))
 					throw new RuntimeException("Expected comma");
-				tokenizer.next();
+				tokenizer.skip();
 			}
 			
 			if (tokenizer.check(TokenType.REGISTER)) {
-				operands.add(parseRegister(tokenizer.next().text));
+				operands.add(tokenizer.peekRegister());
+				tokenizer.skip();
 			} else if (tokenizer.check(TokenType.DOLLAR)) {
-				tokenizer.next();
+				tokenizer.skip();
 				operands.add(parseImmediate());
 			} else if (canParseImmediate() || tokenizer.check(TokenType.LEFT_PAREN)) {
 				Immediate disp;
@@ -107,7 +342,16 @@ public final class Parser {
 			expectcomma = true;
 		}
 		
-		program.addStatement(new InstructionStatement(mnemonic, operands));
+		addInstruction(mnemonic);
+	}
+	
+	
+	// Adds an instruction with the current operands to the program being parsed
+	private void addInstruction(String mnemonic) {
+		if (program != null)
+			program.addStatement(new InstructionStatement(mnemonic, operands, lineNumber));
+		else
+			compactProgram.addInstruction(mnemonic, operands);
 	}
 	
 	
@@ -124,17 +368,15 @@ public final class Parser {
 	
 	
 	private Immediate parseImmediate() {
-		if (tokenizer.check(TokenType.DECIMAL)) {
-			return new ImmediateValue(Integer.parseInt(tokenizer.next().text));
-		} else if (tokenizer.check(TokenType.HEXADECIMAL)) {
-			String text = tokenizer.next().text;
-			text = text.substring(2, text.length());
-			return new ImmediateValue((int)Long.parseLong(text, 16));
-		} else if (tokenizer.check(TokenType.NAME)) {
-			return new Label(tokenizer.next().text);
-		} else {
+		Immediate result;
+		if (tokenizer.check(TokenType.DECIMAL) || tokenizer.check(TokenType.HEXADECIMAL))
+			result = new ImmediateValue(tokenizer.peekNumber());
+		else if (tokenizer.check(TokenType.NAME))
+			result = new Label(tokenizer.peekName());
+		else
 			throw new RuntimeException("Expected immediate");
-		}
+		tokenizer.skip();
+		return result;
 	}
 	
 	
@@ -144,28 +386,34 @@ public final class Parser {
 		int scale = 1;
 		
 		if (tokenizer.check(TokenType.LEFT_PAREN)) {
-			tokenizer.next();
+			tokenizer.skip();
 			
-			if (tokenizer.check(TokenType.REGISTER))
-				base = (Register32)parseRegister(tokenizer.next().text);
+			if (tokenizer.check(TokenType.REGISTER)) {
+				base = (Register32)tokenizer.peekRegister();
+				tokenizer.skip();
+			}
 			
 			if (tokenizer.check(TokenType.COMMA)) {
-				tokenizer.next();
+				tokenizer.skip();
 				
-				if (tokenizer.check(TokenType.REGISTER))
-					index = (Register32)parseRegister(tokenizer.next().text);
+				if (tokenizer.check(TokenType.REGISTER)) {
+					index = (Register32)tokenizer.peekRegister();
+					tokenizer.skip();
+				}
 				
 				if (tokenizer.check(TokenType.COMMA)) {
-					tokenizer.next();
+					tokenizer.skip();
 					
-					if (tokenizer.check(TokenType.DECIMAL))
-						scale = Integer.parseInt(tokenizer.next().text);
+					if (tokenizer.check(TokenType.DECIMAL)) {
+						scale = tokenizer.peekNumber();
+						tokenizer.skip();
+					}
 				}
 				
 			}
 			
 			if (tokenizer.check(TokenType.RIGHT_PAREN))
-				tokenizer.next();
+				tokenizer.skip();
 			else
 				throw new RuntimeException("Expected right parenthesis");
 		}
@@ -174,40 +422,42 @@ public final class Parser {
 	}
 	
 	
-	private static Map<String, Register> REGISTER_TABLE;
+	/** The registers by name, including the percent sign. Unmodifiable. */
+	static final Map<String, Register> REGISTER_TABLE;
 	
 	static {
-		REGISTER_TABLE = new HashMap<String, Register>();
-		REGISTER_TABLE.put("%eax", Register32.EAX);
-		REGISTER_TABLE.put("%ebx", Register32.EBX);
-		REGISTER_TABLE.put("%ecx", Register32.ECX);
-		REGISTER_TABLE.put("%edx", Register32.EDX);
-		REGISTER_TABLE.put("%esp", Register32.ESP);
-		REGISTER_TABLE.put("%ebp", Register32.EBP);
-		REGISTER_TABLE.put("%esi", Register32.ESI);
-		REGISTER_TABLE.put("%edi", Register32.EDI);
-		REGISTER_TABLE.put("%ax", Register16.AX);
-		REGISTER_TABLE.put("%bx", Register16.BX);
-		REGISTER_TABLE.put("%cx", Register16.CX);
-		REGISTER_TABLE.put("%dx", Register16.DX);
-		REGISTER_TABLE.put("%sp", Register16.SP);
-		REGISTER_TABLE.put("%bp", Register16.BP);
-		REGISTER_TABLE.put("%si", Register16.SI);
-		REGISTER_TABLE.put("%di", Register16.DI);
-		REGISTER_TABLE.put("%al", Register8.AL);
-		REGISTER_TABLE.put("%bl", Register8.BL);
-		REGISTER_TABLE.put("%cl", Register8.CL);
-		REGISTER_TABLE.put("%dl", Register8.DL);
-		REGISTER_TABLE.put("%ah", Register8.AH);
-		REGISTER_TABLE.put("%bh", Register8.BH);
-		REGISTER_TABLE.put("%ch", Register8.CH);
-		REGISTER_TABLE.put("%dh", Register8.DH);
-		REGISTER_TABLE.put("%cs", SegmentRegister.CS);
-		REGISTER_TABLE.put("%ds", SegmentRegister.DS);
-		REGISTER_TABLE.put("%es", SegmentRegister.ES);
-		REGISTER_TABLE.put("%fs", SegmentRegister.FS);
-		REGISTER_TABLE.put("%gs", SegmentRegister.GS);
-		REGISTER_TABLE.put("%ss", SegmentRegister.SS);
+		Map<String, Register> registers = new HashMap<String, Register>();
+		registers.put("%eax", Register32.EAX);
+		registers.put("%ebx", Register32.EBX);
+		registers.put("%ecx", Register32.ECX);
+		registers.put("%edx", Register32.EDX);
+		registers.put("%esp", Register32.ESP);
+		registers.put("%ebp", Register32.EBP);
+		registers.put("%esi", Register32.ESI);
+		registers.put("%edi", Register32.EDI);
+		registers.put("%ax", Register16.AX);
+		registers.put("%bx", Register16.BX);
+		registers.put("%cx", Register16.CX);
+		registers.put("%dx", Register16.DX);
+		registers.put("%sp", Register16.SP);
+		registers.put("%bp", Register16.BP);
+		registers.put("%si", Register16.SI);
+		registers.put("%di", Register16.DI);
+		registers.put("%al", Register8.AL);
+		registers.put("%bl", Register8.BL);
+		registers.put("%cl", Register8.CL);
+		registers.put("%dl", Register8.DL);
+		registers.put("%ah", Register8.AH);
+		registers.put("%bh", Register8.BH);
+		registers.put("%ch", Register8.CH);
+		registers.put("%dh", Register8.DH);
+		registers.put("%cs", SegmentRegister.CS);
+		registers.put("%ds", SegmentRegister.DS);
+		registers.put("%es", SegmentRegister.ES);
+		registers.put("%fs", SegmentRegister.FS);
+		registers.put("%gs", SegmentRegister.GS);
+		registers.put("%ss", SegmentRegister.SS);
+		REGISTER_TABLE = Collections.unmodifiableMap(registers);
 	}
 	
 	
@@ -217,7 +467,7 @@ public final class Parser {
 	 * @return the register associated with the name
 	 * @throws IllegalArgumentException if no register is associated with the name
 	 */
-	private static Register parseRegister(String name) {
+	static Register parseRegister(String name) {
 		name = name.toLowerCase();
 		if (!REGISTER_TABLE.containsKey(name))
 			throw new IllegalArgumentException("Invalid register name");
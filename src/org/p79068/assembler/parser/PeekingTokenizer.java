@@ -0,0 +1,85 @@
+package org.p79068.assembler.parser;
+
+import org.p79068.assembler.operand.Register;
+
+
+/**
+ * A tokenizer whose next token can be examined in place before it is consumed. The token is exposed as a type plus accessors that convert its text directly, so that a parser can work through the whole input without a {@link Token} object per token.
+ */
+abstract class PeekingTokenizer extends Tokenizer {
+	
+	/**
+	 * Returns the type of the next token, without consuming it. Consecutive calls to this method return the same value.
+	 * @return the type of the next token
+	 */
+	public abstract TokenType peekType();
+	
+	
+	/**
+	 * Consumes the next token.
+	 */
+	public abstract void skip();
+	
+	
+	/**
+	 * Returns the text of the next token, without consuming it.
+	 * @return the text of the next token
+	 */
+	public abstract String peekText();
+	
+	
+	/**
+	 * Returns the value of the next token, which must be a decimal or hexadecimal number, without consuming it. A decimal number must fit in a signed 32-bit integer. A hexadecimal number is truncated to its low 32 bits.
+	 * @return the value of the next token
+	 * @throws IllegalStateException if the next token is not a number
+	 * @throws NumberFormatException if the number is out of range
+	 */
+	public abstract int peekNumber();
+	
+	
+	/**
+	 * Returns the register named by the next token, which must be a register token, without consuming it. The name is case-insensitive.
+	 * @return the register named by the next token
+	 * @throws IllegalStateException if the next token is not a register
+	 * @throws IllegalArgumentException if no register is associated with the name
+	 */
+	public abstract Register peekRegister();
+	
+	
+	/**
+	 * Returns the name in the next token, which must be a name or a label, without consuming it. For a label, the trailing colon is not included. Equal names may be returned as the same string object.
+	 * @return the name in the next token
+	 * @throws IllegalStateException if the next token is not a name or a label
+	 */
+	public abstract String peekName();
+	
+	
+	/**
+	 * Returns the line number of the next token, starting at 1. The line advances when a newline token is consumed, by the number of line feeds in it.
+	 * @return the line number of the next token
+	 */
+	public abstract int getLineNumber();
+	
+	
+	/**
+	 * Peeks at the next token and tests whether it has the specified type. Returns {@code peekType() == type}.
+	 * @param type the type to test against
+	 * @return {@code true} if the next token (without consuming it) has the specified type, {@code false} otherwise
+	 */
+	public boolean check(TokenType type) {
+		return peekType() == type;
+	}
+	
+	
+	/**
+	 * Returns the next token from this tokenizer. This allocates a new token.
+	 * @return the next token from this tokenizer
+	 */
+	@Override
+	public Token next() {
+		Token result = new Token(peekType(), peekText());
+		skip();
+		return result;
+	}
+	
+}
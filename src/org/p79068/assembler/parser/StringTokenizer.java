@@ -38,13 +38,13 @@ final class StringTokenizer extends Tokenizer {
 	
 	
 	
-	private static List<TokenPattern> patterns;
+	private static final List<TokenPattern> patterns;
 	
 	static {
 		patterns = new ArrayList<TokenPattern>();
 		patterns.add(new TokenPattern("^[ \t]+", null));  // Whitespace
-		patterns.add(new TokenPattern("^[A-Za-z_][A-Za-z0-9_]*:", TokenType.LABEL));
-		patterns.add(new TokenPattern("^[A-Za-z_][A-Za-z0-9_]*", TokenType.NAME));
+		patterns.add(new TokenPattern("^[A-Za-z_.][A-Za-z0-9_]*:", TokenType.LABEL));
+		patterns.add(new TokenPattern("^[A-Za-z_.][A-Za-z0-9_]*", TokenType.NAME));
 		patterns.add(new TokenPattern("^%[A-Za-z][A-Za-z0-9_]*", TokenType.REGISTER));
 		patterns.add(new TokenPattern("^0[xX][0-9a-fA-F]+", TokenType.HEXADECIMAL));
 		patterns.add(new TokenPattern("^-?[0-9]+", TokenType.DECIMAL));
@@ -0,0 +1,87 @@
+package org.p79068.libelf;
+
+import java.nio.charset.StandardCharsets;
+
+import org.p79068.util.ByteBuffer;
+
+
+/**
+ * The contents of minimal DWARF 2 {@code .debug_info} and {@code .debug_abbrev} sections, which describe one compilation unit covering a range of code. The unit points to the line number program at offset 0 of {@code .debug_line}, so that tools that look up lines through the compilation units can find it.
+ */
+public final class CompileUnit {
+	
+	/** The language code for assembly language. */
+	private static final int DW_LANG_Mips_Assembler = 0x8001;
+	
+	/** The abbreviation of the compilation unit entry: its code, tag, and whether it has children, followed by (attribute, form) pairs. */
+	private static final byte[] ABBREVIATIONS = {
+		1, 0x11, 0,  // Code 1: DW_TAG_compile_unit, no children
+		0x03, 0x08,  // DW_AT_name, DW_FORM_string
+		0x1B, 0x08,  // DW_AT_comp_dir, DW_FORM_string
+		0x25, 0x08,  // DW_AT_producer, DW_FORM_string
+		0x13, 0x05,  // DW_AT_language, DW_FORM_data2
+		0x10, 0x06,  // DW_AT_stmt_list, DW_FORM_data4
+		0x11, 0x01,  // DW_AT_low_pc, DW_FORM_addr
+		0x12, 0x01,  // DW_AT_high_pc, DW_FORM_addr
+		0, 0,        // End of attributes
+		2, 0x11, 0,  // Code 2: the same without DW_AT_comp_dir
+		0x03, 0x08,
+		0x25, 0x08,
+		0x13, 0x05,
+		0x10, 0x06,
+		0x11, 0x01,
+		0x12, 0x01,
+		0, 0,
+		0,           // End of abbreviations
+	};
+	
+	
+	public static byte[] getDebugAbbrevBytes() {
+		return ABBREVIATIONS.clone();
+	}
+	
+	
+	/**
+	 * Returns the contents of a {@code .debug_info} section with one compilation unit.
+	 * @param fileName the name of the source file, relative to the compilation directory
+	 * @param directory the compilation directory, or {@code null} to leave it out
+	 * @param producer the name of the program that produced the file
+	 * @param lowPc the address of the first byte of code
+	 * @param highPc the address one past the last byte of code
+	 * @return the bytes of the section
+	 */
+	public static byte[] getDebugInfoBytes(String fileName, String directory, String producer, int lowPc, int highPc) {
+		ByteBuffer die = new ByteBuffer();
+		die.append((byte)(directory != null ? 1 : 2));  // Abbreviation code
+		appendString(die, fileName);
+		if (directory != null)
+			appendString(die, directory);
+		appendString(die, producer);
+		die.appendLittleEndian((short)DW_LANG_Mips_Assembler);
+		die.appendLittleEndian(0);  // Offset of the line number program
+		die.appendLittleEndian(lowPc);
+		die.appendLittleEndian(highPc);
+		
+		ByteBuffer b = new ByteBuffer();
+		b.appendLittleEndian(2 + 4 + 1 + die.length());  // Unit length
+		b.appendLittleEndian((short)2);  // Version
+		b.appendLittleEndian(0);  // Offset of the abbreviations
+		b.append((byte)4);  // Address size
+		b.append(die.toArray());
+		return b.toArray();
+	}
+	
+	
+	private static void appendString(ByteBuffer b, String s) {
+		b.append(s.getBytes(StandardCharsets.UTF_8));
+		b.append((byte)0);
+	}
+	
+	
+	
+	/**
+	 * Not instantiable.
+	 */
+	private CompileUnit() {}
+	
+}
@@ -1,5 +1,7 @@
 package org.p79068.libelf;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -22,26 +24,59 @@ public final class ElfFile {
 		programHeaders = new ArrayList<ProgramHeader>();
 		sectionHeaders = new ArrayList<SectionHeader>();
 	}
-
+	
 	
 	
 	public int getDataOffset() {
+		return getHeaderSize(programHeaders.size(), sectionHeaders.size());
+	}
+	
+	
+	// The size of the ELF header and the header tables, which is where the data starts
+	public static int getHeaderSize(int numProgramHeaders, int numSectionHeaders) {
 		int result = 0;
 		result += ElfHeader.ELF_HEADER_SIZE;
-		result += programHeaders.size() * ProgramHeader.PROGRAM_HEADER_ENTRY_SIZE;
-		result += sectionHeaders.size() * SectionHeader.SECTION_HEADER_ENTRY_SIZE;
+		result += numProgramHeaders * ProgramHeader.PROGRAM_HEADER_ENTRY_SIZE;
+		result += numSectionHeaders * SectionHeader.SECTION_HEADER_ENTRY_SIZE;
 		return result;
 	}
 	
 	
 	public byte[] toBytes() {
 		ByteBuffer b = new ByteBuffer(getDataOffset() + data.length);
+		b.append(getHeaderBytes());
+		b.append(data);
+		return b.toArray();
+	}
+	
+	
+	// Writes the same bytes as toBytes() without building the whole image: the headers go into a small buffer, and the data is written straight from the field
+	public void writeTo(FileChannel out) throws IOException {
+		writeTo(out, new java.nio.ByteBuffer[]{java.nio.ByteBuffer.wrap(data)});
+	}
+	
+	
+	// Writes the headers followed by the remaining bytes of each data buffer, in order, with gathering writes. The data field is ignored
+	public void writeTo(FileChannel out, java.nio.ByteBuffer[] data) throws IOException {
+		java.nio.ByteBuffer[] buffers = new java.nio.ByteBuffer[data.length + 1];
+		buffers[0] = java.nio.ByteBuffer.wrap(getHeaderBytes());
+		System.arraycopy(data, 0, buffers, 1, data.length);
+		
+		long remaining = 0;
+		for (java.nio.ByteBuffer b : buffers)
+			remaining += b.remaining();
+		while (remaining > 0)
+			remaining -= out.write(buffers);
+	}
+	
+	
+	private byte[] getHeaderBytes() {
+		ByteBuffer b = new ByteBuffer(getDataOffset());
 		b.append(elfHeader.getBytes((short)programHeaders.size(), (short)sectionHeaders.size()));
 		for (ProgramHeader ph : programHeaders)
 			b.append(ph.toBytes());
 		for (SectionHeader sh : sectionHeaders)
 			b.append(sh.toBytes());
-		b.append(data);
 		return b.toArray();
 	}
 	
@@ -0,0 +1,86 @@
+package org.p79068.libelf;
+
+import org.p79068.util.ByteBuffer;
+
+
+/**
+ * The contents of a {@code .symtab} section and its {@code .strtab} string table. Symbols are encoded as they are added, so a large table needs no object per symbol. Entry 0 is the null symbol.
+ */
+public final class ElfSymbolTable {
+	
+	static final int SYMBOL_ENTRY_SIZE = 16;
+	
+	/* Symbol bindings */
+	public static final int STB_LOCAL  = 0;
+	public static final int STB_GLOBAL = 1;
+	
+	/* Symbol types */
+	public static final int STT_NOTYPE = 0;
+	public static final int STT_OBJECT = 1;
+	public static final int STT_FUNC   = 2;
+	
+	
+	private ByteBuffer symbols;
+	
+	private StringTable names;
+	
+	private int size;
+	
+	
+	
+	public ElfSymbolTable() {
+		symbols = new ByteBuffer();
+		names = new StringTable();
+		size = 0;
+		add(0, 0, 0, 0, 0);
+	}
+	
+	
+	
+	/**
+	 * Appends a symbol with the specified properties.
+	 * @param name the name of the symbol
+	 * @param value the value of the symbol, which is an address in executable files
+	 * @param size the size of the object or function, in bytes
+	 * @param binding the binding, such as {@link #STB_LOCAL}
+	 * @param type the type, such as {@link #STT_FUNC}
+	 * @param sectionIndex the index of the section header of the section that the symbol is in
+	 */
+	public void add(String name, int value, int size, int binding, int type, int sectionIndex) {
+		add(names.add(name), value, size, binding << 4 | type, sectionIndex);
+	}
+	
+	
+	private void add(int name, int value, int size, int info, int sectionIndex) {
+		symbols.appendLittleEndian(name);
+		symbols.appendLittleEndian(value);
+		symbols.appendLittleEndian(size);
+		symbols.append((byte)info);
+		symbols.append((byte)0);  // Default visibility
+		symbols.appendLittleEndian((short)sectionIndex);
+		this.size++;
+	}
+	
+	
+	// The number of symbols, including the null symbol
+	public int size() {
+		return size;
+	}
+	
+	
+	public int getEntrySize() {
+		return SYMBOL_ENTRY_SIZE;
+	}
+	
+	
+	// A view of the symbol entries, which is only valid until the next symbol is added
+	public java.nio.ByteBuffer asNioBuffer() {
+		return symbols.asNioBuffer();
+	}
+	
+	
+	public StringTable getStringTable() {
+		return names;
+	}
+	
+}
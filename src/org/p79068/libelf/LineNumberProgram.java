@@ -0,0 +1,202 @@
+package org.p79068.libelf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.p79068.util.ByteBuffer;
+
+
+/**
+ * The contents of a DWARF 2 {@code .debug_line} section for a single source file. Rows that map an address to a line are appended in order of increasing address, and are encoded right away as line number program opcodes. A program consists of one or more sequences, and programs that hold whole sequences can be concatenated.
+ */
+public final class LineNumberProgram {
+	
+	/* Parameters of the special opcodes, which advance the address and the line together in one byte */
+	private static final int LINE_BASE = -5;
+	private static final int LINE_RANGE = 14;
+	private static final int OPCODE_BASE = 10;
+	
+	/* Standard opcodes */
+	private static final int DW_LNS_copy         = 1;
+	private static final int DW_LNS_advance_pc   = 2;
+	private static final int DW_LNS_advance_line = 3;
+	
+	/* Extended opcodes */
+	private static final int DW_LNE_end_sequence = 1;
+	private static final int DW_LNE_set_address  = 2;
+	
+	
+	private ByteBuffer program;
+	
+	/** Whether a sequence has been started and not ended. */
+	private boolean inSequence;
+	
+	/* The address and line registers of the state machine, which are the values of the last row */
+	private int address;
+	private int line;
+	
+	/** The index in {@code program} of the operand of each set-address opcode, and its value, so that the program can be relocated. */
+	private int[] addressPositions;
+	private int[] addressValues;
+	private int numAddresses;
+	
+	
+	
+	public LineNumberProgram() {
+		program = new ByteBuffer();
+		inSequence = false;
+		addressPositions = new int[4];
+		addressValues = new int[4];
+		numAddresses = 0;
+	}
+	
+	
+	
+	/**
+	 * Appends a row that maps the specified address to the specified line. A new sequence starts at the address if none is open.
+	 * @param address the address of the first instruction of the line
+	 * @param line the line number, starting at 1
+	 * @throws IllegalArgumentException if the address is less than the address of the previous row in the sequence
+	 */
+	public void addRow(int address, int line) {
+		if (!inSequence) {
+			setAddress(address);
+			this.line = 1;
+			inSequence = true;
+		}
+		if (address < this.address)
+			throw new IllegalArgumentException("Address decreases");
+		
+		int lineDelta = line - this.line;
+		if (lineDelta < LINE_BASE || lineDelta >= LINE_BASE + LINE_RANGE) {
+			program.append((byte)DW_LNS_advance_line);
+			appendSleb128(lineDelta);
+			lineDelta = 0;
+		}
+		int addressDelta = address - this.address;
+		if ((long)addressDelta * LINE_RANGE + (lineDelta - LINE_BASE) + OPCODE_BASE > 255) {
+			program.append((byte)DW_LNS_advance_pc);
+			appendUleb128(addressDelta);
+			addressDelta = 0;
+		}
+		program.append((byte)(addressDelta * LINE_RANGE + (lineDelta - LINE_BASE) + OPCODE_BASE));  // Special opcode, which appends the row
+		this.address = address;
+		this.line = line;
+	}
+	
+	
+	/**
+	 * Ends the current sequence at the specified address, which is one past the last byte of code that it covers. Does nothing if no sequence is open.
+	 * @param address the end address of the sequence
+	 */
+	public void endSequence(int address) {
+		if (!inSequence)
+			return;
+		if (address < this.address)
+			throw new IllegalArgumentException("Address decreases");
+		if (address > this.address) {
+			program.append((byte)DW_LNS_advance_pc);
+			appendUleb128(address - this.address);
+		}
+		appendExtendedOpcode(DW_LNE_end_sequence, 0);
+		inSequence = false;
+	}
+	
+	
+	/**
+	 * Adds the specified value to every address in this program. This lets a program be built before the final addresses are known.
+	 * @param delta the value to add
+	 */
+	public void relocate(int delta) {
+		for (int i = 0; i < numAddresses; i++) {
+			addressValues[i] += delta;
+			for (int j = 0; j < 4; j++)
+				program.set(addressPositions[i] + j, (byte)(addressValues[i] >>> (j * 8)));
+		}
+	}
+	
+	
+	public int length() {
+		return program.length();
+	}
+	
+	
+	// A view of the opcodes, which is only valid until this program is next modified
+	public java.nio.ByteBuffer asNioBuffer() {
+		return program.asNioBuffer();
+	}
+	
+	
+	/**
+	 * Returns the header that precedes the line number programs in a {@code .debug_line} section. The section holds the header followed by the specified number of bytes of programs, which all refer to file number 1.
+	 * @param fileName the name of the source file, relative to the compilation directory
+	 * @param programLength the total length of the programs that follow the header
+	 * @return the bytes of the header
+	 */
+	public static byte[] getHeaderBytes(String fileName, int programLength) {
+		// Everything after the header length field
+		ByteBuffer rest = new ByteBuffer();
+		rest.append((byte)1);  // Minimum instruction length
+		rest.append((byte)1);  // Default is_stmt
+		rest.append((byte)LINE_BASE);
+		rest.append((byte)LINE_RANGE);
+		rest.append((byte)OPCODE_BASE);
+		rest.append(new byte[]{0, 1, 1, 1, 1, 0, 0, 0, 1});  // Number of operands of each standard opcode
+		rest.append((byte)0);  // No include directories
+		rest.append(fileName.getBytes(StandardCharsets.UTF_8));
+		rest.append(new byte[]{0, 0, 0, 0});  // Null terminator, directory 0, unknown time and length
+		rest.append((byte)0);  // End of file names
+		
+		ByteBuffer b = new ByteBuffer();
+		b.appendLittleEndian(2 + 4 + rest.length() + programLength);  // Unit length
+		b.appendLittleEndian((short)2);  // Version
+		b.appendLittleEndian(rest.length());  // Header length
+		b.append(rest.toArray());
+		return b.toArray();
+	}
+	
+	
+	private void setAddress(int address) {
+		if (numAddresses == addressPositions.length) {
+			addressPositions = Arrays.copyOf(addressPositions, numAddresses * 2);
+			addressValues = Arrays.copyOf(addressValues, numAddresses * 2);
+		}
+		appendExtendedOpcode(DW_LNE_set_address, 4);
+		addressPositions[numAddresses] = program.length();
+		addressValues[numAddresses] = address;
+		numAddresses++;
+		program.appendLittleEndian(address);
+		this.address = address;
+	}
+	
+	
+	// Appends the introducer of an extended opcode whose operands are the specified number of bytes
+	private void appendExtendedOpcode(int opcode, int operandLength) {
+		program.append((byte)0);
+		appendUleb128(1 + operandLength);
+		program.append((byte)opcode);
+	}
+	
+	
+	private void appendUleb128(int x) {
+		do {
+			int b = x & 0x7F;
+			x >>>= 7;
+			program.append((byte)(x != 0 ? b | 0x80 : b));
+		} while (x != 0);
+	}
+	
+	
+	private void appendSleb128(int x) {
+		while (true) {
+			int b = x & 0x7F;
+			x >>= 7;
+			if (x == 0 && (b & 0x40) == 0 || x == -1 && (b & 0x40) != 0) {
+				program.append((byte)b);
+				return;
+			}
+			program.append((byte)(b | 0x80));
+		}
+	}
+	
+}
@@ -7,6 +7,11 @@ public final class ProgramHeader {
 	
 	static int PROGRAM_HEADER_ENTRY_SIZE = 32;
 	
+	/* Segment permission flags */
+	public static final int PF_X = 0x1;
+	public static final int PF_W = 0x2;
+	public static final int PF_R = 0x4;
+	
 	
 	public SegmentType type;
 	
@@ -7,6 +7,11 @@ public final class SectionHeader {
 	
 	static int SECTION_HEADER_ENTRY_SIZE = 40;
 	
+	/* Section flags */
+	public static final int SHF_WRITE     = 0x1;
+	public static final int SHF_ALLOC     = 0x2;
+	public static final int SHF_EXECINSTR = 0x4;
+	
 	
 	public int name;
 	
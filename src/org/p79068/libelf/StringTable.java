@@ -0,0 +1,47 @@
+package org.p79068.libelf;
+
+import java.nio.charset.StandardCharsets;
+
+import org.p79068.util.ByteBuffer;
+
+
+/**
+ * The contents of a string table section, such as {@code .strtab} or {@code .shstrtab}. Each string is stored null-terminated and is referred to by its offset. Offset 0 is the empty string.
+ */
+public final class StringTable {
+	
+	private ByteBuffer data;
+	
+	
+	
+	public StringTable() {
+		data = new ByteBuffer();
+		data.append((byte)0);
+	}
+	
+	
+	
+	/**
+	 * Appends the specified string and returns its offset. Duplicate strings are not merged.
+	 * @param s the string to append, which must not contain a null character
+	 * @return the offset of the string in this table
+	 */
+	public int add(String s) {
+		int result = data.length();
+		data.append(s.getBytes(StandardCharsets.UTF_8));
+		data.append((byte)0);
+		return result;
+	}
+	
+	
+	public int length() {
+		return data.length();
+	}
+	
+	
+	// A view of the contents, which is only valid until the next string is added
+	public java.nio.ByteBuffer asNioBuffer() {
+		return data.asNioBuffer();
+	}
+	
+}
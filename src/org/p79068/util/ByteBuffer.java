@@ -1,5 +1,7 @@
 package org.p79068.util;
 
+import java.util.Arrays;
+
 
 /**
  * A mutable sequence of bytes. Bytes can be appended, and the whole sequence can be retrieved. The backing array automatically grows to accomodate the data. Unsynchronized.
@@ -77,6 +79,20 @@ public final class ByteBuffer {
 	}
 	
 	
+	/**
+	 * Appends the specified number of zero bytes to this sequence.
+	 * @param count the number of zero bytes to append
+	 * @throws IllegalArgumentException if the count is negative
+	 */
+	public void appendZeros(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("Negative count");
+		ensureCapacity((long)length + count);
+		Arrays.fill(data, length, length + count, (byte)0);
+		length += count;
+	}
+	
+	
 	/**
 	 * Appends the specified byte array to this sequence.
 	 * @param x the byte array to append
@@ -91,6 +107,45 @@ public final class ByteBuffer {
 	}
 	
 	
+	/**
+	 * Replaces the byte at the specified index of this sequence.
+	 * @param index the index of the byte to replace
+	 * @param b the new byte value
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	public void set(int index, byte b) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException();
+		data[index] = b;
+	}
+	
+	
+	/**
+	 * Returns the length of this sequence.
+	 * @return the length of this sequence
+	 */
+	public int length() {
+		return length;
+	}
+	
+	
+	/**
+	 * Removes all the bytes from this sequence. The backing array is kept, so that the buffer can be reused without reallocating.
+	 */
+	public void clear() {
+		length = 0;
+	}
+	
+	
+	/**
+	 * Returns a read-only {@link java.nio.ByteBuffer} view of this sequence, without copying. The view shares the backing array, so it is only valid until this buffer is next modified.
+	 * @return a read-only view of this sequence
+	 */
+	public java.nio.ByteBuffer asNioBuffer() {
+		return java.nio.ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+	}
+	
+	
 	/**
 	 * Returns this sequence as a new byte array. The returned array is not the same as the backing array for this buffer.
 	 * @return this sequence as a new byte array
@@ -104,11 +159,11 @@ public final class ByteBuffer {
 	
 	/**
 	 * Ensures that the backing array is at least as large as the specified capacity. This method resizes the array if its length is less than the specified capacity, otherwise it does nothing.
-	 * @param capacity
+	 * @param capacity the minimum capacity
 	 * @throws IllegalArgumentException if the capacity is negative
 	 * @throws IllegalStateException if the capacity is greater than Integer.MAX_VALUE
 	 */
-	private void ensureCapacity(long capacity) {
+	public void ensureCapacity(long capacity) {
 		if (capacity < 0)
 			throw new IllegalArgumentException("Negative capacity");
 		if (capacity > Integer.MAX_VALUE)
@@ -0,0 +1,127 @@
+package org.p79068.assembler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class AssemblerServerTest {
+	
+	@Test
+	public void testServe() throws Exception {
+		File dir = Files.createTempDirectory("assembler").toFile();
+		final File socketFile = new File(dir, "socket");
+		final AssemblerServer server = new AssemblerServer(socketFile);
+		Thread serverThread = new Thread() {
+			public void run() {
+				try {
+					server.serve();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		serverThread.start();
+		try {
+			// Once the server is listening, the socket file is in place with its final permissions, and the directory it was created in is gone
+			assertTrue(server.awaitListening(10, TimeUnit.SECONDS));
+			assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socketFile.toPath()));
+			assertArrayEquals(new String[]{"socket"}, dir.list());
+			new AssemblerClient(socketFile).close();
+			
+			final File input = new File(dir, "input.s");
+			Writer out = new FileWriter(input);
+			try {
+				out.write("start:\n\tmovl %eax, $1\n\tjne $start\n");
+			} finally {
+				out.close();
+			}
+			File expected = new File(dir, "expected.out");
+			Main.assemble(input, expected, null);
+			
+			// Several clients are served concurrently, with the same output as assembling in this process
+			final File[] outputs = new File[4];
+			final List<Throwable> errors = new ArrayList<Throwable>();
+			Thread[] clients = new Thread[outputs.length];
+			for (int i = 0; i < clients.length; i++) {
+				outputs[i] = new File(dir, i + ".out");
+				final File output = outputs[i];
+				clients[i] = new Thread() {
+					public void run() {
+						try {
+							AssemblerClient client = new AssemblerClient(socketFile);
+							try {
+								for (int j = 0; j < 10; j++)
+									client.assemble(input, output, null);
+							} finally {
+								client.close();
+							}
+						} catch (Throwable e) {
+							synchronized (errors) {
+								errors.add(e);
+							}
+						}
+					}
+				};
+				clients[i].start();
+			}
+			for (Thread t : clients)
+				t.join();
+			assertTrue(errors.toString(), errors.isEmpty());
+			for (File f : outputs)
+				assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(f.toPath()));
+			
+			// A failure is reported to its client and counted, and the connection stays usable
+			AssemblerClient client = new AssemblerClient(socketFile);
+			try {
+				try {
+					client.assemble(new File(dir, "missing.s"), new File(dir, "missing.out"), null);
+					fail();
+				} catch (IllegalArgumentException e) {}
+				
+				// A malformed message ends its connection and is counted
+				SocketChannel raw = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.getPath()));
+				try {
+					raw.write(ByteBuffer.wrap(new byte[]{AssemblerServer.ASSEMBLE, 0, 0, 0, 0, 0, 0, 0, 0, 0x7F, 0, 0, 0}));
+					assertEquals(-1, raw.read(ByteBuffer.allocate(1)));
+				} finally {
+					raw.close();
+				}
+				
+				String stats = client.getStatistics();
+				assertTrue(stats, stats.contains("requests 41"));
+				assertTrue(stats, stats.contains("failures 1"));
+				assertTrue(stats, stats.contains("connection_errors 1"));
+				client.stopServer();
+			} finally {
+				client.close();
+			}
+			serverThread.join(10000);
+			assertFalse(serverThread.isAlive());
+			assertFalse(socketFile.exists());
+		} finally {
+			server.stop();
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+	
+}
@@ -0,0 +1,138 @@
+package org.p79068.assembler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+
+public class BuildCacheTest {
+	
+	@Test
+	public void testHitAndMiss() throws IOException {
+		File dir = Files.createTempDirectory("assembler").toFile();
+		try {
+			File input = writeFile(new File(dir, "input.s"), "start:\n\tmovl %eax, $1\n\tjne $start\n");
+			File expected = new File(dir, "expected.out");
+			Main.assemble(input, expected, null);
+			
+			BuildCache cache = new BuildCache(new File(dir, "cache"), 1 << 20);
+			File output = new File(dir, "output");
+			assertFalse(cache.assemble(input, output, null, null));
+			assertArrayEquals(read(expected), read(output));
+			assertTrue(cache.assemble(input, new File(dir, "output2"), null, null));
+			assertArrayEquals(read(expected), read(new File(dir, "output2")));
+			
+			// The option is part of the key
+			assertFalse(cache.assemble(input, new File(dir, "output3"), "--single-pass", null));
+			
+			// Outputs are copies, so assembling over one does not change the entry
+			File other = writeFile(new File(dir, "other.s"), "\tret\n");
+			Main.assemble(other, output, null);
+			assertTrue(cache.assemble(input, new File(dir, "output4"), null, null));
+			assertArrayEquals(read(expected), read(new File(dir, "output4")));
+			
+			// So are the input bytes
+			writeFile(input, "start:\n\tmovl %eax, $2\n\tjne $start\n");
+			assertFalse(cache.assemble(input, output, null, null));
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	
+	@Test
+	public void testHitFromOtherDirectory() throws IOException {
+		File dir = Files.createTempDirectory("assembler").toFile();
+		try {
+			String source = "start:\n\tmovl %eax, $1\n\tjne $start\n";
+			File first = new File(dir, "first");
+			File second = new File(dir, "second/sub");
+			assertTrue(first.mkdir() && second.mkdirs());
+			File input = writeFile(new File(first, "input.s"), source);
+			File other = writeFile(new File(second, "renamed.s"), source);
+			
+			BuildCache cache = new BuildCache(new File(dir, "cache"), 1 << 20);
+			assertFalse(cache.assemble(input, new File(first, "output"), null, null));
+			assertTrue(cache.assemble(other, new File(second, "output"), null, null));
+			assertArrayEquals(read(new File(first, "output")), read(new File(second, "output")));
+			
+			// With debugging information, the name recorded for the input is part of the key
+			String compDir = dir.getPath();
+			assertFalse(cache.assemble(input, new File(first, "debug"), null, compDir));
+			assertTrue(cache.assemble(input, new File(second, "debug"), null, compDir));
+			assertFalse(cache.assemble(other, new File(second, "debug2"), null, compDir));
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	
+	@Test
+	public void testEviction() throws Exception {
+		File dir = Files.createTempDirectory("assembler").toFile();
+		try {
+			// The entries all have the same length, and the cache holds 3 of them
+			File[] inputs = new File[4];
+			for (int i = 0; i < inputs.length; i++)
+				inputs[i] = writeFile(new File(dir, i + ".s"), "\tmovl %eax, $" + i + "\n");
+			File output = new File(dir, "output");
+			Main.assemble(inputs[0], output, null);
+			long length = output.length();
+			File cacheDir = new File(dir, "cache");
+			BuildCache cache = new BuildCache(cacheDir, length * 7 / 2);
+			
+			for (int i = 0; i < 3; i++) {
+				assertFalse(cache.assemble(inputs[i], output, null, null));
+				Thread.sleep(20);  // Keep the modification times apart
+			}
+			assertTrue(cache.assemble(inputs[0], output, null, null));
+			Thread.sleep(20);
+			
+			// Entry 1 is the least recently used
+			assertFalse(cache.assemble(inputs[3], output, null, null));
+			assertEquals(3, cacheDir.list().length);
+			assertTrue(cache.assemble(inputs[0], output, null, null));
+			assertTrue(cache.assemble(inputs[2], output, null, null));
+			assertTrue(cache.assemble(inputs[3], output, null, null));
+			assertFalse(cache.assemble(inputs[1], output, null, null));
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	
+	private static File writeFile(File file, String contents) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+	
+	
+	private static byte[] read(File file) throws IOException {
+		return Files.readAllBytes(file.toPath());
+	}
+	
+	
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+	
+}
@@ -0,0 +1,98 @@
+package org.p79068.assembler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class MainTest {
+	
+	@Test
+	public void testBatchFailure() throws IOException {
+		List<File> temps = new ArrayList<File>();
+		try {
+			List<File> files = new ArrayList<File>();
+			for (int i = 0; i < 8; i++) {
+				File input = createFile(temps, i == 3 ? "\tbogus %eax\n" : "\tmovl %eax, $" + i + "\n\tret\n");
+				File output = createFile(temps, "");
+				output.delete();
+				files.add(input);
+				files.add(output);
+			}
+			
+			// The bad file is reported, and every other file is still assembled
+			ByteArrayOutputStream err = new ByteArrayOutputStream();
+			assertEquals(1, Main.assembleAll(files, null, null, null, 3, new PrintStream(err, true)));
+			assertTrue(err.toString().startsWith(files.get(6) + ": "));
+			for (int i = 0; i < 8; i++)
+				assertEquals(i != 3, files.get(i * 2 + 1).length() > 0);
+		} finally {
+			for (File f : temps)
+				f.delete();
+		}
+	}
+	
+	
+	@Test
+	public void testReadManifest() throws IOException {
+		List<File> temps = new ArrayList<File>();
+		try {
+			File manifest = createFile(temps, "# Comment\n\na.s  a.out\n\t/tmp/b.s\t/tmp/b.out \n");
+			File dir = manifest.getAbsoluteFile().getParentFile();
+			assertEquals(Arrays.asList(new File(dir, "a.s"), new File(dir, "a.out"), new File("/tmp/b.s"), new File("/tmp/b.out")), Main.readManifest(manifest));
+		} finally {
+			for (File f : temps)
+				f.delete();
+		}
+	}
+	
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testReadManifestInvalid() throws IOException {
+		List<File> temps = new ArrayList<File>();
+		try {
+			Main.readManifest(createFile(temps, "a.s a.out extra\n"));
+		} finally {
+			for (File f : temps)
+				f.delete();
+		}
+	}
+	
+	
+	@Test
+	public void testGetDebugName() {
+		// Relative to the compilation directory however the input is spelled, absolute outside it, and nothing without debugging information
+		File dir = new File("").getAbsoluteFile();
+		assertEquals(new File("demo", "count.s").getPath(), Main.getDebugName(new File("demo/count.s"), "."));
+		assertEquals(new File("demo", "count.s").getPath(), Main.getDebugName(new File(dir, "demo/../demo/count.s"), "."));
+		assertEquals(new File("count.s").getPath(), Main.getDebugName(new File(dir, "demo/count.s"), dir + "/demo"));
+		assertEquals(new File(dir, "count.s").getPath(), Main.getDebugName(new File("count.s"), "demo"));
+		assertNull(Main.getDebugName(new File("count.s"), null));
+	}
+	
+	
+	private static File createFile(List<File> temps, String contents) throws IOException {
+		File file = File.createTempFile("assembler", ".s");
+		temps.add(file);
+		Writer out = new FileWriter(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+	
+}
@@ -0,0 +1,54 @@
+package org.p79068.assembler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+
+public class SymbolTableTest {
+	
+	@Test
+	public void testIntern() {
+		SymbolTable t = new SymbolTable();
+		assertEquals(-1, t.getId("main"));
+		assertEquals(0, t.intern("main"));
+		assertEquals(1, t.intern("loop"));
+		assertEquals(0, t.intern("main"));
+		assertEquals(1, t.getId("loop"));
+		assertEquals(2, t.size());
+		assertEquals("loop", t.getName(1));
+		assertEquals(1, t.getLabel(1).getId());
+		assertSame(t.getLabel(0), t.getLabel(t.intern("main")));
+	}
+	
+	
+	@Test
+	public void testGrow() {
+		SymbolTable t = new SymbolTable();
+		for (int i = 0; i < 100000; i++)
+			assertEquals(i, t.intern("L" + i));
+		for (int i = 0; i < 100000; i++)
+			assertEquals(i, t.getId("L" + i));
+		assertEquals(-1, t.getId("L100000"));
+	}
+	
+	
+	@Test
+	public void testClear() {
+		// Enough labels for collisions and a rehash, cleared and reused with overlapping names
+		SymbolTable t = new SymbolTable();
+		for (int i = 0; i < 1000; i++)
+			t.intern("L" + i);
+		t.clear();
+		assertEquals(0, t.size());
+		for (int i = 0; i < 1000; i++)
+			assertEquals(-1, t.getId("L" + i));
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, t.intern("L" + (i * 7)));
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, t.getId("L" + (i * 7)));
+		assertEquals(-1, t.getId("L1"));
+	}
+	
+}
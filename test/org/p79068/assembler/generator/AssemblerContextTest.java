@@ -0,0 +1,122 @@
+package org.p79068.assembler.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.p79068.assembler.CompactProgram;
+import org.p79068.assembler.parser.Parser;
+
+
+public class AssemblerContextTest {
+	
+	@Test
+	public void testReuse() {
+		// Programs that shrink and grow, so that stale scratch state would show up in the output
+		AssemblerContext context = new AssemblerContext();
+		for (int size : new int[]{300, 5, 1000, 0, 40}) {
+			String source = makeSource(size);
+			byte[] expected = assembleStatic(source);
+			Map<String,Integer> labels = Assembler.assemble(Parser.parseCompact(source), 0x8000, ByteBuffer.allocate(expected.length));
+			
+			ByteBuffer out = ByteBuffer.allocate(expected.length);
+			assertEquals(expected.length, context.assemble(source, 0x8000, out));
+			assertArrayEquals(expected, out.array());
+			for (Map.Entry<String,Integer> entry : labels.entrySet())
+				assertEquals(entry.getValue().intValue(), context.getLabelAddress(entry.getKey()));
+			
+			// The single-pass output differs only in forward branches, so the backward-only source is the same
+			CompactProgram program = Parser.parseCompact(source);
+			out = ByteBuffer.allocate(expected.length);
+			assertEquals(expected.length, context.assembleSinglePass(program, 0x8000, out));
+			assertArrayEquals(expected, out.array());
+		}
+	}
+	
+	
+	@Test
+	public void testReuseAfterError() {
+		AssemblerContext context = new AssemblerContext();
+		try {
+			context.assemble("\tjnz $missing\n", 0, ByteBuffer.allocate(16));
+			fail();
+		} catch (IllegalArgumentException e) {}
+		try {
+			context.getLabelAddress("missing");
+			fail();
+		} catch (IllegalStateException e) {}
+		
+		String source = makeSource(10);
+		byte[] expected = assembleStatic(source);
+		ByteBuffer out = ByteBuffer.allocate(expected.length);
+		context.assemble(source, 0x8000, out);
+		assertArrayEquals(expected, out.array());
+	}
+	
+	
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final String source = makeSource(2000);
+		final byte[] expected = assembleStatic(source);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						AssemblerContext context = new AssemblerContext();
+						ByteBuffer out = ByteBuffer.allocate(expected.length);
+						for (int j = 0; j < 20; j++) {
+							out.clear();
+							context.assemble(source, 0x8000, out);
+							if (!Arrays.equals(expected, out.array()))
+								throw new AssertionError("Output mismatch");
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+	
+	
+	// Every branch is backward and short, and every section is used
+	private static String makeSource(int size) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			sb.append(".text\n");
+			sb.append("code" + i + ":\tmovl %eax, var" + i + "\n");
+			sb.append("\tjnz $code" + i + "\n");
+			sb.append(".rodata\n");
+			sb.append("const" + i + ":\tdword $code" + i + "\n");
+			sb.append(".data\n");
+			sb.append("var" + i + ":\tdword $const" + i + "\n");
+			sb.append(".bss\n");
+			sb.append("\t.skip " + i + "\n");
+		}
+		return sb.toString();
+	}
+	
+	
+	private static byte[] assembleStatic(String source) {
+		ByteBuffer out = ByteBuffer.allocate(1 << 20);
+		Assembler.assemble(Parser.parseCompact(source), 0x8000, out);
+		return Arrays.copyOf(out.array(), out.position());
+	}
+	
+}
@@ -0,0 +1,361 @@
+package org.p79068.assembler.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.p79068.assembler.CompactProgram;
+import org.p79068.assembler.parser.Parser;
+
+
+public class AssemblerTest {
+	
+	@Test
+	public void testSections() throws IOException {
+		// Interleaves the sections, with references from each section to labels in the others
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append(".text\n");
+			sb.append("code" + i + ":\tmovl %eax, var" + i + "\n");
+			sb.append("\tmovl %ecx, $const" + i + "\n");
+			sb.append("\tjnz $code" + (i / 2) + "\n");
+			sb.append(".rodata\n");
+			sb.append("const" + i + ":\tdword $code" + i + "\n");
+			sb.append(".data\n");
+			sb.append("var" + i + ":\tdword $const" + i + "\n");
+		}
+		
+		File source = File.createTempFile("sections", ".s");
+		File output = File.createTempFile("sections", ".out");
+		try {
+			Writer out = new FileWriter(source);
+			try {
+				out.write(sb.toString());
+			} finally {
+				out.close();
+			}
+			CompactProgram program = Parser.parseFileCompact(source);
+			
+			Assembler.assembleToFile(program, output);
+			byte[] relaxed = Files.readAllBytes(output.toPath());
+			Assembler.assembleToFileSinglePass(program, output);
+			assertArrayEquals(relaxed, Files.readAllBytes(output.toPath()));
+			ForkJoinPool pool = new ForkJoinPool(4);
+			try {
+				Assembler.assembleToFileParallel(program, output, pool);
+				assertArrayEquals(relaxed, Files.readAllBytes(output.toPath()));
+			} finally {
+				pool.shutdown();
+			}
+			
+			// One segment per section, page-aligned after the first, with flags R+X, R, R+W
+			assertEquals(3, getShort(relaxed, 44));
+			int[] expectedFlags = {5, 4, 6};
+			for (int i = 0; i < 3; i++) {
+				int ph = 52 + i * 32;
+				int offset = getInt(relaxed, ph + 4);
+				assertEquals(0x00100000 + offset, getInt(relaxed, ph + 8));
+				assertEquals(expectedFlags[i], getInt(relaxed, ph + 24));
+				if (i > 0)
+					assertEquals(0, offset % 0x1000);
+			}
+			
+			// The first data word holds the address of the first read-only word
+			int rodataOffset = getInt(relaxed, 52 + 32 + 4);
+			int dataOffset = getInt(relaxed, 52 + 64 + 4);
+			assertEquals(0x00100000 + rodataOffset, getInt(relaxed, dataOffset));
+		} finally {
+			source.delete();
+			output.delete();
+		}
+	}
+	
+	
+	
+	@Test
+	public void testBss() throws IOException {
+		String source =
+			"\tmovl %eax, $buf\n" +
+			"\tmovl %ebx, tail\n" +
+			".data\n" +
+			"counter:\tdword $end\n" +
+			".bss\n" +
+			"buf:\t.skip 0x1000000\n" +
+			"tail:\t.skip 4\n" +
+			"end:\n";
+		byte[] relaxed = assemble(source, 0);
+		assertArrayEquals(relaxed, assemble(source, 1));
+		assertArrayEquals(relaxed, assemble(source, 2));
+		
+		// The data segment holds 4 bytes in the file, followed by the reserved bytes in memory only
+		assertEquals(2, getShort(relaxed, 44));
+		int ph = 52 + 32;
+		int offset = getInt(relaxed, ph + 4);
+		assertEquals(4, getInt(relaxed, ph + 16));
+		assertEquals(4 + 0x1000000 + 4, getInt(relaxed, ph + 20));
+		assertTrue(relaxed.length < offset + 0x1000);
+		assertEquals(0x00100000 + offset + 4 + 0x1000000 + 4, getInt(relaxed, offset));
+	}
+	
+	
+	@Test
+	public void testSymbols() throws IOException {
+		String source =
+			"start:\tmovl %eax, $1\n" +
+			"loop:\tjmp $loop\n" +
+			".data\n" +
+			"value:\tdword $start\n";
+		byte[] elf = assemble(source, 0);
+		assertArrayEquals(elf, assemble(source, 1));
+		
+		// The symbol table is section header 5, after the null header and the 4 sections, and is linked to its string table.
+		// The 3 debugging sections come last
+		int shoff = getInt(elf, 32);
+		assertEquals(11, getShort(elf, 48));
+		int symtab = shoff + 5 * 40;
+		assertEquals(2, getInt(elf, symtab + 4));
+		int strtab = shoff + getInt(elf, symtab + 24) * 40;
+		int symbols = getInt(elf, symtab + 16);
+		int names = getInt(elf, strtab + 16);
+		assertEquals(4 * 16, getInt(elf, symtab + 20));
+		
+		// Each symbol extends to the next label in its section, or to the end of the section
+		int textAddress = getInt(elf, 24);
+		String[] expectedNames = {"start", "loop", "value"};
+		int[] expectedSizes = {5, 2, 4};
+		for (int i = 0; i < 3; i++) {
+			int sym = symbols + (i + 1) * 16;
+			StringBuilder name = new StringBuilder();
+			for (int j = names + getInt(elf, sym); elf[j] != 0; j++)
+				name.append((char)elf[j]);
+			assertEquals(expectedNames[i], name.toString());
+			assertEquals(expectedSizes[i], getInt(elf, sym + 8));
+		}
+		assertEquals(textAddress, getInt(elf, symbols + 16 + 4));
+		assertEquals(textAddress + 5, getInt(elf, symbols + 32 + 4));
+		assertEquals(textAddress, getInt(elf, getInt(elf, symbols + 48 + 4) - 0x00100000));
+	}
+	
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testBssInitializedData() throws IOException {
+		assemble(".bss\n\tdword $0\n", 0);
+	}
+	
+	
+	@Test
+	public void testSectionTooLarge() throws IOException {
+		// Each .skip fits in an int, but the section does not
+		for (int mode = 0; mode < 3; mode++) {
+			try {
+				assemble(".bss\n\t.skip 0x7FFFFFFF\n\t.skip 1\n", mode);
+				fail();
+			} catch (IllegalArgumentException e) {
+				assertEquals("Section too large: .bss", e.getMessage());
+			}
+		}
+		
+		// Each section fits, but together they do not fit above the base address.
+		// The single pass is left out because it fills the .rodata section with zeros before the layout is known
+		for (int mode = 0; mode < 3; mode += 2) {
+			try {
+				assemble(".rodata\n\t.skip 0x7FFFFFFF\n.bss\n\t.skip 0x7FFFFFFF\n", mode);
+				fail();
+			} catch (IllegalArgumentException e) {
+				assertEquals("Program does not fit in the 32-bit address space", e.getMessage());
+			}
+		}
+	}
+	
+	
+	@Test
+	public void testBranchRelaxation() throws IOException {
+		// A forward displacement is the distance from the end of the branch to the target, so rel8 reaches 127 bytes past the branch
+		assertArrayEquals(concat(code(0xEB, 0x7F), new byte[127]), assembleText("\tjmp $t\n\t.skip 127\nt:\n", true));
+		assertArrayEquals(concat(code(0xE9, 0x80, 0x00, 0x00, 0x00), new byte[128]), assembleText("\tjmp $t\n\t.skip 128\nt:\n", true));
+		assertArrayEquals(concat(code(0x75, 0x7F), new byte[127]), assembleText("\tjnz $t\n\t.skip 127\nt:\n", true));
+		assertArrayEquals(concat(code(0x0F, 0x85, 0x80, 0x00, 0x00, 0x00), new byte[128]), assembleText("\tjnz $t\n\t.skip 128\nt:\n", true));
+		
+		// A backward displacement includes the branch itself, so rel8 reaches -128 with 126 bytes in between, and the long form is longer
+		assertArrayEquals(concat(new byte[126], code(0xEB, 0x80)), assembleText("t:\t.skip 126\n\tjmp $t\n", true));
+		assertArrayEquals(concat(new byte[127], code(0xE9, 0x7C, 0xFF, 0xFF, 0xFF)), assembleText("t:\t.skip 127\n\tjmp $t\n", true));
+		assertArrayEquals(concat(new byte[126], code(0x75, 0x80)), assembleText("t:\t.skip 126\n\tjnz $t\n", true));
+		assertArrayEquals(concat(new byte[127], code(0x0F, 0x85, 0x7B, 0xFF, 0xFF, 0xFF)), assembleText("t:\t.skip 127\n\tjnz $t\n", true));
+		
+		// Lengthening the second branch pushes the target of the first one out of range, which takes another iteration
+		assertArrayEquals(concat(code(0xE9, 0x80, 0x00, 0x00, 0x00, 0xE9, 0x85, 0x00, 0x00, 0x00), new byte[133]),
+			assembleText("\tjmp $end\n\tjmp $far\n\t.skip 123\nend:\t.skip 10\nfar:\n", true));
+		
+		// Without relaxation, every branch has its long form, even one that the short form reaches
+		assertArrayEquals(concat(code(0xE9, 0x01, 0x00, 0x00, 0x00), new byte[1]), assembleText("\tjmp $t\n\t.skip 1\nt:\n", false));
+		assertArrayEquals(concat(new byte[1], code(0x0F, 0x85, 0xF9, 0xFF, 0xFF, 0xFF)), assembleText("t:\t.skip 1\n\tjnz $t\n", false));
+	}
+	
+	
+	@Test
+	public void testSinglePassForwardReferences() throws IOException {
+		// Forward branches, absolute label operands, and label displacements, in and across sections, a backward branch that is out of rel8 range, and branches to numeric addresses before and after the code and within it.
+		// The single pass emits each of them in its long form, which is the same as two passes without relaxation
+		String source =
+			"start:\tjmp $near\n" +
+			"\tjnz $far\n" +
+			"\tcall $func\n" +
+			"\tjmp $0x1000\n" +
+			"\tjnz $0x00100000\n" +
+			"\tcall $0x00100100\n" +
+			"near:\tmovl %eax, $value\n" +
+			"\tmovl %ebx, value\n" +
+			"\tmovl 4(%ebx,%ecx,2), %edx\n" +
+			"\t.skip 200\n" +
+			"func:\tjmp $start\n" +
+			"\tjmp $0x00100080\n" +
+			"\tjnz $0x00200000\n" +
+			"\tcall $0x00100000\n" +
+			"far:\tret\n" +
+			".data\n" +
+			"\tdword $end\n" +
+			"value:\tdword $func\n" +
+			"end:\n";
+		byte[] unrelaxed = assemble(source, 3);
+		assertArrayEquals(unrelaxed, assemble(source, 1));
+		assertFalse(Arrays.equals(unrelaxed, assemble(source, 0)));  // The forward branches are short when relaxed
+		
+		// In memory at a base address other than 0, where every target is out of rel8 range, so that the relaxed output has the long forms too
+		CompactProgram program = Parser.parseCompact(
+			"start:\tjmp $0x3000\n" +
+			"\tjnz $0x5000\n" +
+			"\tcall $0x4000\n" +
+			"\tjmp $end\n" +
+			"\t.skip 200\n" +
+			"\tjmp $start\n" +
+			"\tjnz $0x4000\n" +
+			"\tcall $0x40D0\n" +
+			"end:\tret\n");
+		ByteBuffer relaxed = ByteBuffer.allocate(256);
+		Assembler.assemble(program, 0x4000, relaxed);
+		ByteBuffer singlePass = ByteBuffer.allocate(256);
+		new AssemblerContext().assembleSinglePass(program, 0x4000, singlePass);
+		assertEquals(relaxed.position(), singlePass.position());
+		assertArrayEquals(relaxed.array(), singlePass.array());
+		
+		// The target is in range, but its distance is not known until the section is placed, so the branch is long
+		singlePass = ByteBuffer.allocate(8);
+		new AssemblerContext().assembleSinglePass(Parser.parseCompact("\tnop\n\tjmp $0x1000\n"), 0x1000, singlePass);
+		assertArrayEquals(code(0x90, 0xE9, 0xFA, 0xFF, 0xFF, 0xFF, 0x00, 0x00), singlePass.array());
+	}
+	
+	
+	@Test
+	public void testAssembleInMemory() {
+		CompactProgram program = Parser.parseCompact("start:\tmovl %eax, $value\nloop:\tjnz $loop\n.data\nvalue:\tdword $start\n.bss\nbuffer:\t.skip 8\n");
+		
+		// The sections follow each other from the base address, and the .bss section is not written
+		ByteBuffer out = ByteBuffer.allocate(16);
+		out.position(2);
+		Map<String,Integer> labels = Assembler.assemble(program, 0x1000, out);
+		assertEquals(13, out.position());
+		byte[] expected = {0, 0, (byte)0xB8, 0x07, 0x10, 0x00, 0x00, 0x75, (byte)0xFE, 0x00, 0x10, 0x00, 0x00, 0, 0, 0};
+		assertArrayEquals(expected, out.array());
+		
+		Map<String,Integer> expectedLabels = new HashMap<String,Integer>();
+		expectedLabels.put("start", 0x1000);
+		expectedLabels.put("loop", 0x1005);
+		expectedLabels.put("value", 0x1007);
+		expectedLabels.put("buffer", 0x100B);
+		assertEquals(expectedLabels, labels);
+		
+		// Nothing is written if the image does not fit
+		out = ByteBuffer.allocate(10);
+		try {
+			Assembler.assemble(program, 0x1000, out);
+			fail();
+		} catch (BufferOverflowException e) {}
+		assertEquals(0, out.position());
+		assertArrayEquals(new byte[10], out.array());
+	}
+	
+	
+	
+	// Assembles the source in the specified mode: 0 for two-pass, 1 for single-pass, 2 for parallel, 3 for two-pass without branch relaxation
+	private static byte[] assemble(String source, int mode) throws IOException {
+		File sourceFile = File.createTempFile("assembler", ".s");
+		File output = File.createTempFile("assembler", ".out");
+		try {
+			Writer out = new FileWriter(sourceFile);
+			try {
+				out.write(source);
+			} finally {
+				out.close();
+			}
+			CompactProgram program = Parser.parseFileCompact(sourceFile);
+			program.setSourceName("test.s");  // The temporary file name differs on every call
+			if (mode == 0)
+				Assembler.assembleToFile(program, output);
+			else if (mode == 1)
+				Assembler.assembleToFileSinglePass(program, output);
+			else if (mode == 2)
+				Assembler.assembleToFileParallel(program, output);
+			else
+				Assembler.assembleToFile(program, output, false);
+			return Files.readAllBytes(output.toPath());
+		} finally {
+			sourceFile.delete();
+			output.delete();
+		}
+	}
+	
+	
+	// Returns the contents of the text segment, which is the first segment
+	private static byte[] assembleText(String source, boolean relaxBranches) throws IOException {
+		File output = File.createTempFile("assembler", ".out");
+		try {
+			Assembler.assembleToFile(Parser.parseCompact(source), output, relaxBranches);
+			byte[] elf = Files.readAllBytes(output.toPath());
+			int offset = getInt(elf, 52 + 4);
+			return Arrays.copyOfRange(elf, offset, offset + getInt(elf, 52 + 16));
+		} finally {
+			output.delete();
+		}
+	}
+	
+	
+	private static byte[] code(int... values) {
+		byte[] result = new byte[values.length];
+		for (int i = 0; i < values.length; i++)
+			result[i] = (byte)values[i];
+		return result;
+	}
+	
+	
+	private static byte[] concat(byte[] x, byte[] y) {
+		byte[] result = Arrays.copyOf(x, x.length + y.length);
+		System.arraycopy(y, 0, result, x.length, y.length);
+		return result;
+	}
+	
+	
+	private static int getShort(byte[] b, int off) {
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+	}
+	
+	
+	private static int getInt(byte[] b, int off) {
+		return getShort(b, off) | getShort(b, off + 2) << 16;
+	}
+	
+}
@@ -0,0 +1,225 @@
+package org.p79068.assembler.generator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.p79068.assembler.operand.OperandKind;
+import org.p79068.assembler.operand.Register;
+import org.p79068.assembler.operand.Register16;
+import org.p79068.assembler.operand.Register32;
+import org.p79068.assembler.operand.Register8;
+import org.p79068.assembler.operand.SegmentRegister;
+
+
+/**
+ * Generates random but valid assembly programs of any size, for tests and benchmarks. The output depends only on the seed and the number of lines.
+ * <p>Instructions are drawn from every pattern in {@link InstructionPatternTable#MODE32_TABLE}, with random operands of every shape that the pattern accepts: registers, memory operands with and without a SIB byte and with numeric or label displacements, immediate values in range, and labels. A quarter of the instructions are branches. Every fourth line has a label. Branches that only have an 8-bit displacement target a neighboring label, and the others target a label anywhere in the program.</p>
+ */
+public final class ProgramGenerator {
+	
+	/** The number of lines per label. */
+	private static final int LINES_PER_LABEL = 4;
+	
+	private static final Register[] REGISTERS = {
+		Register8.AL, Register8.CL, Register8.DL, Register8.BL, Register8.AH, Register8.CH, Register8.DH, Register8.BH,
+		Register16.AX, Register16.CX, Register16.DX, Register16.BX, Register16.SP, Register16.BP, Register16.SI, Register16.DI,
+		Register32.EAX, Register32.ECX, Register32.EDX, Register32.EBX, Register32.ESP, Register32.EBP, Register32.ESI, Register32.EDI,
+		SegmentRegister.ES, SegmentRegister.CS, SegmentRegister.SS, SegmentRegister.DS, SegmentRegister.FS, SegmentRegister.GS,
+	};
+	
+	private static final int[] SCALES = {1, 2, 4, 8};
+	
+	
+	/**
+	 * Writes a program to the specified file. Usage: java org.p79068.assembler.generator.ProgramGenerator SEED NUMLINES OUTPUTFILE
+	 * @param args the list of command line arguments
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: java org.p79068.assembler.generator.ProgramGenerator SEED NUMLINES OUTPUTFILE");
+			System.exit(1);
+		}
+		writeFile(Long.parseLong(args[0]), Integer.parseInt(args[1]), new File(args[2]));
+	}
+	
+	
+	/**
+	 * Writes a program with the specified seed and number of lines to the specified file.
+	 * @param seed the seed
+	 * @param numLines the number of lines
+	 * @param file the file to write to
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static void writeFile(long seed, int numLines, File file) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(file), 64 * 1024);
+		try {
+			new ProgramGenerator(seed).generate(numLines, out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	
+	
+	private Random random;
+	
+	/** All the patterns in the table. */
+	private List<InstructionPattern> patterns;
+	
+	/** The patterns that have a relative operand. */
+	private List<InstructionPattern> branchPatterns;
+	
+	/** The rel8 patterns that are the short form of another pattern, so their targets need not be near. */
+	private Set<InstructionPattern> shortForms;
+	
+	
+	
+	/**
+	 * Constructs a program generator with the specified seed.
+	 * @param seed the seed
+	 */
+	public ProgramGenerator(long seed) {
+		random = new Random(seed);
+		InstructionPatternTable table = InstructionPatternTable.MODE32_TABLE;
+		patterns = table.getPatterns();
+		branchPatterns = new ArrayList<InstructionPattern>();
+		shortForms = new HashSet<InstructionPattern>();
+		for (InstructionPattern pat : patterns) {
+			if (pat.operands.size() == 1 && isRelative(pat.operands.get(0)))
+				branchPatterns.add(pat);
+			InstructionPattern shortpat = table.getShortForm(pat);
+			if (shortpat != null)
+				shortForms.add(shortpat);
+		}
+	}
+	
+	
+	
+	/**
+	 * Writes a program with the specified number of lines, each with one instruction, to the specified output.
+	 * @param numLines the number of lines
+	 * @param out the output to write to
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public void generate(int numLines, Appendable out) throws IOException {
+		if (numLines < 0)
+			throw new IllegalArgumentException();
+		int numLabels = (numLines + LINES_PER_LABEL - 1) / LINES_PER_LABEL;
+		
+		for (int i = 0; i < numLines; i++) {
+			if (i % LINES_PER_LABEL == 0)
+				out.append('L').append(Integer.toString(i / LINES_PER_LABEL)).append(':');
+			
+			InstructionPattern pat;
+			if (random.nextInt(4) == 0)
+				pat = branchPatterns.get(random.nextInt(branchPatterns.size()));
+			else
+				pat = patterns.get(random.nextInt(patterns.size()));
+			
+			out.append('\t').append(pat.mnemonic);
+			for (int j = 0; j < pat.operands.size(); j++) {
+				out.append(j == 0 ? " " : ", ");
+				OperandPattern op = pat.operands.get(j);
+				if (isRelative(op)) {
+					// A short-only branch must reach its target with an 8-bit displacement, so it targets the label before or after its own
+					int target;
+					if (op == OperandPattern.REL8 && !shortForms.contains(pat))
+						target = Math.max(Math.min(i / LINES_PER_LABEL + random.nextInt(3) - 1, numLabels - 1), 0);
+					else
+						target = random.nextInt(numLabels);
+					out.append("$L").append(Integer.toString(target));
+				} else
+					appendOperand(op, numLabels, out);
+			}
+			
+			if (random.nextInt(16) == 0)
+				out.append("  # Comment");
+			out.append('\n');
+		}
+	}
+	
+	
+	private void appendOperand(OperandPattern op, int numLabels, Appendable out) throws IOException {
+		// Immediate values
+		if (op == OperandPattern.IMM_VAL_1)
+			out.append("$1");
+		else if (op == OperandPattern.IMM_VAL_3)
+			out.append("$3");
+		else if (op == OperandPattern.IMM8S)
+			out.append('$').append(Integer.toString(random.nextInt(0x100) - 0x80));
+		else if (op == OperandPattern.IMM8)
+			out.append('$').append(Integer.toString(random.nextInt(0x180) - 0x80));
+		else if (op == OperandPattern.IMM16)
+			out.append('$').append(Integer.toString(random.nextInt(0x18000) - 0x8000));
+		else if (op == OperandPattern.IMM32) {
+			if (random.nextBoolean())
+				out.append("$L").append(Integer.toString(random.nextInt(numLabels)));
+			else if (random.nextBoolean())
+				out.append("$0x").append(Integer.toHexString(random.nextInt()));
+			else
+				out.append('$').append(Integer.toString(random.nextInt()));
+		}
+		
+		// Registers and memory
+		else {
+			boolean allowsMemory = (op.mask & OperandKind.MEMORY) != 0;
+			List<Register> registers = new ArrayList<Register>();
+			for (Register reg : REGISTERS) {
+				if (op.matches(reg))
+					registers.add(reg);
+			}
+			if (allowsMemory && (registers.isEmpty() || random.nextBoolean()))
+				appendMemory(numLabels, out);
+			else if (!registers.isEmpty())
+				out.append('%').append(registers.get(random.nextInt(registers.size())).toString());
+			else
+				throw new AssertionError("Unhandled operand pattern: " + op);
+		}
+	}
+	
+	
+	private void appendMemory(int numLabels, Appendable out) throws IOException {
+		// Displacement: none, a signed 8-bit value, a 32-bit value, or a label
+		int dispType = random.nextInt(4);
+		switch (dispType) {
+			case 0:  break;
+			case 1:  out.append(Integer.toString(random.nextInt(0x100) - 0x80));  break;
+			case 2:  out.append(Integer.toString(random.nextInt()));  break;
+			case 3:  out.append('L').append(Integer.toString(random.nextInt(numLabels)));  break;
+			default:  throw new AssertionError();
+		}
+		
+		// Base and index registers, where the index cannot be ESP. Without both, the operand is an absolute address
+		boolean hasBase = random.nextInt(4) != 0;
+		boolean hasIndex = random.nextBoolean();
+		if (!hasBase && !hasIndex) {
+			if (dispType == 0)
+				out.append("(%ebx)");
+			return;
+		}
+		out.append('(');
+		if (hasBase)
+			out.append('%').append(REGISTERS[16 + random.nextInt(8)].toString());
+		if (hasIndex) {
+			int index = random.nextInt(7);
+			out.append(",%").append(REGISTERS[16 + (index >= 4 ? index + 1 : index)].toString());
+			out.append(',').append(Integer.toString(SCALES[random.nextInt(SCALES.length)]));
+		}
+		out.append(')');
+	}
+	
+	
+	private static boolean isRelative(OperandPattern op) {
+		return op == OperandPattern.REL8 || op == OperandPattern.REL16 || op == OperandPattern.REL32;
+	}
+	
+}
@@ -0,0 +1,83 @@
+package org.p79068.assembler.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.p79068.assembler.CompactProgram;
+import org.p79068.assembler.Program;
+import org.p79068.assembler.Statement;
+import org.p79068.assembler.parser.Parser;
+
+
+public class ProgramGeneratorTest {
+	
+	@Test
+	public void testDeterministic() throws IOException {
+		StringBuilder x = new StringBuilder();
+		StringBuilder y = new StringBuilder();
+		new ProgramGenerator(42).generate(2000, x);
+		new ProgramGenerator(42).generate(2000, y);
+		assertEquals(x.toString(), y.toString());
+	}
+	
+	
+	@Test
+	public void testParseAndAssemble() throws IOException {
+		File source = File.createTempFile("generated", ".s");
+		File output = File.createTempFile("generated", ".out");
+		try {
+			ProgramGenerator.writeFile(1, 50000, source);
+			Program program = Parser.parseFile(source);
+			
+			CompactProgram compact = Parser.parseFileCompact(source);
+			assertSameStatements(program, compact.toProgram());
+			assertSameStatements(program, CompactProgram.fromProgram(program).toProgram());
+			
+			Assembler.assembleToFile(program, output, true);
+			long relaxedLength = output.length();
+			Assembler.assembleToFile(compact, output, true);
+			assertEquals(relaxedLength, output.length());
+			byte[] relaxed = Files.readAllBytes(output.toPath());
+			
+			// Large enough to be split into several chunks and ranges by the parallel parser and assembler
+			ForkJoinPool pool = new ForkJoinPool(4);
+			try {
+				assertSameStatements(program, Parser.parseFileParallel(source, pool));
+				Assembler.assembleToFileParallel(compact, output, pool);
+				assertArrayEquals(relaxed, Files.readAllBytes(output.toPath()));
+			} finally {
+				pool.shutdown();
+			}
+			
+			Assembler.assembleToFileSinglePass(compact, output);
+			long singlePassLength = output.length();
+			Assembler.assembleToFile(program, output, false);
+			assertTrue(relaxedLength < singlePassLength);
+			assertTrue(singlePassLength < output.length());
+		} finally {
+			source.delete();
+			output.delete();
+		}
+	}
+	
+	
+	
+	private static void assertSameStatements(Program expected, Program actual) {
+		List<Statement> x = expected.getStatements();
+		List<Statement> y = actual.getStatements();
+		assertEquals(x.size(), y.size());
+		for (int i = 0; i < x.size(); i++) {
+			assertEquals(x.get(i).toString(), y.get(i).toString());
+			assertEquals(x.get(i).getLineNumber(), y.get(i).getLineNumber());
+		}
+	}
+	
+}
@@ -0,0 +1,119 @@
+package org.p79068.assembler.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.p79068.assembler.parser.TokenType.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.p79068.assembler.operand.Register32;
+import org.p79068.assembler.operand.Register8;
+
+
+
+public class MappedTokenizerTest {
+	
+	private static MappedTokenizer newTokenizer(String code) {
+		byte[] b = new byte[code.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte)code.charAt(i);
+		return new MappedTokenizer(ByteBuffer.wrap(b));
+	}
+	
+	
+	@Test
+	public void testEmpty() {
+		Tokenizer t = newTokenizer("");
+		compareNext(t, NEWLINE, "\n");
+		compareNext(t, END_OF_FILE, "");
+		compareNext(t, END_OF_FILE, "");
+	}
+	
+	
+	@Test
+	public void testInstruction() {
+		Tokenizer t = newTokenizer("loop:\tmovl %eax, 0x1F(%esp,%ecx,4)  # comment");
+		compareNext(t, LABEL, "loop:");
+		compareNext(t, NAME, "movl");
+		compareNext(t, REGISTER, "%eax");
+		compareNext(t, COMMA, ",");
+		compareNext(t, HEXADECIMAL, "0x1F");
+		compareNext(t, LEFT_PAREN, "(");
+		compareNext(t, REGISTER, "%esp");
+		compareNext(t, COMMA, ",");
+		compareNext(t, REGISTER, "%ecx");
+		compareNext(t, COMMA, ",");
+		compareNext(t, DECIMAL, "4");
+		compareNext(t, RIGHT_PAREN, ")");
+		compareNext(t, NEWLINE, "\n");
+		compareNext(t, END_OF_FILE, "");
+	}
+	
+	
+	@Test
+	public void testDecimal() {
+		Tokenizer t = newTokenizer("0 1 -23 - $");
+		compareNext(t, DECIMAL, "0");
+		compareNext(t, DECIMAL, "1");
+		compareNext(t, DECIMAL, "-23");
+		compareNext(t, MINUS, "-");
+		compareNext(t, DOLLAR, "$");
+		compareNext(t, NEWLINE, "\n");
+		compareNext(t, END_OF_FILE, "");
+	}
+	
+	
+	@Test
+	public void testNewline() {
+		Tokenizer t = newTokenizer("def: \r\n\r\n\nGHI \r\r");
+		compareNext(t, LABEL, "def:");
+		compareNext(t, NEWLINE, "\r\n\r\n\n");
+		compareNext(t, NAME, "GHI");
+		compareNext(t, NEWLINE, "\r\r\n");
+		compareNext(t, END_OF_FILE, "");
+	}
+	
+	
+	@Test
+	public void testLineNumbers() {
+		MappedTokenizer t = newTokenizer("a # x\n\r\n  b\n\nc");
+		assertEquals(1, t.getLineNumber());
+		t.skip();
+		assertEquals(1, t.getLineNumber());
+		t.skip();  // Newline token spanning two line feeds
+		assertEquals(3, t.getLineNumber());
+		assertEquals("b", t.peekName());
+		t.skip();
+		t.skip();
+		assertEquals(5, t.getLineNumber());
+		assertEquals("c", t.peekName());
+	}
+	
+	
+	@Test
+	public void testConversions() {
+		MappedTokenizer t = newTokenizer("-2147483648 0x7fffFFFF 0xFFFFFFFF %EAX %bl abc: abc");
+		assertEquals(Integer.MIN_VALUE, t.peekNumber());
+		t.skip();
+		assertEquals(Integer.MAX_VALUE, t.peekNumber());
+		t.skip();
+		assertEquals(-1, t.peekNumber());
+		t.skip();
+		assertSame(Register32.EAX, t.peekRegister());
+		t.skip();
+		assertSame(Register8.BL, t.peekRegister());
+		t.skip();
+		String label = t.peekName();
+		assertEquals("abc", label);
+		t.skip();
+		assertSame(label, t.peekName());
+	}
+	
+	
+	
+	private static void compareNext(Tokenizer t, TokenType type, String text) {
+		assertEquals(new Token(type, text), t.next());
+	}
+	
+}
@@ -0,0 +1,101 @@
+package org.p79068.assembler.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.p79068.assembler.Program;
+import org.p79068.assembler.Statement;
+
+
+public class ParserTest {
+	
+	@Test
+	public void testParseFileParallel() throws IOException {
+		// Over 1 MiB, so that there are several chunks, with blank lines, comments, and labels on lines of their own and before instructions.
+		// The last line has no newline
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 1100000; i++) {
+			sb.append("label" + i + ":\n");
+			sb.append("\tmovl %eax, $" + i + "  # comment\n");
+			sb.append("\n");
+			sb.append("next" + i + ":\tjnz $label" + i + "\n");
+			sb.append("\tmovl 4(%ebx,%ecx,2), %edx\n");
+		}
+		sb.append("\tret");
+		
+		File file = writeTempFile(sb.toString());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Program expected = Parser.parseFile(file);
+			Program actual = Parser.parseFileParallel(file, pool);
+			assertEquals(expected.getSourceName(), actual.getSourceName());
+			List<Statement> x = expected.getStatements();
+			List<Statement> y = actual.getStatements();
+			assertEquals(x.size(), y.size());
+			for (int i = 0; i < x.size(); i++) {
+				assertEquals(x.get(i).toString(), y.get(i).toString());
+				assertEquals(x.get(i).getLineNumber(), y.get(i).getLineNumber());
+			}
+			assertEquals(sb.toString().split("\n").length, y.get(y.size() - 1).getLineNumber());
+		} finally {
+			pool.shutdown();
+			file.delete();
+		}
+	}
+	
+	
+	@Test
+	public void testParseFileParallelError() throws IOException {
+		// An error in the middle and another at the end. The one in the earlier chunk is reported
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 600000)
+			sb.append("\tmovl %eax, $1\n");
+		sb.append("\tmovl %eax %ebx\n");
+		while (sb.length() < 1200000)
+			sb.append("\tmovl %eax, $1\n");
+		sb.append("\tmovl %eax, %\n");
+		
+		File file = writeTempFile(sb.toString());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			String expected = null;
+			try {
+				Parser.parseFile(file);
+				fail();
+			} catch (RuntimeException e) {
+				expected = e.getMessage();
+			}
+			try {
+				Parser.parseFileParallel(file, pool);
+				fail();
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage(), e.getMessage().endsWith(expected));
+			}
+		} finally {
+			pool.shutdown();
+			file.delete();
+		}
+	}
+	
+	
+	private static File writeTempFile(String source) throws IOException {
+		File file = File.createTempFile("parser", ".s");
+		Writer out = new FileWriter(file);
+		try {
+			out.write(source);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+	
+}
@@ -0,0 +1,81 @@
+package org.p79068.libelf;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class ElfFileTest {
+	
+	@Test
+	public void testWriteTo() throws IOException {
+		ElfFile elf = new ElfFile();
+		ElfHeader eh = new ElfHeader();
+		eh.type = ObjectType.ET_EXEC;
+		eh.entry = 0x00100074;
+		eh.shstrndx = 1;
+		elf.elfHeader = eh;
+		
+		ProgramHeader ph = new ProgramHeader();
+		ph.type = SegmentType.PT_LOAD;
+		ph.offset = 0;
+		ph.vaddr = 0x00100000;
+		ph.filesz = 0x10000;
+		ph.memsz = 0x10000;
+		ph.flags = ProgramHeader.PF_R | ProgramHeader.PF_X;
+		ph.align = 0x1000;
+		elf.programHeaders.add(ph);
+		SectionHeader nullHeader = new SectionHeader();
+		nullHeader.type = SectionType.SHT_NULL;
+		elf.sectionHeaders.add(nullHeader);
+		SectionHeader sh = new SectionHeader();
+		sh.type = SectionType.SHT_PROGBITS;
+		sh.offset = 0x74;
+		sh.size = 0x10000;
+		elf.sectionHeaders.add(sh);
+		
+		elf.data = new byte[0x10000];
+		new Random(1).nextBytes(elf.data);
+		byte[] expected = elf.toBytes();
+		
+		// The data in pieces, with an empty piece, and a piece whose position is not 0 and whose limit is not the end of its array
+		byte[] padded = new byte[0x8000 + 200];
+		System.arraycopy(elf.data, 0x1000, padded, 100, 0x8000);
+		ByteBuffer[] data = {
+			ByteBuffer.wrap(elf.data, 0, 0x1000),
+			ByteBuffer.allocate(0),
+			ByteBuffer.wrap(padded, 100, 0x8000),
+			ByteBuffer.wrap(elf.data, 0x9000, 0x7000),
+		};
+		
+		File file = File.createTempFile("elf", ".out");
+		try {
+			FileChannel out = new FileOutputStream(file).getChannel();
+			try {
+				elf.writeTo(out, data);
+			} finally {
+				out.close();
+			}
+			assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+			
+			out = new FileOutputStream(file).getChannel();
+			try {
+				elf.writeTo(out);
+			} finally {
+				out.close();
+			}
+			assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+		} finally {
+			file.delete();
+		}
+	}
+	
+}